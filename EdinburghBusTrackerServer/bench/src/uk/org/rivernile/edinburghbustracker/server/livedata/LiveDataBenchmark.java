@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server.livedata;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+/**
+ * Benchmarks the live data path: parsing a departures page with the
+ * LiveDataScanner and with the SAX handler, writing the parsed data as JSON
+ * through JSONWriter, serialising the same data through JSONObject, and
+ * building a cache entry, which does the JSON write and UTF-8 encoding
+ * together. The departures pages are read from the fixtures directory, which
+ * is given by the bench.fixtures system property.
+ *
+ * @author Niall Scott
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LiveDataBenchmark {
+
+    @Param({ "departures-small.xml", "departures-medium.xml",
+            "departures-large.xml" })
+    public String fixture;
+
+    private byte[] page;
+    private LiveBusStopData data;
+    private JSONObject json;
+
+    /**
+     * Read the departures page and parse it once, so that the serialisation
+     * benchmarks have data to work on.
+     *
+     * @throws IOException When the fixture could not be read.
+     * @throws JSONException When the parsed data could not be turned in to a
+     * JSONObject.
+     */
+    @Setup
+    public void setUp() throws IOException, JSONException {
+        File dir = new File(System.getProperty("bench.fixtures",
+                "bench/fixtures"));
+        page = Files.readAllBytes(new File(dir, fixture).toPath());
+        data = new LiveDataScanner().scan(page);
+        StringWriter sw = new StringWriter();
+        data.writeJSONToStream(sw);
+        json = new JSONObject(sw.toString());
+    }
+
+    /**
+     * Parse the departures page with the LiveDataScanner.
+     *
+     * @return The parsed data.
+     */
+    @Benchmark
+    public LiveBusStopData parseScanner() {
+        return new LiveDataScanner().scan(page);
+    }
+
+    /**
+     * Parse the departures page with the SAX handler in LiveBusStopData.
+     *
+     * @return The parsed data.
+     * @throws IOException When the page could not be read.
+     * @throws SAXException When the page could not be parsed.
+     */
+    @Benchmark
+    public LiveBusStopData parseSax() throws IOException, SAXException {
+        XMLReader parser = XMLReaderFactory.createXMLReader();
+        LiveBusStopData busStopData = new LiveBusStopData();
+        parser.setContentHandler(busStopData);
+        parser.parse(new InputSource(new ByteArrayInputStream(page)));
+        return busStopData;
+    }
+
+    /**
+     * Write the parsed data as JSON with writeJSONToStream(), which uses
+     * JSONWriter.
+     *
+     * @return The JSON text.
+     */
+    @Benchmark
+    public String writeJSONToStream() {
+        StringWriter sw = new StringWriter(1024);
+        data.writeJSONToStream(sw);
+        return sw.toString();
+    }
+
+    /**
+     * Serialise the same data held as a JSONObject tree.
+     *
+     * @return The JSON text.
+     */
+    @Benchmark
+    public String jsonObjectToString() {
+        return json.toString();
+    }
+
+    /**
+     * Build a live data cache entry, which writes the JSON and encodes the
+     * framed reply in to a direct buffer.
+     *
+     * @return The cache entry.
+     */
+    @Benchmark
+    public LiveDataCache.Entry encodeEntry() {
+        return new LiveDataCache.Entry("36232626", data);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server.livedata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the binary form of the live data given by the LiveDataBinaryCodec
+ * with the JSON form, both for encoding on the server and for decoding on the
+ * client. The encoded sizes of both forms, and of the gzip compressed JSON,
+ * are printed when each fixture is set up. The departures pages are read from
+ * the fixtures directory, which is given by the bench.fixtures system
+ * property.
+ *
+ * @author Niall Scott
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LiveDataCodecBenchmark {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Param({ "departures-small.xml", "departures-medium.xml",
+            "departures-large.xml" })
+    public String fixture;
+
+    private LiveBusStopData data;
+    private String json;
+    private byte[] binary;
+
+    /**
+     * Parse the departures page and encode it in both forms, so that the
+     * decoding benchmarks have data to work on.
+     *
+     * @throws IOException When the fixture could not be read.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        File dir = new File(System.getProperty("bench.fixtures",
+                "bench/fixtures"));
+        data = new LiveDataScanner().scan(Files.readAllBytes(
+                new File(dir, fixture).toPath()));
+        json = encodeJson();
+        binary = LiveDataBinaryCodec.encode(data);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(baos);
+        gzip.write(json.getBytes(UTF8));
+        gzip.close();
+        System.out.println(fixture + ": JSON " + json.getBytes(UTF8).length +
+                " bytes, gzipped JSON " + baos.size() + " bytes, binary " +
+                binary.length + " bytes.");
+    }
+
+    /**
+     * Encode the data as JSON, as it is held in the live data cache.
+     *
+     * @return The JSON text.
+     */
+    @Benchmark
+    public String encodeJson() {
+        StringWriter sw = new StringWriter(1024);
+        data.writeJSONToStream(sw);
+        return sw.toString();
+    }
+
+    /**
+     * Encode the data as JSON and then in to UTF-8, which is the full cost
+     * of the JSON reply.
+     *
+     * @return The encoded JSON.
+     */
+    @Benchmark
+    public byte[] encodeJsonBytes() {
+        return encodeJson().getBytes(UTF8);
+    }
+
+    /**
+     * Encode the data in the binary form.
+     *
+     * @return The encoded data.
+     */
+    @Benchmark
+    public byte[] encodeBinary() {
+        return LiveDataBinaryCodec.encode(data);
+    }
+
+    /**
+     * Decode the JSON form in to a JSONObject tree, as a client would.
+     *
+     * @return The decoded JSON.
+     * @throws JSONException When the JSON could not be decoded.
+     */
+    @Benchmark
+    public JSONObject decodeJson() throws JSONException {
+        return new JSONObject(json);
+    }
+
+    /**
+     * Decode the binary form in to LiveBusStopData.
+     *
+     * @return The decoded data.
+     * @throws IOException When the data could not be decoded.
+     */
+    @Benchmark
+    public LiveBusStopData decodeBinary() throws IOException {
+        return LiveDataBinaryCodec.decode(ByteBuffer.wrap(binary));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server.stoplocations;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+/**
+ * Benchmarks the XML handling done by the StopLocationsTask when it builds the
+ * bus stop database: parsing a service points file with the
+ * ServicePointsHandler. The stops and services found are consumed by a
+ * Blackhole rather than written to a database, so only the parsing is
+ * measured. The files are read from the fixtures directory, which is given by
+ * the bench.fixtures system property.
+ *
+ * @author Niall Scott
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServicePointsBenchmark {
+
+    @Param({ "servicepoints-small.xml", "servicepoints-large.xml" })
+    public String fixture;
+
+    private byte[] file;
+
+    /**
+     * Read the service points file.
+     *
+     * @throws IOException When the fixture could not be read.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        File dir = new File(System.getProperty("bench.fixtures",
+                "bench/fixtures"));
+        file = Files.readAllBytes(new File(dir, fixture).toPath());
+    }
+
+    /**
+     * Parse the service points file with a new parser, as the
+     * StopLocationsTask does for each build of the database.
+     *
+     * @param bh Consumes the stops and services found.
+     * @throws IOException When the file could not be read.
+     * @throws SAXException When the file could not be parsed.
+     */
+    @Benchmark
+    public void parse(final Blackhole bh) throws IOException, SAXException {
+        XMLReader parser = XMLReaderFactory.createXMLReader();
+        parser.setContentHandler(new ServicePointsHandler(
+                new ServicePointsHandler.Listener() {
+            @Override
+            public void onStop(final String stopCode, final String stopName,
+                    final int x, final int y) {
+                bh.consume(stopCode);
+                bh.consume(stopName);
+                bh.consume(x);
+                bh.consume(y);
+            }
+
+            @Override
+            public void onService(final String serviceName) {
+                bh.consume(serviceName);
+            }
+        }));
+        parser.parse(new InputSource(new ByteArrayInputStream(file)));
+    }
+}
@@ -0,0 +1,84 @@
+#!/bin/sh
+#
+# Runs an offline load test on this machine. A stub upstream is started which
+# replays the recorded pages in bench/fixtures, a server is started which
+# fetches from the stub instead of the Bus Tracker website, and the load driver
+# is run against the server. Everything is stopped once the report is printed.
+#
+# Usage: loadtest/run-loadtest.sh [driver options...]
+#
+# The driver options are key=value pairs, see LoadDriver. The stub and the
+# server are set up through environment variables:
+#   STUB_PORT    The port the stub listens on (default 8089).
+#   STUB_ARGS    Extra stub options, e.g. "latency=200 errorrate=0.01".
+#   SERVER_PORT  The port the server listens on (default 4876).
+#   SERVER_CONF  Extra server config lines, separated by spaces, e.g.
+#                "frontend=nio admissionmaxlimit=32".
+#   JAVA_OPTS    Extra options for the server's JVM.
+#
+
+set -e
+
+cd "$(dirname "$0")/.."
+ROOT=$(pwd)
+STUB_PORT=${STUB_PORT:-8089}
+SERVER_PORT=${SERVER_PORT:-4876}
+RUN_DIR=build/loadtest/run
+
+ant -q jar loadtest-compile
+
+CP=$ROOT/dist/EdinburghBusTrackerServer.jar
+for jar in "$ROOT"/lib/*.jar; do
+    CP=$CP:$jar
+done
+CP=$CP:$ROOT/build/loadtest/classes
+
+# The server builds the stop database in its working directory and then moves
+# it to dbpath, so the two must differ.
+rm -rf "$RUN_DIR"
+mkdir -p "$RUN_DIR/work"
+{
+    echo "port=$SERVER_PORT"
+    echo "websiteurl=http://127.0.0.1:$STUB_PORT/"
+    echo "dbpath=$ROOT/$RUN_DIR/"
+    for line in $SERVER_CONF; do
+        echo "$line"
+    done
+} > "$RUN_DIR/loadtest.conf"
+
+STUB_PID=
+SERVER_PID=
+cleanup() {
+    [ -n "$SERVER_PID" ] && kill "$SERVER_PID" 2>/dev/null
+    [ -n "$STUB_PID" ] && kill "$STUB_PID" 2>/dev/null
+    true
+}
+trap cleanup EXIT INT TERM
+
+java -cp "$CP" uk.org.rivernile.edinburghbustracker.server.loadtest.StubUpstream \
+        port="$STUB_PORT" fixtures=bench/fixtures $STUB_ARGS \
+        > "$RUN_DIR/stub.log" 2>&1 &
+STUB_PID=$!
+
+(cd "$RUN_DIR/work" && exec java $JAVA_OPTS -cp "$CP" \
+        uk.org.rivernile.edinburghbustracker.server.Main -c ../loadtest.conf \
+        > ../server.log 2>&1) &
+SERVER_PID=$!
+
+# Wait for the server to start listening.
+i=0
+while ! grep -q "now listening" "$RUN_DIR/server.log" 2> /dev/null; do
+    i=$((i + 1))
+    if [ $i -ge 50 ]; then
+        echo "The server did not start, see $RUN_DIR/server.log." >&2
+        exit 1
+    fi
+    sleep 0.2
+done
+
+java -cp "$CP" uk.org.rivernile.edinburghbustracker.server.loadtest.LoadDriver \
+        port="$SERVER_PORT" "$@"
+
+echo
+echo "Stub upstream: $(curl -s http://127.0.0.1:$STUB_PORT/stats 2>/dev/null)"
+echo "Server log: $RUN_DIR/server.log"
@@ -0,0 +1,497 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import uk.org.rivernile.edinburghbustracker.server.metrics.LatencyHistogram;
+
+/**
+ * The LoadDriver opens a number of concurrent clients against the server's
+ * line protocol, each sending a weighted mix of commands back to back for a
+ * set duration, and then reports the throughput, latency percentiles and error
+ * rates of each command.
+ *
+ * The server writes nothing back when a live data fetch fails upstream, so
+ * each getBusTimesByStopCode command is followed by a getDBLastModTime command
+ * on the same connection. If the reply to getDBLastModTime comes back first,
+ * the live data fetch failed.
+ *
+ * Options are given as key=value arguments:
+ * <ul>
+ * <li>host - the server to connect to (default 127.0.0.1)</li>
+ * <li>port - the server's port (default 4876)</li>
+ * <li>clients - the number of concurrent clients (default 50)</li>
+ * <li>duration - how long to measure for, in seconds (default 60)</li>
+ * <li>warmup - how long to run before measuring, in seconds (default 5)</li>
+ * <li>mix - the weighted command mix, as command:weight pairs separated by
+ * commas (default getBusTimesByStopCode:80,getBusTimesByStopCodes:10,
+ * getDBLastModTime:5,getLatestAndroidClientVersion:5)</li>
+ * <li>stops - the number of distinct stop codes to ask for (default 500)</li>
+ * <li>batchsize - the number of stops in each getBusTimesByStopCodes command
+ * (default 5)</li>
+ * <li>timeout - how long to wait for a reply, in ms (default 15000)</li>
+ * <li>think - how long each client waits between commands, in ms
+ * (default 0)</li>
+ * </ul>
+ *
+ * @author Niall Scott
+ */
+public class LoadDriver {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String DEFAULT_MIX = "getBusTimesByStopCode:80," +
+            "getBusTimesByStopCodes:10,getDBLastModTime:5," +
+            "getLatestAndroidClientVersion:5";
+    private static final String SENTINEL = "getDBLastModTime";
+
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final long duration;
+    private final long warmup;
+    private final String[] commands;
+    private final int[] weights;
+    private final int totalWeight;
+    private final int stops;
+    private final int batchSize;
+    private final int timeout;
+    private final long think;
+    private final Map<String, CommandStats> stats =
+            new LinkedHashMap<String, CommandStats>();
+    private final AtomicLong connectionErrors = new AtomicLong();
+    private volatile long measureStart;
+    private volatile long measureEnd;
+
+    /**
+     * Create a new LoadDriver.
+     *
+     * @param options The options, as parsed by parseOptions().
+     */
+    public LoadDriver(final Map<String, String> options) {
+        host = getOption(options, "host", "127.0.0.1");
+        port = Integer.parseInt(getOption(options, "port", "4876"));
+        clients = Integer.parseInt(getOption(options, "clients", "50"));
+        duration = Long.parseLong(getOption(options, "duration", "60")) *
+                1000;
+        warmup = Long.parseLong(getOption(options, "warmup", "5")) * 1000;
+        stops = Integer.parseInt(getOption(options, "stops", "500"));
+        batchSize = Integer.parseInt(getOption(options, "batchsize", "5"));
+        timeout = Integer.parseInt(getOption(options, "timeout", "15000"));
+        think = Long.parseLong(getOption(options, "think", "0"));
+
+        String[] mix = getOption(options, "mix", DEFAULT_MIX).split(",");
+        commands = new String[mix.length];
+        weights = new int[mix.length];
+        int total = 0;
+        for(int i = 0; i < mix.length; i++) {
+            String[] pair = mix[i].trim().split(":");
+            commands[i] = pair[0];
+            weights[i] = pair.length > 1 ? Integer.parseInt(pair[1]) : 1;
+            if(weights[i] < 0) throw new IllegalArgumentException("The " +
+                    "weight of " + pair[0] + " must not be negative.");
+            total += weights[i];
+            stats.put(commands[i], new CommandStats());
+        }
+        if(total <= 0) throw new IllegalArgumentException("The command mix " +
+                "must have a positive total weight.");
+        totalWeight = total;
+    }
+
+    /**
+     * Run the load test and print the report.
+     *
+     * @param args The options, as key=value pairs.
+     * @throws InterruptedException When interrupted while waiting for the
+     * clients.
+     */
+    public static void main(final String[] args) throws InterruptedException {
+        LoadDriver driver = new LoadDriver(parseOptions(args));
+        driver.run();
+        driver.report(System.out);
+    }
+
+    /**
+     * Parse key=value arguments.
+     *
+     * @param args The arguments.
+     * @return The options, keyed by their lower case names.
+     */
+    public static Map<String, String> parseOptions(final String[] args) {
+        LinkedHashMap<String, String> options =
+                new LinkedHashMap<String, String>();
+        for(String arg : args) {
+            int i = arg.indexOf('=');
+            if(i < 1) throw new IllegalArgumentException("Invalid option " +
+                    arg + ", options must be given as key=value.");
+            options.put(arg.substring(0, i).toLowerCase(),
+                    arg.substring(i + 1));
+        }
+        return options;
+    }
+
+    /**
+     * Get an option, or its default if it was not given.
+     *
+     * @param options The options.
+     * @param key The name of the option.
+     * @param defaultValue The value to use if the option was not given.
+     * @return The value of the option.
+     */
+    public static String getOption(final Map<String, String> options,
+            final String key, final String defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * Run the clients until the warm up and the measured duration have
+     * passed.
+     *
+     * @throws InterruptedException When interrupted while waiting for the
+     * clients.
+     */
+    public void run() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        measureStart = now + warmup;
+        measureEnd = measureStart + duration;
+        System.out.println("Running " + clients + " clients against " + host +
+                ":" + port + " for " + (warmup / 1000) + "s warm up and " +
+                (duration / 1000) + "s measured.");
+
+        ArrayList<Thread> threads = new ArrayList<Thread>(clients);
+        for(int i = 0; i < clients; i++) {
+            Thread t = new Thread(new Client(i), "load-client-" + i);
+            t.setDaemon(true);
+            threads.add(t);
+            t.start();
+        }
+        for(Thread t : threads) {
+            // Give clients stuck on a read long enough to time out.
+            t.join(Math.max(1, measureEnd - System.currentTimeMillis()) +
+                    timeout + 1000);
+        }
+    }
+
+    /**
+     * Print the report of the load test.
+     *
+     * @param out Where to print the report.
+     */
+    public void report(final PrintStream out) {
+        double seconds = duration / 1000.0;
+        out.println();
+        out.println(String.format("%-30s %9s %9s %7s %7s %7s %7s %7s " +
+                "%8s %8s %8s %8s", "Command", "Requests", "Req/s", "Err%",
+                "Error", "NoReply", "Busy", "Timeout", "p50 ms", "p99 ms",
+                "p999 ms", "max ms"));
+        long total = 0, failed = 0;
+        for(Map.Entry<String, CommandStats> e : stats.entrySet()) {
+            CommandStats s = e.getValue();
+            long requests = s.getRequests();
+            total += requests;
+            failed += s.getFailed();
+            out.println(String.format("%-30s %9d %9.1f %7.2f %7d %7d %7d " +
+                    "%7d %8.1f %8.1f %8.1f %8.1f", e.getKey(), requests,
+                    requests / seconds, percent(s.getFailed(), requests),
+                    s.error.get(), s.noReply.get(), s.busy.get(),
+                    s.timeout.get(), millis(s.latency.getPercentile(50)),
+                    millis(s.latency.getPercentile(99)),
+                    millis(s.latency.getPercentile(99.9)),
+                    millis(s.latency.getMax())));
+            if(s.stopErrors.get() > 0) {
+                out.println(String.format("%-30s %9d stops in batches " +
+                        "failed", "", s.stopErrors.get()));
+            }
+        }
+        out.println();
+        out.println(String.format("Total: %d requests, %.1f req/s, " +
+                "%.2f%% failed, %d connection errors.", total, total / seconds,
+                percent(failed, total), connectionErrors.get()));
+    }
+
+    /**
+     * Pick the next command from the weighted mix.
+     *
+     * @param random The client's random number generator.
+     * @return The name of the command.
+     */
+    private String pickCommand(final Random random) {
+        int roll = random.nextInt(totalWeight);
+        for(int i = 0; i < commands.length; i++) {
+            roll -= weights[i];
+            if(roll < 0) return commands[i];
+        }
+        return commands[commands.length - 1];
+    }
+
+    /**
+     * Pick a stop code from the pool of stop codes.
+     *
+     * @param random The client's random number generator.
+     * @return A stop code.
+     */
+    private String pickStop(final Random random) {
+        return String.valueOf(36230000 + random.nextInt(stops));
+    }
+
+    /**
+     * Convert microseconds to milliseconds.
+     */
+    private static double millis(final long micros) {
+        return micros / 1000.0;
+    }
+
+    /**
+     * Work out a percentage, which is 0 when there is nothing to divide by.
+     */
+    private static double percent(final long part, final long whole) {
+        return whole == 0 ? 0 : part * 100.0 / whole;
+    }
+
+    /**
+     * What happened to a single command.
+     */
+    private enum Outcome { OK, ERROR, NO_REPLY, BUSY }
+
+    /**
+     * The statistics kept for each command.
+     */
+    private static class CommandStats {
+
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong ok = new AtomicLong();
+        private final AtomicLong error = new AtomicLong();
+        private final AtomicLong noReply = new AtomicLong();
+        private final AtomicLong busy = new AtomicLong();
+        private final AtomicLong timeout = new AtomicLong();
+        private final AtomicLong io = new AtomicLong();
+        private final AtomicLong stopErrors = new AtomicLong();
+
+        private long getFailed() {
+            return error.get() + noReply.get() + busy.get() + timeout.get() +
+                    io.get();
+        }
+
+        private long getRequests() {
+            return ok.get() + getFailed();
+        }
+    }
+
+    /**
+     * A single client, which keeps one connection open and sends commands on
+     * it until the test is over. The connection is opened again after a
+     * timeout or an I/O error.
+     */
+    private class Client implements Runnable {
+
+        private final Random random;
+        private Socket socket;
+        private BufferedReader in;
+        private OutputStream out;
+
+        private Client(final int id) {
+            random = new Random(id * 7919L + System.nanoTime());
+        }
+
+        @Override
+        public void run() {
+            String command = null;
+            long start = 0;
+            while(System.currentTimeMillis() < measureEnd) {
+                try {
+                    if(socket == null) connect();
+                    command = pickCommand(random);
+                    start = System.nanoTime();
+                    Outcome outcome = send(command);
+                    record(command, outcome, System.nanoTime() - start);
+                    if(think > 0) Thread.sleep(think);
+                } catch(SocketTimeoutException e) {
+                    if(isMeasuring()) stats.get(command).timeout
+                            .incrementAndGet();
+                    close();
+                } catch(IOException e) {
+                    if(isMeasuring()) {
+                        if(command != null && start != 0) {
+                            stats.get(command).io.incrementAndGet();
+                        } else {
+                            connectionErrors.incrementAndGet();
+                        }
+                    }
+                    if(socket == null) {
+                        // Do not spin while the server cannot be reached.
+                        try {
+                            Thread.sleep(100);
+                        } catch(InterruptedException ie) {
+                            break;
+                        }
+                    }
+                    close();
+                } catch(InterruptedException e) {
+                    break;
+                } finally {
+                    command = null;
+                    start = 0;
+                }
+            }
+            if(socket != null) {
+                try {
+                    out.write("exit\n".getBytes(UTF8));
+                } catch(IOException e) {
+                    // Do nothing, the connection is being closed anyway.
+                }
+                close();
+            }
+        }
+
+        private boolean isMeasuring() {
+            long now = System.currentTimeMillis();
+            return now >= measureStart && now < measureEnd;
+        }
+
+        private void record(final String command, final Outcome outcome,
+                final long nanos) {
+            if(!isMeasuring()) return;
+            CommandStats s = stats.get(command);
+            switch(outcome) {
+                case OK:
+                    s.ok.incrementAndGet();
+                    s.latency.recordNanos(nanos);
+                    break;
+                case ERROR:
+                    s.error.incrementAndGet();
+                    break;
+                case NO_REPLY:
+                    s.noReply.incrementAndGet();
+                    break;
+                default:
+                    s.busy.incrementAndGet();
+                    break;
+            }
+        }
+
+        private void connect() throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeout);
+            try {
+                socket.connect(new InetSocketAddress(host, port), timeout);
+            } catch(IOException e) {
+                socket = null;
+                throw e;
+            }
+            in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), UTF8));
+            out = socket.getOutputStream();
+        }
+
+        private void close() {
+            if(socket == null) return;
+            try {
+                socket.close();
+            } catch(IOException e) {
+                // Do nothing as the socket is being thrown away.
+            }
+            socket = null;
+        }
+
+        /**
+         * Send a command and read its reply.
+         */
+        private Outcome send(final String command) throws IOException {
+            if(command.equals("getBusTimesByStopCode")) {
+                out.write((command + ":" + pickStop(random) + "\n" +
+                        SENTINEL + "\n").getBytes(UTF8));
+                String line = readLine();
+                Outcome outcome;
+                if(line.equals("+")) {
+                    readLine();
+                    expect("-");
+                    outcome = Outcome.OK;
+                } else if(line.startsWith("Error: the server is busy")) {
+                    outcome = Outcome.BUSY;
+                } else if(line.startsWith("Error")) {
+                    outcome = Outcome.ERROR;
+                } else {
+                    // That was the sentinel's reply, so the fetch failed.
+                    return Outcome.NO_REPLY;
+                }
+                readLine();
+                return outcome;
+            } else if(command.equals("getBusTimesByStopCodes")) {
+                StringBuilder codes = new StringBuilder();
+                for(int i = 0; i < batchSize; i++) {
+                    if(i > 0) codes.append(',');
+                    codes.append(pickStop(random));
+                }
+                out.write((command + ":" + codes + "\n").getBytes(UTF8));
+                String line = readLine();
+                if(!line.equals("+")) return line.startsWith("Error") ?
+                        Outcome.ERROR : Outcome.NO_REPLY;
+                String json = readLine();
+                expect("-");
+                if(isMeasuring()) {
+                    int errors = 0;
+                    for(int i = json.indexOf("\"error\":"); i >= 0;
+                            i = json.indexOf("\"error\":", i + 1)) {
+                        errors++;
+                    }
+                    stats.get(command).stopErrors.addAndGet(errors);
+                }
+                return Outcome.OK;
+            } else {
+                out.write((command + "\n").getBytes(UTF8));
+                String line = readLine();
+                return line.startsWith("Error") ? Outcome.ERROR : Outcome.OK;
+            }
+        }
+
+        private String readLine() throws IOException {
+            String line = in.readLine();
+            if(line == null) throw new IOException("The server closed the " +
+                    "connection.");
+            return line;
+        }
+
+        private void expect(final String expected) throws IOException {
+            String line = readLine();
+            if(!line.equals(expected)) throw new IOException("Expected " +
+                    expected + " but got " + line);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The StubUpstream stands in for the Bus Tracker website during load tests. It
+ * replays recorded getBusStopDepartures.php and getServicePoints.php
+ * responses from a fixtures directory, after a configurable delay, and fails a
+ * configurable share of requests either with a HTTP 500 or by hanging for long
+ * enough to hit the server's read timeout. The same stop code always gets the
+ * same recorded page.
+ *
+ * Options are given as key=value arguments:
+ * <ul>
+ * <li>port - the port to listen on (default 8089)</li>
+ * <li>fixtures - the directory of recorded responses, named departures-*.xml
+ * and servicepoints-*.xml (default bench/fixtures)</li>
+ * <li>latency - the mean delay before responding, in ms (default 50)</li>
+ * <li>jitter - the most the delay varies either side of the mean, in ms
+ * (default 20)</li>
+ * <li>errorrate - the share of requests answered with a HTTP 500, from 0 to 1
+ * (default 0)</li>
+ * <li>timeoutrate - the share of requests which hang, from 0 to 1
+ * (default 0)</li>
+ * <li>hang - how long a hanging request hangs for, in ms (default
+ * 30000)</li>
+ * </ul>
+ *
+ * @author Niall Scott
+ */
+public class StubUpstream implements HttpHandler {
+
+    private final List<byte[]> departures;
+    private final List<byte[]> servicePoints;
+    private final long latency;
+    private final long jitter;
+    private final double errorRate;
+    private final double timeoutRate;
+    private final long hang;
+    private final Random random = new Random();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * Create a new StubUpstream.
+     *
+     * @param options The options, as parsed by LoadDriver.parseOptions().
+     * @throws IOException When the recorded responses could not be read.
+     */
+    public StubUpstream(final Map<String, String> options) throws IOException {
+        File fixtures = new File(LoadDriver.getOption(options, "fixtures",
+                "bench/fixtures"));
+        departures = readFixtures(fixtures, "departures-");
+        servicePoints = readFixtures(fixtures, "servicepoints-");
+        if(departures.isEmpty()) throw new IOException("No departures-*.xml " +
+                "files were found in " + fixtures + ".");
+        latency = Long.parseLong(LoadDriver.getOption(options, "latency",
+                "50"));
+        jitter = Long.parseLong(LoadDriver.getOption(options, "jitter", "20"));
+        errorRate = Double.parseDouble(LoadDriver.getOption(options,
+                "errorrate", "0"));
+        timeoutRate = Double.parseDouble(LoadDriver.getOption(options,
+                "timeoutrate", "0"));
+        hang = Long.parseLong(LoadDriver.getOption(options, "hang", "30000"));
+    }
+
+    /**
+     * Start the stub.
+     *
+     * @param args The options, as key=value pairs.
+     * @throws IOException When the stub could not be started.
+     */
+    public static void main(final String[] args) throws IOException {
+        Map<String, String> options = LoadDriver.parseOptions(args);
+        int port = Integer.parseInt(LoadDriver.getOption(options, "port",
+                "8089"));
+        StubUpstream stub = new StubUpstream(options);
+        HttpServer server = HttpServer.create(new InetSocketAddress(
+                "127.0.0.1", port), 128);
+        server.createContext("/", stub);
+        // Every request sleeps, so each needs a thread of its own.
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        System.out.println("Stub upstream listening on port " + port + " " +
+                "with " + stub.departures.size() + " departures pages and " +
+                stub.servicePoints.size() + " service points files.");
+    }
+
+    /**
+     * Read all of the recorded responses whose file names start with a
+     * prefix, sorted by file name.
+     *
+     * @param dir The fixtures directory.
+     * @param prefix The start of the file names.
+     * @return The recorded responses.
+     * @throws IOException When a response could not be read.
+     */
+    private static List<byte[]> readFixtures(final File dir,
+            final String prefix) throws IOException
+    {
+        ArrayList<byte[]> result = new ArrayList<byte[]>();
+        File[] files = dir.listFiles();
+        if(files == null) throw new IOException("The fixtures directory " +
+                dir + " could not be read.");
+        Arrays.sort(files);
+        for(File f : files) {
+            if(f.getName().startsWith(prefix) && f.getName().endsWith(".xml"))
+                result.add(Files.readAllBytes(f.toPath()));
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void handle(final HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String query = exchange.getRequestURI().getQuery();
+            if(path.equals("/stats")) {
+                send(exchange, 200, ("requests=" + requests.get() +
+                        " errors=" + errors.get() + " timeouts=" +
+                        timeouts.get() + "\n").getBytes("UTF-8"));
+                return;
+            }
+
+            byte[] body;
+            if(path.endsWith("/getBusStopDepartures.php")) {
+                body = pick(departures, getParameter(query, "busStopCode"));
+            } else if(path.endsWith("/getServicePoints.php")
+                    && !servicePoints.isEmpty()) {
+                body = pick(servicePoints, getParameter(query,
+                        "serviceMnemo"));
+            } else {
+                send(exchange, 404, new byte[0]);
+                return;
+            }
+            requests.incrementAndGet();
+
+            double roll;
+            long delay;
+            synchronized(random) {
+                roll = random.nextDouble();
+                delay = latency + (jitter > 0 ?
+                        (long)((random.nextDouble() * 2 - 1) * jitter) : 0);
+            }
+            if(roll < timeoutRate) {
+                timeouts.incrementAndGet();
+                sleep(hang);
+            } else {
+                sleep(delay);
+            }
+            if(roll >= timeoutRate && roll < timeoutRate + errorRate) {
+                errors.incrementAndGet();
+                send(exchange, 500, new byte[0]);
+            } else {
+                send(exchange, 200, body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Pick the recorded response for a key, so that the same key always gets
+     * the same response.
+     *
+     * @param responses The recorded responses to pick from.
+     * @param key The key, such as a stop code, which may be null.
+     * @return The recorded response.
+     */
+    private static byte[] pick(final List<byte[]> responses,
+            final String key)
+    {
+        int hash = key == null ? 0 : key.hashCode();
+        return responses.get((hash & Integer.MAX_VALUE) % responses.size());
+    }
+
+    /**
+     * Send a response.
+     *
+     * @param exchange The request and response.
+     * @param status The HTTP status code.
+     * @param body The body of the response.
+     * @throws IOException When the response could not be sent.
+     */
+    private static void send(final HttpExchange exchange, final int status,
+            final byte[] body) throws IOException
+    {
+        exchange.getResponseHeaders().set("Content-Type",
+                "text/xml; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 :
+                body.length);
+        if(body.length > 0) {
+            OutputStream os = exchange.getResponseBody();
+            os.write(body);
+            os.close();
+        }
+    }
+
+    /**
+     * Get the value of a parameter from a query string.
+     *
+     * @param query The query string, which may be null.
+     * @param name The name of the parameter.
+     * @return The value of the parameter, or null if it is not there.
+     */
+    private static String getParameter(final String query, final String name) {
+        if(query == null) return null;
+        for(String pair : query.split("&")) {
+            if(pair.startsWith(name + "="))
+                return pair.substring(name.length() + 1);
+        }
+        return null;
+    }
+
+    /**
+     * Sleep, ignoring interruptions.
+     *
+     * @param millis How long to sleep for, in milliseconds.
+     */
+    private static void sleep(final long millis) {
+        if(millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
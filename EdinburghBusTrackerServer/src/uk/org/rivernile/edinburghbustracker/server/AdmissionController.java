@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server;
+
+import java.io.InterruptedIOException;
+
+/**
+ * The AdmissionController limits how many live data fetches may be made to
+ * the Bus Tracker website at once. The limit is adjusted as fetches complete,
+ * in the same way as TCP congestion control: it grows by about one for every
+ * limit's worth of fetches which complete quickly, and it is cut by a quarter
+ * when a fetch fails or takes longer than the target latency. Fetches over
+ * the limit wait in a bounded queue. When the queue is full, or a fetch has
+ * waited too long, it is turned away with a hint of when to try again, so a
+ * burst of requests slows the server down rather than making it fail.
+ *
+ * @author Niall Scott
+ */
+public class AdmissionController {
+
+    /** How much the limit is multiplied by when it is cut. */
+    private static final double DECREASE_FACTOR = 0.75;
+    /** The weight given to each new latency in the average latency. */
+    private static final double LATENCY_WEIGHT = 0.1;
+
+    private static AdmissionController controller = null;
+
+    private double limit;
+    private int inFlight = 0;
+    private int queued = 0;
+    private double averageLatency = 0;
+    private long lastDecrease = 0;
+    private long admitted = 0;
+    private long shed = 0;
+
+    /**
+     * This constructor is private and can only be called from
+     * getAdmissionController(). The limit starts at the size of the upstream
+     * connection pool. The other settings are read from the current config
+     * each time they are used, so they follow config reloads.
+     */
+    private AdmissionController() {
+        Config config = Config.getConfig();
+        limit = Math.max(config.getAdmissionMinLimit(), Math.min(
+                config.getAdmissionMaxLimit(), config.getUpstreamPoolSize()));
+    }
+
+    /**
+     * Get the single instance of the AdmissionController class.
+     *
+     * @return The single instance of the AdmissionController class.
+     */
+    public static synchronized AdmissionController getAdmissionController() {
+        if(controller == null) controller = new AdmissionController();
+        return controller;
+    }
+
+    /**
+     * Wait until a fetch may be made. Every successful call must be followed
+     * by a call to release() once the fetch has completed.
+     *
+     * @throws ServerBusyException When the queue is full, or the fetch waited
+     * in the queue for longer than the queue timeout.
+     * @throws InterruptedIOException When the thread was interrupted while
+     * waiting in the queue.
+     */
+    public synchronized void acquire() throws ServerBusyException,
+            InterruptedIOException
+    {
+        if(inFlight < (int)limit && queued == 0) {
+            inFlight++;
+            admitted++;
+            return;
+        }
+        Config config = Config.getConfig();
+        if(queued >= config.getAdmissionQueue()) throw shed();
+
+        queued++;
+        try {
+            long deadline = System.currentTimeMillis() +
+                    config.getAdmissionQueueTimeout();
+            long remaining;
+            while(inFlight >= (int)limit) {
+                remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0) throw shed();
+                wait(remaining);
+            }
+            inFlight++;
+            admitted++;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to " +
+                    "fetch live data.");
+        } finally {
+            queued--;
+        }
+    }
+
+    /**
+     * Let a fetch in only if it can be made straight away. This is used for
+     * fetches which nobody is waiting for, so they never queue ahead of
+     * clients. A successful call must be followed by a call to release() once
+     * the fetch has completed.
+     *
+     * @return True if the fetch may be made, false if it should be skipped.
+     */
+    public synchronized boolean tryAcquire() {
+        if(inFlight < (int)limit && queued == 0) {
+            inFlight++;
+            admitted++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record that a fetch has completed and adjust the limit. The limit only
+     * grows while it is close to being used up, and it is cut at most once
+     * per average latency, so a single slow burst does not collapse it.
+     *
+     * @param latency How long the fetch took, in milliseconds.
+     * @param failed True if the fetch failed because of a connection problem
+     * or an error from the website.
+     */
+    public synchronized void release(final long latency,
+            final boolean failed)
+    {
+        inFlight--;
+        averageLatency = averageLatency == 0 ? latency :
+                averageLatency + LATENCY_WEIGHT * (latency - averageLatency);
+
+        Config config = Config.getConfig();
+        int minLimit = config.getAdmissionMinLimit();
+        int maxLimit = config.getAdmissionMaxLimit();
+        long now = System.currentTimeMillis();
+        if(failed || latency > config.getAdmissionTargetLatency()) {
+            if(now - lastDecrease > averageLatency) {
+                limit = limit * DECREASE_FACTOR;
+                lastDecrease = now;
+            }
+        } else if(inFlight + 1 >= limit / 2) {
+            limit = limit + 1 / limit;
+        }
+        // The bounds may have changed since the last fetch.
+        limit = Math.max(minLimit, Math.min(maxLimit, limit));
+        notifyAll();
+    }
+
+    /**
+     * Count a fetch which is being turned away.
+     *
+     * @return The exception to throw for the turned away fetch.
+     */
+    private ServerBusyException shed() {
+        shed++;
+        return new ServerBusyException(getRetryAfter());
+    }
+
+    /**
+     * Work out when a client which has been turned away should try again.
+     * This is roughly how long it would take the fetches already waiting to
+     * get through at the current limit.
+     *
+     * @return How long the client should wait, in seconds.
+     */
+    public synchronized int getRetryAfter() {
+        double seconds = averageLatency * (queued + 1) / limit / 1000;
+        return Math.max(1, (int)Math.ceil(seconds));
+    }
+
+    /**
+     * Whether a fetch which has to wait would be turned away right now, as the
+     * limit is used up and the queue is full. The front ends also use this to
+     * turn away new connections until the website has caught up.
+     *
+     * @return True if the server is overloaded, false if not.
+     */
+    public synchronized boolean isOverloaded() {
+        return (inFlight >= (int)limit || queued > 0) &&
+                queued >= Config.getConfig().getAdmissionQueue();
+    }
+
+    /**
+     * Get the current limit on the number of fetches in progress at once.
+     *
+     * @return The current admission limit.
+     */
+    public synchronized int getLimit() {
+        return (int)limit;
+    }
+
+    /**
+     * Get the number of fetches in progress.
+     *
+     * @return The number of fetches in progress.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Get the number of fetches waiting in the queue.
+     *
+     * @return The number of queued fetches.
+     */
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    /**
+     * Get the average latency of recent fetches.
+     *
+     * @return The average fetch latency, in milliseconds.
+     */
+    public synchronized long getAverageLatency() {
+        return (long)averageLatency;
+    }
+
+    /**
+     * Get the number of fetches which have been let in.
+     *
+     * @return The number of admitted fetches.
+     */
+    public synchronized long getAdmitted() {
+        return admitted;
+    }
+
+    /**
+     * Get the number of fetches which have been turned away.
+     *
+     * @return The number of shed fetches.
+     */
+    public synchronized long getShed() {
+        return shed;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server;
+
+import java.util.Random;
+
+/**
+ * The CircuitBreaker stops live data fetches being made to the Bus Tracker
+ * website while it is failing. The outcomes of the most recent fetches are
+ * kept, and a fetch which takes longer than the configured latency counts as a
+ * failure as well as one which errors. Once enough of them have failed, the
+ * breaker opens and fetches are turned away straight away rather than waiting
+ * on the website. After a while a single fetch is let through to see whether
+ * the website has recovered. If it succeeds the breaker closes again, and if
+ * it fails the breaker stays open for twice as long, up to a minute.
+ *
+ * @author Niall Scott
+ */
+public class CircuitBreaker {
+
+    /** Fetches are let through and their outcomes are counted. */
+    private static final int CLOSED = 0;
+    /** Fetches are turned away until the open time has passed. */
+    private static final int OPEN = 1;
+    /** A single fetch has been let through to test the website. */
+    private static final int HALF_OPEN = 2;
+    private static final String[] STATE_NAMES = {
+        "closed", "open", "half-open"
+    };
+
+    /** The longest time the breaker stays open, in milliseconds. */
+    private static final long MAX_OPEN_TIME = 60000;
+
+    private static CircuitBreaker breaker = null;
+
+    private final Random random = new Random();
+    private int state = CLOSED;
+    private boolean[] outcomes = new boolean[0];
+    private int position = 0;
+    private int count = 0;
+    private int failures = 0;
+    private long openTime = 0;
+    private long openUntil = 0;
+    private boolean probing = false;
+    private long trips = 0;
+    private long rejected = 0;
+
+    /**
+     * This constructor is private and can only be called from
+     * getCircuitBreaker().
+     */
+    private CircuitBreaker() {
+        // Nothing to set up.
+    }
+
+    /**
+     * Get the single instance of the CircuitBreaker class, which guards the
+     * live data fetches.
+     *
+     * @return The single instance of the CircuitBreaker class.
+     */
+    public static synchronized CircuitBreaker getCircuitBreaker() {
+        if(breaker == null) breaker = new CircuitBreaker();
+        return breaker;
+    }
+
+    /**
+     * Ask whether a fetch may be made. Once the breaker has been open for
+     * long enough, the next call lets a single fetch through to test the
+     * website. Every fetch which is let through must be followed by a call to
+     * record(), or to abandon() if it is not made after all.
+     *
+     * @return True if the fetch may be made, false if it should be turned
+     * away.
+     */
+    public synchronized boolean allowRequest() {
+        if(state == CLOSED) return true;
+        if(state == OPEN && System.currentTimeMillis() >= openUntil) {
+            state = HALF_OPEN;
+            probing = false;
+        }
+        if(state == HALF_OPEN && !probing) {
+            probing = true;
+            return true;
+        }
+        rejected++;
+        return false;
+    }
+
+    /**
+     * Record that a fetch which was let in has been given up before it was
+     * made, so that another fetch can test the website instead.
+     */
+    public synchronized void abandon() {
+        if(state == HALF_OPEN) probing = false;
+    }
+
+    /**
+     * Record the outcome of a fetch which was let through.
+     *
+     * @param latency How long the fetch took, in milliseconds.
+     * @param failed True if the fetch failed.
+     */
+    public synchronized void record(final long latency, final boolean failed) {
+        Config config = Config.getConfig();
+        boolean bad = failed || latency > config.getBreakerLatency();
+        if(state == HALF_OPEN) {
+            if(bad) {
+                open(Math.min(MAX_OPEN_TIME, openTime * 2));
+            } else {
+                state = CLOSED;
+                probing = false;
+                count = 0;
+                failures = 0;
+            }
+            return;
+        }
+        // Fetches which were already running when the breaker opened.
+        if(state == OPEN) return;
+
+        int window = config.getBreakerWindow();
+        if(outcomes.length != window) {
+            outcomes = new boolean[window];
+            position = 0;
+            count = 0;
+            failures = 0;
+        }
+        if(count == window) {
+            if(outcomes[position]) failures--;
+        } else {
+            count++;
+        }
+        outcomes[position] = bad;
+        if(bad) failures++;
+        position = (position + 1) % window;
+
+        // Wait for half of the window so a few early failures don't trip it.
+        if(count * 2 >= window && failures * 100 >=
+                config.getBreakerThreshold() * count) {
+            trips++;
+            open(config.getBreakerOpenTime());
+        }
+    }
+
+    /**
+     * Open the breaker. The time it stays open is varied by up to a fifth so
+     * that servers sharing the website do not all test it at once.
+     *
+     * @param time How long the breaker should stay open, in milliseconds.
+     */
+    private void open(final long time) {
+        state = OPEN;
+        probing = false;
+        openTime = time;
+        openUntil = System.currentTimeMillis() + time -
+                (long)(random.nextDouble() * time / 5);
+        count = 0;
+        failures = 0;
+        position = 0;
+    }
+
+    /**
+     * Check whether the breaker is closed, which is when fetches are being
+     * made as normal.
+     *
+     * @return True if the breaker is closed.
+     */
+    public synchronized boolean isClosed() {
+        return state == CLOSED;
+    }
+
+    /**
+     * Get the name of the state of the breaker.
+     *
+     * @return "closed", "open" or "half-open".
+     */
+    public synchronized String getState() {
+        return STATE_NAMES[state];
+    }
+
+    /**
+     * Get how long a client should wait before the website is tested again.
+     *
+     * @return How long to wait, in seconds, which is at least 1.
+     */
+    public synchronized int getRetryAfter() {
+        long remaining = openUntil - System.currentTimeMillis();
+        return (int)Math.max(1, (remaining + 999) / 1000);
+    }
+
+    /**
+     * Get the number of times the breaker has opened because too many fetches
+     * failed. Failed tests while the breaker is open are not counted.
+     *
+     * @return The number of times the breaker has opened.
+     */
+    public synchronized long getTrips() {
+        return trips;
+    }
+
+    /**
+     * Get the number of fetches which were turned away because the breaker
+     * was open.
+     *
+     * @return The number of fetches turned away.
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+}
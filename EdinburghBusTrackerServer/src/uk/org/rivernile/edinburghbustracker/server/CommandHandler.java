@@ -0,0 +1,577 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.xml.sax.SAXException;
+import uk.org.rivernile.edinburghbustracker.server.livedata.LiveDataCache;
+import uk.org.rivernile.edinburghbustracker.server.log.Log;
+import uk.org.rivernile.edinburghbustracker.server.metrics.Metrics;
+import uk.org.rivernile.edinburghbustracker.server.stoplocations.Database;
+import uk.org.rivernile.edinburghbustracker.server.stoplocations
+        .DatabaseDeltas;
+
+/**
+ * The CommandHandler class holds the implementation of the line protocol
+ * commands which clients can send to the Bus Tracker Server. It does not know
+ * anything about how the client is connected, so the same command handling can
+ * be used by the thread-per-connection ConnectionHandler and by the
+ * SelectorSocketHandler.
+ *
+ * The stats and getCacheStats commands are only answered for the clients
+ * allowed by the statsaccess config key. Other clients are told they are
+ * unknown commands.
+ *
+ * Every command is written to the access log with its argument, how long it
+ * took, the size of its reply and its outcome.
+ *
+ * @author Niall Scott
+ */
+public class CommandHandler {
+
+    /** The maximum number of stops in a getBusTimesByStopCodes request. */
+    private static final int MAX_BATCH_STOPS = 50;
+    /** The commands which the server understands. */
+    private static final String[] COMMANDS = {
+        "getBusTimesByStopCode", "getBusTimesByStopCodeBinary",
+        "getBusTimesByStopCodes", "getDBURL",
+        "getDBLastModTime", "getDBChecksum", "getDBDeltaChain",
+        "getLatestAndroidClientVersion", "getCacheStats", "stats", "exit"
+    };
+    /** The outcome of a command which was answered in full. */
+    private static final String OUTCOME_OK = "ok";
+    /** The outcome of a command which was answered with stale live data. */
+    private static final String OUTCOME_STALE = "stale";
+    /** The outcome of a command which was turned away as the server is busy. */
+    private static final String OUTCOME_BUSY = "busy";
+    /** The outcome of a command which was answered with an error. */
+    private static final String OUTCOME_ERROR = "error";
+    /** The outcome of a batch command where some of the stops failed. */
+    private static final String OUTCOME_PARTIAL = "partial";
+    /** The outcome of a command whose reply could not be written. */
+    private static final String OUTCOME_FAILED = "failed";
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String LINE_SEPARATOR =
+            System.getProperty("line.separator");
+
+    private static ExecutorService batchExecutor = null;
+
+    private final InetAddress clientAddress;
+
+    /**
+     * Create a new CommandHandler for clients which may never use the stats
+     * commands.
+     */
+    public CommandHandler() {
+        this(null);
+    }
+
+    /**
+     * Create a new CommandHandler for a client. Whether the client may use the
+     * stats and getCacheStats commands depends on its address and the
+     * statsaccess config key.
+     *
+     * @param clientAddress The address of the client, or null if the client
+     * may never use the stats commands.
+     */
+    public CommandHandler(final InetAddress clientAddress) {
+        this.clientAddress = clientAddress;
+    }
+
+    /**
+     * Handle a single line received from a client. The reply to the command,
+     * if any, is written to the out stream.
+     *
+     * @param line The line received from the client, with the line terminator
+     * removed.
+     * @param out Where the reply to the command should be written.
+     * @return True if the connection should remain open, false if the client
+     * has asked for the connection to be closed.
+     * @throws IOException When an error occurs while reading server data.
+     */
+    public boolean handleCommand(final String line, final ResponseWriter out)
+            throws IOException
+    {
+        if(line == null) throw new IllegalArgumentException("The line must " +
+                "not be null.");
+        if(out == null) throw new IllegalArgumentException("The out stream " +
+                "must not be null.");
+
+        String command = line.trim();
+        if(command.length() == 0) return true;
+        String[] splitted = command.split(":");
+        String name = Arrays.asList(COMMANDS).contains(splitted[0]) ?
+                splitted[0] : "unknown";
+        long bytes = out.getBytesWritten();
+        out.setOutcome(null);
+        boolean finished = false;
+        long start = System.nanoTime();
+        try {
+            boolean keepOpen = dispatch(splitted, out);
+            finished = true;
+            return keepOpen;
+        } finally {
+            long latency = System.nanoTime() - start;
+            Metrics.getMetrics().getHistogram("command." + name).recordNanos(
+                    latency);
+            String outcome = out.getOutcome();
+            if(!finished) {
+                outcome = OUTCOME_FAILED;
+            } else if(outcome == null) {
+                outcome = OUTCOME_OK;
+            }
+            Log.getLog().access(name, splitted.length > 1 ? splitted[1] : null,
+                    latency, out.getBytesWritten() - bytes, outcome);
+        }
+    }
+
+    /**
+     * Reply to a line received from a client which could not be run as the
+     * server is too busy. The client is told when to try again, unless it
+     * asked for the connection to be closed. The command is written to the
+     * access log as having been turned away.
+     *
+     * @param line The line received from the client, with the line terminator
+     * removed.
+     * @param out Where the reply to the command should be written.
+     * @param retryAfter How long the client should wait before trying again,
+     * in seconds.
+     * @return True if the connection should remain open, false if the client
+     * has asked for the connection to be closed.
+     * @throws IOException When the reply could not be written.
+     */
+    public boolean turnAway(final String line, final ResponseWriter out,
+            final int retryAfter) throws IOException
+    {
+        if(line == null) throw new IllegalArgumentException("The line must " +
+                "not be null.");
+        if(out == null) throw new IllegalArgumentException("The out stream " +
+                "must not be null.");
+
+        String command = line.trim();
+        if(command.length() == 0) return true;
+        String[] splitted = command.split(":");
+        if(splitted[0].equals("exit")) return false;
+        String name = Arrays.asList(COMMANDS).contains(splitted[0]) ?
+                splitted[0] : "unknown";
+        long bytes = out.getBytesWritten();
+        Metrics.getMetrics().increment("errors.busy");
+        out.setOutcome(OUTCOME_BUSY);
+        out.writeBusy(retryAfter);
+        Log.getLog().access(name, splitted.length > 1 ? splitted[1] : null, 0,
+                out.getBytesWritten() - bytes, OUTCOME_BUSY);
+        return true;
+    }
+
+    /**
+     * Run a command and write its reply.
+     *
+     * @param splitted The command followed by its parameters.
+     * @param out Where the reply to the command should be written.
+     * @return True if the connection should remain open, false if the client
+     * has asked for the connection to be closed.
+     * @throws IOException When an error occurs while writing the reply.
+     */
+    private boolean dispatch(final String[] splitted, final ResponseWriter out)
+            throws IOException
+    {
+        if(splitted[0].equals("getBusTimesByStopCode")) {
+            if(splitted.length != 2) {
+                out.setOutcome(OUTCOME_ERROR);
+                out.writeError(ResponseWriter.ERROR_BAD_REQUEST,
+                        "the number of parameters for " +
+                        "getBusTimesByStopCode is 1.");
+            } else {
+                getBusTimesByStopCode(splitted[1], false, out);
+            }
+        } else if(splitted[0].equals("getBusTimesByStopCodeBinary")) {
+            if(splitted.length != 2) {
+                out.setOutcome(OUTCOME_ERROR);
+                out.writeError(ResponseWriter.ERROR_BAD_REQUEST,
+                        "the number of parameters for " +
+                        "getBusTimesByStopCodeBinary is 1.");
+            } else {
+                getBusTimesByStopCode(splitted[1], true, out);
+            }
+        } else if(splitted[0].equals("getBusTimesByStopCodes")) {
+            if(splitted.length != 2) {
+                out.setOutcome(OUTCOME_ERROR);
+                out.writeError(ResponseWriter.ERROR_BAD_REQUEST,
+                        "the number of parameters for " +
+                        "getBusTimesByStopCodes is 1.");
+            } else {
+                getBusTimesByStopCodes(splitted[1], out);
+            }
+        } else if(splitted[0].equals("getDBURL")) {
+            out.println(Config.getConfig().getDBURL());
+        } else if(splitted[0].equals("getDBLastModTime")) {
+            out.println(ServerMetadata.getServerMetadata().getDBLastModTime());
+        } else if(splitted[0].equals("getDBChecksum")) {
+            out.println(ServerMetadata.getServerMetadata().getDBChecksum());
+        } else if(splitted[0].equals("getDBDeltaChain")) {
+            if(splitted.length != 2) {
+                out.setOutcome(OUTCOME_ERROR);
+                out.writeError(ResponseWriter.ERROR_BAD_REQUEST,
+                        "the number of parameters for getDBDeltaChain is 1.");
+            } else {
+                getDBDeltaChain(splitted[1], out);
+            }
+        } else if(splitted[0].equals("getLatestAndroidClientVersion")) {
+            out.println(ServerMetadata.getServerMetadata()
+                    .getLatestAndroidClientVersion());
+        } else if(splitted[0].equals("getCacheStats") &&
+                Config.getConfig().isStatsAllowed(clientAddress)) {
+            getCacheStats(out);
+        } else if(splitted[0].equals("stats") &&
+                Config.getConfig().isStatsAllowed(clientAddress)) {
+            out.println(ServerStats.getServerStats().getStats());
+        } else if(splitted[0].equals("exit")) {
+            return false;
+        } else {
+            out.setOutcome(OUTCOME_ERROR);
+            out.writeError(ResponseWriter.ERROR_UNKNOWN_COMMAND,
+                    "unknown server command.");
+        }
+        return true;
+    }
+
+    /**
+     * This is the handler for when the getBusTimesByStopCode:stopCode message
+     * is received by the server. It gets the data for that stop from the live
+     * data cache, which contacts the Bus Tracker HTTP website if the data is
+     * not cached, and replies to the client with the JSON representation of
+     * the data which the cache encoded when it was fetched.
+     *
+     * When the getBusTimesByStopCodeBinary:stopCode message is received
+     * instead, the reply is a line holding "#" and the length of the data in
+     * bytes, followed by the data encoded by the LiveDataBinaryCodec.
+     *
+     * @param stopCode The stop code argument supplied in the call from the
+     * client.
+     * @param binary True if the reply should be in the binary form, false if
+     * it should be JSON.
+     * @param out Where the reply should be written.
+     * @throws IOException When the reply could not be written.
+     */
+    private void getBusTimesByStopCode(final String stopCode,
+            final boolean binary, final ResponseWriter out) throws IOException
+    {
+        if(stopCode == null) throw new IllegalArgumentException("The stop " +
+                "code must not be null.");
+        if(stopCode.length() == 0) throw new IllegalArgumentException("The " +
+                "length of the stop code must not be 0.");
+
+        LiveDataCache.Entry entry;
+        try {
+            entry = LiveDataCache.getLiveDataCache().get(stopCode);
+        } catch(MalformedURLException e) {
+            Log.getLog().error("The URL protocol was not recognised.", e);
+            Metrics.getMetrics().increment("errors.upstream");
+            out.setOutcome(OUTCOME_ERROR);
+            out.writeError(ResponseWriter.ERROR_UPSTREAM, null);
+            return;
+        } catch(ServerBusyException e) {
+            Metrics.getMetrics().increment("errors.busy");
+            out.setOutcome(OUTCOME_BUSY);
+            out.writeBusy(e.getRetryAfter());
+            return;
+        } catch(IOException e) {
+            Metrics.getMetrics().increment("errors.upstream");
+            Log.getLog().error("An IOException occurred during the " +
+                    "connection to the web server.", e);
+            out.setOutcome(OUTCOME_ERROR);
+            out.writeError(ResponseWriter.ERROR_UPSTREAM, null);
+            return;
+        } catch(SAXException e) {
+            Metrics.getMetrics().increment("errors.parse");
+            Log.getLog().error("An error occurred while trying to parse the " +
+                    "live data.", e);
+            out.setOutcome(OUTCOME_ERROR);
+            out.writeError(ResponseWriter.ERROR_UPSTREAM, null);
+            return;
+        }
+        if(entry.isStale()) out.setOutcome(OUTCOME_STALE);
+        if(binary) {
+            ByteBuffer body = entry.getBinaryBody();
+            out.write(new ByteBuffer[] {
+                ByteBuffer.wrap(("#" + body.remaining() + LINE_SEPARATOR)
+                        .getBytes(UTF8)), body
+            });
+        } else {
+            out.write(entry);
+        }
+    }
+
+    /**
+     * This is the handler for when the getBusTimesByStopCodes:code1,code2,...
+     * message is received by the server. The data for all of the stops is
+     * fetched concurrently on a pool shared by all clients, so at most the
+     * configured batch parallelism of stops are fetched at once. Any stops
+     * which have not been fetched by the batch deadline are reported as
+     * failed. The reply is a single JSON object with an entry per stop, in the
+     * order the stops were asked for, holding either the stop's data or the
+     * reason it could not be fetched. The stops' data is spliced in to the
+     * reply from the encoded data in the cache entries.
+     *
+     * @param stopCodes The comma separated stop codes argument supplied in
+     * the call from the client.
+     * @param out Where the reply should be written.
+     * @throws IOException When the reply could not be written.
+     */
+    private void getBusTimesByStopCodes(final String stopCodes,
+            final ResponseWriter out) throws IOException
+    {
+        if(stopCodes == null) throw new IllegalArgumentException("The stop " +
+                "codes must not be null.");
+
+        LinkedHashSet<String> codes = new LinkedHashSet<String>();
+        String code;
+        for(String s : stopCodes.split(",")) {
+            code = s.trim();
+            if(code.length() > 0) codes.add(code);
+        }
+        if(codes.isEmpty()) {
+            out.setOutcome(OUTCOME_ERROR);
+            out.writeError(ResponseWriter.ERROR_BAD_REQUEST, "at least 1 " +
+                    "stop code must be given for getBusTimesByStopCodes.");
+            return;
+        }
+        if(codes.size() > MAX_BATCH_STOPS) {
+            out.setOutcome(OUTCOME_ERROR);
+            out.writeError(ResponseWriter.ERROR_BAD_REQUEST, "at most " +
+                    MAX_BATCH_STOPS + " stop codes may be given for " +
+                    "getBusTimesByStopCodes.");
+            return;
+        }
+
+        ArrayList<Callable<LiveDataCache.Entry>> tasks =
+                new ArrayList<Callable<LiveDataCache.Entry>>(codes.size());
+        for(final String c : codes) {
+            tasks.add(new Callable<LiveDataCache.Entry>() {
+                @Override
+                public LiveDataCache.Entry call() throws Exception {
+                    return LiveDataCache.getLiveDataCache().get(c);
+                }
+            });
+        }
+
+        List<Future<LiveDataCache.Entry>> results;
+        try {
+            results = getBatchExecutor().invokeAll(tasks,
+                    Config.getConfig().getBatchTimeout(),
+                    TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        ArrayList<ByteBuffer> reply = new ArrayList<ByteBuffer>(
+                codes.size() * 2 + 1);
+        StringBuilder text = new StringBuilder("+");
+        text.append(LINE_SEPARATOR).append("{\"stops\":[");
+        int i = 0;
+        String error;
+        for(String c : codes) {
+            if(i > 0) text.append(',');
+            text.append("{\"stopCode\":").append(JSONObject.quote(c));
+            error = null;
+            try {
+                ByteBuffer body = results.get(i).get().getBody();
+                text.append(",\"data\":");
+                reply.add(encode(text));
+                reply.add(body);
+            } catch(CancellationException e) {
+                error = "Timed out.";
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = "Interrupted.";
+            } catch(ExecutionException e) {
+                if(e.getCause() instanceof ServerBusyException) {
+                    error = "The server is busy.";
+                    text.append(",\"retryAfter\":").append(
+                            ((ServerBusyException)e.getCause())
+                            .getRetryAfter());
+                } else if(e.getCause() instanceof SAXException) {
+                    error = "The live data could not be parsed.";
+                } else {
+                    error = "The live data could not be fetched.";
+                }
+            }
+            if(error != null) {
+                text.append(",\"error\":").append(JSONObject.quote(error));
+                out.setOutcome(OUTCOME_PARTIAL);
+            }
+            text.append('}');
+            i++;
+        }
+        text.append("]}").append(LINE_SEPARATOR).append('-')
+                .append(LINE_SEPARATOR);
+        reply.add(encode(text));
+        out.write(reply.toArray(new ByteBuffer[reply.size()]));
+    }
+
+    /**
+     * Encode text in to UTF-8 and then clear the text.
+     *
+     * @param text The text to encode.
+     * @return The encoded text.
+     */
+    private static ByteBuffer encode(final StringBuilder text) {
+        ByteBuffer encoded = ByteBuffer.wrap(text.toString().getBytes(UTF8));
+        text.setLength(0);
+        return encoded;
+    }
+
+    /**
+     * Get the thread pool which fetches the stops of getBusTimesByStopCodes
+     * requests. It is shared between all clients and is created the first
+     * time it is needed.
+     *
+     * @return The thread pool for batch requests.
+     */
+    private static synchronized ExecutorService getBatchExecutor() {
+        if(batchExecutor == null) {
+            batchExecutor = Executors.newFixedThreadPool(
+                    Config.getConfig().getBatchParallelism(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            Thread t = new Thread(r, "batch-fetch");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return batchExecutor;
+    }
+
+    /**
+     * This is the handler for when the getCacheStats message is received by
+     * the server. It replies with a single line JSON object describing the
+     * state of the live data cache.
+     *
+     * @param out Where the reply should be written.
+     */
+    private void getCacheStats(final ResponseWriter out) {
+        try {
+            out.println(ServerStats.getServerStats().getCacheJSON()
+                    .toString());
+        } catch(JSONException e) {
+            Log.getLog().error("A JSON exception has occurred.", e);
+            out.setOutcome(OUTCOME_ERROR);
+            out.writeError(ResponseWriter.ERROR_INTERNAL, null);
+        }
+    }
+
+    /**
+     * This is the handler for when the getDBDeltaChain:version message is
+     * received by the server. The version is the last modification time of
+     * the client's database. It replies with a single line JSON object giving
+     * the latest version and the deltas to apply in order to reach it. When
+     * the client's version is too old, or the deltas would be no smaller
+     * than the database, the URL of the whole database is given instead.
+     *
+     * @param version The version of the client's database.
+     * @param out Where the reply should be written.
+     */
+    private void getDBDeltaChain(final String version,
+            final ResponseWriter out)
+    {
+        long from;
+        try {
+            from = Long.parseLong(version.trim());
+        } catch(NumberFormatException e) {
+            out.setOutcome(OUTCOME_ERROR);
+            out.writeError(ResponseWriter.ERROR_BAD_REQUEST, "the database " +
+                    "version must be a number.");
+            return;
+        }
+        String latestVersion = ServerMetadata.getServerMetadata()
+                .getDBLastModTime();
+        long latest;
+        try {
+            latest = Long.parseLong(latestVersion);
+        } catch(NumberFormatException e) {
+            latest = 0;
+        }
+        Config config = Config.getConfig();
+        List<File> chain = null;
+        if(latest > 0) {
+            File db = new File(config.getDBPath() + Database.DB_FILE);
+            chain = DatabaseDeltas.getDatabaseDeltas().getChain(from, latest,
+                    db.length());
+        }
+
+        String dbURL = config.getDBURL();
+        try {
+            JSONObject json = new JSONObject();
+            json.put("version", latestVersion);
+            json.put("full", chain == null);
+            if(chain == null) {
+                json.put("url", dbURL);
+            } else {
+                String base = dbURL.substring(0, dbURL.lastIndexOf('/') + 1) +
+                        DatabaseDeltas.DELTA_DIR;
+                JSONArray deltas = new JSONArray();
+                JSONObject delta;
+                for(File f : chain) {
+                    delta = new JSONObject();
+                    delta.put("from", "" + DatabaseDeltas.getFrom(f));
+                    delta.put("to", "" + DatabaseDeltas.getTo(f));
+                    delta.put("size", f.length());
+                    delta.put("url", base + f.getName());
+                    deltas.put(delta);
+                }
+                json.put("deltas", deltas);
+            }
+            out.println(json.toString());
+        } catch(JSONException e) {
+            Log.getLog().error("A JSON exception has occurred.", e);
+            out.setOutcome(OUTCOME_ERROR);
+            out.writeError(ResponseWriter.ERROR_INTERNAL, null);
+        }
+    }
+}
@@ -25,9 +25,21 @@
 
 package uk.org.rivernile.edinburghbustracker.server;
 
+import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import uk.org.rivernile.edinburghbustracker.server.log.Log;
 
 /**
  * The Config class deals with the configuration of the server. If initConfig()
@@ -35,19 +47,99 @@ import java.io.IOException;
  * default config values will be assumed. The purpose of initConfig() is to read
  * the values from the specified config file.
  *
+ * Each Config object is an immutable snapshot of the configuration. The
+ * current snapshot is held in an atomic reference, so getConfig() never takes
+ * a lock. When the config file changes, or when reload() is called, the file
+ * is read into a new snapshot which then replaces the current one. Code which
+ * needs several values to agree with each other should call getConfig() once
+ * and read them all from the same snapshot. Some values, such as the port
+ * number and the sizes of thread pools, are only read when the server starts
+ * and need a restart to take effect.
+ *
  * @author Niall Scott
  */
 public class Config {
 
-    private static Config config = null;
+    /** Serve each client connection on its own thread. */
+    public static final String FRONTEND_THREAD = "thread";
+    /** Serve all client connections from a selector and a worker pool. */
+    public static final String FRONTEND_NIO = "nio";
+    /** Run client commands on platform threads. */
+    public static final String EXECUTOR_PLATFORM = "platform";
+    /** Run client commands on virtual threads. */
+    public static final String EXECUTOR_VIRTUAL = "virtual";
+    /** Parse departures pages with the LiveDataScanner. */
+    public static final String PARSER_SCANNER = "scanner";
+    /** Parse departures pages with the SAX handler in LiveBusStopData. */
+    public static final String PARSER_SAX = "sax";
+    /** Only write the stops and services which changed since the last build. */
+    public static final String REBUILD_INCREMENTAL = "incremental";
+    /** Rewrite every service when the stops database is built. */
+    public static final String REBUILD_FULL = "full";
+    /** Never answer the stats commands on the line protocol. */
+    public static final String STATS_NONE = "none";
+    /** Only answer the stats commands for clients on the loopback address. */
+    public static final String STATS_LOOPBACK = "loopback";
+    /** Answer the stats commands for every client. */
+    public static final String STATS_ANY = "any";
+
+    /** How long to wait for the config file to settle before reloading. */
+    private static final long RELOAD_DELAY = 500;
+
+    private static final AtomicReference<Config> current =
+            new AtomicReference<Config>();
+    private static String configFile = null;
 
     private int portNumber = 4876;
     private String addressToBind = "0.0.0.0";
-    private int maxConnections = 100;
+    private int maxConnections = 1000;
     private String dbPath = "./";
     private String dbURL = "http://localhost/busstops.db";
-    /** Read only. */
+    private String frontEnd = FRONTEND_THREAD;
+    private int workerThreads = 4;
+    private int maxWorkerThreads = 64;
+    private String executor = EXECUTOR_PLATFORM;
+    private int cacheTTL = 20;
+    private int cacheSize = 1000;
+    private int cacheMemory = 16384;
+    private int batchParallelism = 8;
+    private int batchTimeout = 10;
+    private int upstreamPoolSize = 8;
+    private int upstreamConnectTimeout = 5;
+    private int upstreamReadTimeout = 10;
+    private int upstreamRetries = 2;
+    private int upstreamRetryDelay = 200;
+    private String parser = PARSER_SCANNER;
+    private int dbHttpPort = 0;
+    private int dbHttpThreads = 8;
+    private int httpPort = 0;
+    private int httpThreads = 8;
+    private int admissionMinLimit = 2;
+    private int admissionMaxLimit = 64;
+    private int admissionQueue = 100;
+    private int admissionQueueTimeout = 2000;
+    private int admissionTargetLatency = 1500;
+    private int taggedThreads = 32;
+    private int taggedMaxInFlight = 16;
+    private int idleTimeout = 120;
+    private int upstreamDeadline = 20;
+    private int prefetchBudget = 120;
+    private int prefetchStops = 200;
+    private int prefetchLead = 3;
+    private int cacheStale = 300;
+    private int breakerWindow = 20;
+    private int breakerThreshold = 50;
+    private int breakerLatency = 5000;
+    private int breakerOpenTime = 5;
+    private String accessLog = "access.log";
+    private int crawlParallelism = 4;
+    private int crawlDelay = 100;
+    private String dbRebuild = REBUILD_INCREMENTAL;
+    private int dbDeltas = 10;
+    private String statsAccess = STATS_LOOPBACK;
+    /** The default URL of the Bus Tracker website. */
     private static final String WWW_SITE_URL = "http://old.mybustracker.co.uk/";
+    private String websiteURL = WWW_SITE_URL;
 
     /**
      * Construct and initialise the configuration. This is not a publically
@@ -61,11 +153,27 @@ public class Config {
         if(configFile.length() == 0) throw new IllegalArgumentException("The " +
                 "configFile must have a length greater than 0.");
 
-        int lineNumber = 0;
         try {
-            BufferedReader reader = new BufferedReader(
-                    new FileReader(configFile));
+            read(configFile);
+        } catch (IOException e) {
+            Log.getLog().error("An IOException occurred while dealing " +
+                    "with the config file. The server config is now at " +
+                    "internal defaults due to the exception.", e);
+        }
+    }
 
+    /**
+     * Read the values from a config file into this snapshot. This is only
+     * called before the snapshot is published.
+     *
+     * @param configFile The file path to the config file.
+     * @throws IOException When the config file could not be read.
+     */
+    private void read(final String configFile) throws IOException {
+        int lineNumber = 0;
+        BufferedReader reader = new BufferedReader(
+                new FileReader(configFile));
+        try {
             String input = "";
             String[] keyValue;
             while((input = reader.readLine()) != null) {
@@ -80,12 +188,12 @@ public class Config {
                     try {
                         int tmp = Integer.parseInt(keyValue[1].trim());
                         if(tmp < 1 || tmp > 65535) {
-                            System.err.println("The port range is 1 to 65535.");
+                            Log.getLog().error("The port range is 1 to 65535.");
                         } else {
                             portNumber = tmp;
                         }
                     } catch (NumberFormatException e) {
-                        System.err.println("The port number specified is not " +
+                        Log.getLog().error("The port number specified is not " +
                                 "a valid integer number.");
                     }
                 } else if(keyValue[0].trim().toLowerCase().equals(
@@ -93,9 +201,7 @@ public class Config {
                     addressToBind = keyValue[1].trim();
                 } else if(keyValue[0].trim().toLowerCase().equals(
                         "maxconnections")) {
-                    int tmp = Integer.parseInt(keyValue[1].trim());
-                    if(tmp < 0) System.err.println("The maximum number of "
-                            + "connections must not be less than 0.");
+                    maxConnections = parseInt(keyValue, 0, maxConnections);
                 } else if(keyValue[0].trim().toLowerCase().equals("dbpath")) {
                     dbPath = keyValue[1].trim();
                     //dbPath = addressToBind.replace('/', File.pathSeparatorChar);
@@ -103,19 +209,196 @@ public class Config {
                             //File.pathSeparatorChar);
                 } else if(keyValue[0].trim().toLowerCase().equals("dburl")) {
                     dbURL = keyValue[1].trim();
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "websiteurl")) {
+                    websiteURL = keyValue[1].trim();
+                    if(!websiteURL.endsWith("/")) websiteURL += "/";
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "frontend")) {
+                    String tmp = keyValue[1].trim().toLowerCase();
+                    if(tmp.equals(FRONTEND_THREAD) || tmp.equals(FRONTEND_NIO))
+                    {
+                        frontEnd = tmp;
+                    } else {
+                        Log.getLog().error("The front end must be either \"" +
+                                FRONTEND_THREAD + "\" or \"" + FRONTEND_NIO +
+                                "\".");
+                    }
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "workerthreads")) {
+                    workerThreads = parseInt(keyValue, 1, workerThreads);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "maxworkerthreads")) {
+                    maxWorkerThreads = parseInt(keyValue, 1,
+                            maxWorkerThreads);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "executor")) {
+                    String tmp = keyValue[1].trim().toLowerCase();
+                    if(tmp.equals(EXECUTOR_PLATFORM) ||
+                            tmp.equals(EXECUTOR_VIRTUAL)) {
+                        executor = tmp;
+                    } else {
+                        Log.getLog().error("The executor must be either \"" +
+                                EXECUTOR_PLATFORM + "\" or \"" +
+                                EXECUTOR_VIRTUAL + "\".");
+                    }
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "cachettl")) {
+                    cacheTTL = parseInt(keyValue, 0, cacheTTL);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "cachesize")) {
+                    cacheSize = parseInt(keyValue, 1, cacheSize);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "cachememory")) {
+                    cacheMemory = parseInt(keyValue, 1, cacheMemory);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "batchparallelism")) {
+                    batchParallelism = parseInt(keyValue, 1, batchParallelism);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "batchtimeout")) {
+                    batchTimeout = parseInt(keyValue, 1, batchTimeout);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "upstreampoolsize")) {
+                    upstreamPoolSize = parseInt(keyValue, 1, upstreamPoolSize);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "upstreamconnecttimeout")) {
+                    upstreamConnectTimeout = parseInt(keyValue, 1,
+                            upstreamConnectTimeout);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "upstreamreadtimeout")) {
+                    upstreamReadTimeout = parseInt(keyValue, 1,
+                            upstreamReadTimeout);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "upstreamretries")) {
+                    upstreamRetries = parseInt(keyValue, 0, upstreamRetries);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "upstreamretrydelay")) {
+                    upstreamRetryDelay = parseInt(keyValue, 1,
+                            upstreamRetryDelay);
+                } else if(keyValue[0].trim().toLowerCase().equals("parser")) {
+                    String tmp = keyValue[1].trim().toLowerCase();
+                    if(tmp.equals(PARSER_SCANNER) || tmp.equals(PARSER_SAX)) {
+                        parser = tmp;
+                    } else {
+                        Log.getLog().error("The parser must be either \"" +
+                                PARSER_SCANNER + "\" or \"" + PARSER_SAX +
+                                "\".");
+                    }
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "dbhttpport")) {
+                    dbHttpPort = parseInt(keyValue, 0, dbHttpPort);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "dbhttpthreads")) {
+                    dbHttpThreads = parseInt(keyValue, 1, dbHttpThreads);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "httpport")) {
+                    httpPort = parseInt(keyValue, 0, httpPort);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "httpthreads")) {
+                    httpThreads = parseInt(keyValue, 1, httpThreads);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "admissionminlimit")) {
+                    admissionMinLimit = parseInt(keyValue, 1,
+                            admissionMinLimit);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "admissionmaxlimit")) {
+                    admissionMaxLimit = parseInt(keyValue, 1,
+                            admissionMaxLimit);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "admissionqueue")) {
+                    admissionQueue = parseInt(keyValue, 0, admissionQueue);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "admissionqueuetimeout")) {
+                    admissionQueueTimeout = parseInt(keyValue, 0,
+                            admissionQueueTimeout);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "admissiontargetlatency")) {
+                    admissionTargetLatency = parseInt(keyValue, 1,
+                            admissionTargetLatency);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "taggedthreads")) {
+                    taggedThreads = parseInt(keyValue, 1, taggedThreads);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "taggedmaxinflight")) {
+                    taggedMaxInFlight = parseInt(keyValue, 1,
+                            taggedMaxInFlight);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "idletimeout")) {
+                    idleTimeout = parseInt(keyValue, 1, idleTimeout);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "upstreamdeadline")) {
+                    upstreamDeadline = parseInt(keyValue, 0,
+                            upstreamDeadline);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "prefetchbudget")) {
+                    prefetchBudget = parseInt(keyValue, 0, prefetchBudget);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "prefetchstops")) {
+                    prefetchStops = parseInt(keyValue, 1, prefetchStops);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "prefetchlead")) {
+                    prefetchLead = parseInt(keyValue, 1, prefetchLead);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "cachestale")) {
+                    cacheStale = parseInt(keyValue, 0, cacheStale);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "breakerwindow")) {
+                    breakerWindow = parseInt(keyValue, 1, breakerWindow);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "breakerthreshold")) {
+                    breakerThreshold = Math.min(100, parseInt(keyValue, 1,
+                            breakerThreshold));
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "breakerlatency")) {
+                    breakerLatency = parseInt(keyValue, 1, breakerLatency);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "breakeropentime")) {
+                    breakerOpenTime = parseInt(keyValue, 1, breakerOpenTime);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "accesslog")) {
+                    accessLog = keyValue[1].trim();
+                    if(accessLog.toLowerCase().equals("none")) accessLog = "";
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "crawlparallelism")) {
+                    crawlParallelism = parseInt(keyValue, 1, crawlParallelism);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "crawldelay")) {
+                    crawlDelay = parseInt(keyValue, 0, crawlDelay);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "dbrebuild")) {
+                    String tmp = keyValue[1].trim().toLowerCase();
+                    if(tmp.equals(REBUILD_INCREMENTAL) ||
+                            tmp.equals(REBUILD_FULL)) {
+                        dbRebuild = tmp;
+                    } else {
+                        Log.getLog().error("The dbrebuild must be either \"" +
+                                REBUILD_INCREMENTAL + "\" or \"" +
+                                REBUILD_FULL + "\".");
+                    }
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "dbdeltas")) {
+                    dbDeltas = parseInt(keyValue, 0, dbDeltas);
+                } else if(keyValue[0].trim().toLowerCase().equals(
+                        "statsaccess")) {
+                    String tmp = keyValue[1].trim().toLowerCase();
+                    if(tmp.equals(STATS_NONE) || tmp.equals(STATS_LOOPBACK) ||
+                            tmp.equals(STATS_ANY)) {
+                        statsAccess = tmp;
+                    } else {
+                        Log.getLog().error("The statsaccess must be one of \"" +
+                                STATS_NONE + "\", \"" + STATS_LOOPBACK +
+                                "\" or \"" + STATS_ANY + "\".");
+                    }
                 } else {
-                    System.err.println("Invalid config key \"" + keyValue[0] +
+                    Log.getLog().error("Invalid config key \"" + keyValue[0] +
                             "\".");
                 }
             }
-            reader.close();
         } catch (IOException e) {
-            System.err.println("The following IOException occurred while " +
-                    "dealing with the config file on line number " +
-                    lineNumber + ": ");
-            System.err.println(e.toString());
-            System.err.println("The server config is now at internal " +
-                    "defaults due to the exception.");
+            throw new IOException("Error on line number " + lineNumber +
+                    ": " + e.getMessage(), e);
+        } finally {
+            reader.close();
         }
     }
     
@@ -127,15 +410,48 @@ public class Config {
         // Use preconfigured defaults
     }
 
+    /**
+     * Parse the value of an integer config key. If the value is not a valid
+     * integer or is less than the minimum, an error is printed and the
+     * current value is kept.
+     *
+     * @param keyValue The config key and its value, as split from the config
+     * file line.
+     * @param min The minimum allowed value.
+     * @param current The current value of the key.
+     * @return The parsed value, or current if the value is invalid.
+     */
+    private static int parseInt(final String[] keyValue, final int min,
+            final int current) {
+        String key = keyValue[0].trim();
+        try {
+            int tmp = Integer.parseInt(keyValue[1].trim());
+            if(tmp < min) {
+                Log.getLog().error("The value of \"" + key + "\" must not " +
+                        "be less than " + min + ".");
+                return current;
+            }
+            return tmp;
+        } catch (NumberFormatException e) {
+            Log.getLog().error("The value of \"" + key + "\" is not a valid " +
+                    "integer number.");
+            return current;
+        }
+    }
+
     /**
      * Initialise the configuration.
      *
      * @param configFile The path to the config file.
      * @return An instance of the config manager.
      */
-    public static Config initConfig(final String configFile) {
-        if(config == null) config = new Config(configFile);
-        return config;
+    public static synchronized Config initConfig(final String configFile) {
+        if(current.get() == null) {
+            current.compareAndSet(null, new Config(configFile));
+            Config.configFile = configFile;
+            startWatching();
+        }
+        return current.get();
     }
 
     /**
@@ -145,8 +461,150 @@ public class Config {
      * @return An instance of the config manager.
      */
     public static Config getConfig() {
-        if(config == null) config = new Config();
-            return config;
+        Config config = current.get();
+        if(config == null) {
+            current.compareAndSet(null, new Config());
+            config = current.get();
+        }
+        return config;
+    }
+
+    /**
+     * Read the config file again and replace the current snapshot with the
+     * new values. If the file cannot be read, the current snapshot is kept.
+     * Keys which are only read when the server starts are reported if they
+     * have changed, as their new values will not be used until a restart.
+     *
+     * @return True if the config was reloaded, false if it was not.
+     */
+    public static synchronized boolean reload() {
+        if(configFile == null) {
+            Log.getLog().error("The config cannot be reloaded as it was not " +
+                    "read from a file.");
+            return false;
+        }
+        Config fresh = new Config();
+        try {
+            fresh.read(configFile);
+        } catch(IOException e) {
+            Log.getLog().error("An IOException occurred while reloading " +
+                    "the config file, the current config has been kept.", e);
+            return false;
+        }
+        Config old = current.getAndSet(fresh);
+        if(old != null) fresh.reportRestartKeys(old);
+        Log.getLog().info("The config has been reloaded from " + configFile +
+                ".");
+        return true;
+    }
+
+    /**
+     * Print a warning for each key which has a different value from the
+     * previous snapshot but is only read when the server starts.
+     *
+     * @param old The snapshot which this one has replaced.
+     */
+    private void reportRestartKeys(final Config old) {
+        warnIfChanged("port", portNumber != old.portNumber);
+        warnIfChanged("bindaddress", !addressToBind.equals(old.addressToBind));
+        warnIfChanged("dbpath", !dbPath.equals(old.dbPath));
+        warnIfChanged("frontend", !frontEnd.equals(old.frontEnd));
+        warnIfChanged("workerthreads", workerThreads != old.workerThreads);
+        warnIfChanged("maxworkerthreads",
+                maxWorkerThreads != old.maxWorkerThreads);
+        warnIfChanged("executor", !executor.equals(old.executor));
+        warnIfChanged("batchparallelism",
+                batchParallelism != old.batchParallelism);
+        warnIfChanged("upstreampoolsize",
+                upstreamPoolSize != old.upstreamPoolSize);
+        warnIfChanged("dbhttpport", dbHttpPort != old.dbHttpPort);
+        warnIfChanged("dbhttpthreads", dbHttpThreads != old.dbHttpThreads);
+        warnIfChanged("httpport", httpPort != old.httpPort);
+        warnIfChanged("httpthreads", httpThreads != old.httpThreads);
+        warnIfChanged("taggedthreads", taggedThreads != old.taggedThreads);
+    }
+
+    /**
+     * Print a warning if a key which needs a restart has changed.
+     *
+     * @param key The name of the config key.
+     * @param changed True if the value of the key has changed.
+     */
+    private static void warnIfChanged(final String key,
+            final boolean changed) {
+        if(changed) {
+            Log.getLog().error("The config key \"" + key + "\" has changed " +
+                    "but will only take effect when the server is restarted.");
+        }
+    }
+
+    /**
+     * Start a daemon thread which watches the directory holding the config
+     * file and reloads the config shortly after the file changes. Editors
+     * often write a file in several steps, so each change restarts a short
+     * delay and the reload happens once the file has settled. The reload is
+     * done on the watching thread itself, so it never holds up the shared
+     * timer. If the directory cannot be watched, the config can still be
+     * reloaded over JMX.
+     */
+    private static void startWatching() {
+        File file = new File(configFile).getAbsoluteFile();
+        final Path dir = file.getParentFile().toPath();
+        final String name = file.getName();
+        final WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch(IOException e) {
+            Log.getLog().error("Unable to watch the config file for " +
+                    "changes.", e);
+            return;
+        }
+
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                WatchKey key;
+                boolean changed;
+                long reloadAt = 0;
+                long wait;
+                while(true) {
+                    try {
+                        if(reloadAt == 0) {
+                            key = watcher.take();
+                        } else {
+                            wait = reloadAt - System.currentTimeMillis();
+                            key = wait > 0 ? watcher.poll(wait,
+                                    TimeUnit.MILLISECONDS) : null;
+                            if(key == null) {
+                                reloadAt = 0;
+                                reload();
+                                continue;
+                            }
+                        }
+                    } catch(InterruptedException e) {
+                        return;
+                    } catch(ClosedWatchServiceException e) {
+                        return;
+                    }
+                    changed = false;
+                    for(WatchEvent<?> event : key.pollEvents()) {
+                        // Overflowed events have no context.
+                        if(event.context() == null
+                                || name.equals(event.context().toString())) {
+                            changed = true;
+                        }
+                    }
+                    if(changed) {
+                        reloadAt = System.currentTimeMillis() + RELOAD_DELAY;
+                    }
+                    if(!key.reset()) return;
+                }
+            }
+        }, "config-watcher");
+        t.setDaemon(true);
+        t.start();
     }
 
     /**
@@ -168,7 +626,12 @@ public class Config {
     }
 
     /**
-     * Get the max number of connections to the server.
+     * Get the max number of connections to the server. This is a ceiling on
+     * the number of open sockets, so it should be well above the number of
+     * clients expected at once. Load is shed before it is reached, as new
+     * connections are told that the server is busy while the
+     * AdmissionController is turning fetches away. A value of 0 means there
+     * is no limit.
      *
      * @return The max number of connections to the server.
      */
@@ -177,12 +640,13 @@ public class Config {
     }
 
     /**
-     * Get the URL of the main bus tracker website.
+     * Get the URL of the main bus tracker website. This can be changed to
+     * point the server at a stub of the website for load testing.
      *
-     * @return The URL of the main bus tracker website.
+     * @return The URL of the main bus tracker website, ending with a "/".
      */
     public String getMainWebsiteURL() {
-        return WWW_SITE_URL;
+        return websiteURL;
     }
 
     /**
@@ -204,4 +668,463 @@ public class Config {
     public String getDBURL() {
         return dbURL;
     }
-}
\ No newline at end of file
+
+    /**
+     * Get the front end which accepts and serves client connections. This is
+     * either FRONTEND_THREAD or FRONTEND_NIO.
+     *
+     * @return The front end which serves client connections.
+     */
+    public String getFrontEnd() {
+        return frontEnd;
+    }
+
+    /**
+     * Get the number of worker threads which are kept to execute client
+     * commands when the NIO front end is in use. More are started while they
+     * are all busy, up to the maximum number of worker threads.
+     *
+     * @return The number of worker threads.
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Get the most clients whose commands may be executed at once when the
+     * NIO front end is in use. This is never less than the number of worker
+     * threads. A command which arrives while this many clients are being
+     * served is told that the server is busy.
+     *
+     * @return The maximum number of worker threads.
+     */
+    public int getMaxWorkerThreads() {
+        return Math.max(workerThreads, maxWorkerThreads);
+    }
+
+    /**
+     * Get the kind of thread client commands are run on. With the thread
+     * front end this is the thread of each ConnectionHandler, and with the
+     * NIO front end it is the worker thread. This is either
+     * EXECUTOR_PLATFORM or EXECUTOR_VIRTUAL.
+     *
+     * @return The kind of thread connections are run on.
+     */
+    public String getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Get how long live departure data is cached for before it is fetched
+     * again. A value of 0 means the data is not cached. In the config file
+     * this is given in seconds.
+     *
+     * @return The time to live of cached live departure data, in
+     * milliseconds.
+     */
+    public long getCacheTTL() {
+        return cacheTTL * 1000L;
+    }
+
+    /**
+     * Get the maximum number of stops which live departure data is cached
+     * for.
+     *
+     * @return The maximum number of cached stops.
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Get the maximum amount of memory which the encoded replies held in the
+     * live data cache may use. In the config file this is given in kilobytes.
+     *
+     * @return The maximum memory used by the live data cache, in bytes.
+     */
+    public long getCacheMemory() {
+        return cacheMemory * 1024L;
+    }
+
+    /**
+     * Get the maximum number of stops which are fetched at the same time when
+     * serving getBusTimesByStopCodes requests.
+     *
+     * @return The maximum number of stops fetched at the same time.
+     */
+    public int getBatchParallelism() {
+        return batchParallelism;
+    }
+
+    /**
+     * Get how long a getBusTimesByStopCodes request may take before the stops
+     * which have not been fetched yet are reported as failed. In the config
+     * file this is given in seconds.
+     *
+     * @return The deadline of a getBusTimesByStopCodes request, in
+     * milliseconds.
+     */
+    public long getBatchTimeout() {
+        return batchTimeout * 1000L;
+    }
+
+    /**
+     * Get the maximum number of connections which are open to the Bus Tracker
+     * website at the same time. This is also how many idle connections are
+     * kept alive for reuse.
+     *
+     * @return The size of the upstream connection pool.
+     */
+    public int getUpstreamPoolSize() {
+        return upstreamPoolSize;
+    }
+
+    /**
+     * Get how long to wait for a connection to the Bus Tracker website to be
+     * established. In the config file this is given in seconds.
+     *
+     * @return The upstream connect timeout, in milliseconds.
+     */
+    public int getUpstreamConnectTimeout() {
+        return upstreamConnectTimeout * 1000;
+    }
+
+    /**
+     * Get how long to wait for data from the Bus Tracker website before
+     * giving up. In the config file this is given in seconds.
+     *
+     * @return The upstream read timeout, in milliseconds.
+     */
+    public int getUpstreamReadTimeout() {
+        return upstreamReadTimeout * 1000;
+    }
+
+    /**
+     * Get how many times a failed request to the Bus Tracker website is
+     * retried.
+     *
+     * @return The number of upstream retries.
+     */
+    public int getUpstreamRetries() {
+        return upstreamRetries;
+    }
+
+    /**
+     * Get the base delay before retrying a failed request to the Bus Tracker
+     * website. The delay doubles with each failed attempt.
+     *
+     * @return The base upstream retry delay, in milliseconds.
+     */
+    public long getUpstreamRetryDelay() {
+        return upstreamRetryDelay;
+    }
+
+    /**
+     * Get which parser is used for the departures pages of the Bus Tracker
+     * website. This is either PARSER_SCANNER or PARSER_SAX.
+     *
+     * @return The departures page parser.
+     */
+    public String getParser() {
+        return parser;
+    }
+
+    /**
+     * Get the port the bus stop database is served on over HTTP. The
+     * database is not served when this is 0.
+     *
+     * @return The port the database is served on, or 0 if it is not served.
+     */
+    public int getDBHttpPort() {
+        return dbHttpPort;
+    }
+
+    /**
+     * Get the number of threads which send the bus stop database to clients.
+     * This is the most downloads which can be in progress at once.
+     *
+     * @return The number of database download threads.
+     */
+    public int getDBHttpThreads() {
+        return dbHttpThreads;
+    }
+
+    /**
+     * Get the port the HTTP gateway listens on. The HTTP gateway is not
+     * started when this is 0.
+     *
+     * @return The port the HTTP gateway listens on, or 0 if it is disabled.
+     */
+    public int getHttpPort() {
+        return httpPort;
+    }
+
+    /**
+     * Get the number of threads which handle requests to the HTTP gateway.
+     *
+     * @return The number of HTTP gateway threads.
+     */
+    public int getHttpThreads() {
+        return httpThreads;
+    }
+
+    /**
+     * Get the lowest number of live data fetches which the admission
+     * controller allows to be in progress at once.
+     *
+     * @return The lowest admission limit.
+     */
+    public int getAdmissionMinLimit() {
+        return admissionMinLimit;
+    }
+
+    /**
+     * Get the highest number of live data fetches which the admission
+     * controller allows to be in progress at once.
+     *
+     * @return The highest admission limit.
+     */
+    public int getAdmissionMaxLimit() {
+        return Math.max(admissionMinLimit, admissionMaxLimit);
+    }
+
+    /**
+     * Get the number of live data fetches which may wait for the admission
+     * controller to let them in before further fetches are turned away.
+     *
+     * @return The length of the admission queue.
+     */
+    public int getAdmissionQueue() {
+        return admissionQueue;
+    }
+
+    /**
+     * Get how long a live data fetch waits in the admission queue before it
+     * is turned away.
+     *
+     * @return The admission queue timeout, in milliseconds.
+     */
+    public long getAdmissionQueueTimeout() {
+        return admissionQueueTimeout;
+    }
+
+    /**
+     * Get the upstream latency above which the admission controller treats
+     * the Bus Tracker website as overloaded and lowers its limit.
+     *
+     * @return The target upstream latency, in milliseconds.
+     */
+    public long getAdmissionTargetLatency() {
+        return admissionTargetLatency;
+    }
+
+    /**
+     * Get the number of threads which run the commands of clients in tagged
+     * mode. These are shared between all clients.
+     *
+     * @return The number of threads for tagged commands.
+     */
+    public int getTaggedThreads() {
+        return taggedThreads;
+    }
+
+    /**
+     * Get the maximum number of tagged commands a single client may have
+     * running at once. Commands sent beyond this are queued, up to a further
+     * four times this amount, after which they are turned away. With
+     * platform threads, a client is also held to its fair share of the
+     * tagged command threads.
+     *
+     * @return The maximum number of tagged commands in flight per client.
+     */
+    public int getTaggedMaxInFlight() {
+        return taggedMaxInFlight;
+    }
+
+    /**
+     * Get how long a client connection may sit idle before it is closed.
+     * Connections which are waiting on a reply are not idle. In the config
+     * file this is given in seconds.
+     *
+     * @return The idle timeout, in milliseconds.
+     */
+    public long getIdleTimeout() {
+        return idleTimeout * 1000L;
+    }
+
+    /**
+     * Get the longest time a request to the Bus Tracker website may take,
+     * including all of its retries, before it is given up on. A value of 0
+     * means there is no deadline. In the config file this is given in
+     * seconds.
+     *
+     * @return The upstream deadline, in milliseconds.
+     */
+    public long getUpstreamDeadline() {
+        return upstreamDeadline * 1000L;
+    }
+
+    /**
+     * Get the most requests per minute which may be made to the Bus Tracker
+     * website to refresh popular stops before their cache entries expire. A
+     * value of 0 turns prefetching off.
+     *
+     * @return The prefetch budget, in requests per minute.
+     */
+    public int getPrefetchBudget() {
+        return prefetchBudget;
+    }
+
+    /**
+     * Get the number of the most requested stops which are kept fresh by
+     * prefetching.
+     *
+     * @return The number of stops which may be prefetched.
+     */
+    public int getPrefetchStops() {
+        return prefetchStops;
+    }
+
+    /**
+     * Get how long before a cache entry expires it may be refreshed by
+     * prefetching. In the config file this is given in seconds.
+     *
+     * @return The prefetch lead time, in milliseconds.
+     */
+    public long getPrefetchLead() {
+        return prefetchLead * 1000L;
+    }
+
+    /**
+     * Get how long after a cache entry expires it may still be served while
+     * the Bus Tracker website is failing. A value of 0 means expired entries
+     * are never served. In the config file this is given in seconds.
+     *
+     * @return How long expired entries are kept, in milliseconds.
+     */
+    public long getCacheStale() {
+        return cacheStale * 1000L;
+    }
+
+    /**
+     * Get the number of recent live data fetches whose outcomes the circuit
+     * breaker looks at.
+     *
+     * @return The size of the circuit breaker window.
+     */
+    public int getBreakerWindow() {
+        return breakerWindow;
+    }
+
+    /**
+     * Get the percentage of recent live data fetches which must fail or be
+     * slow for the circuit breaker to open.
+     *
+     * @return The circuit breaker threshold, as a percentage.
+     */
+    public int getBreakerThreshold() {
+        return breakerThreshold;
+    }
+
+    /**
+     * Get how long a live data fetch may take before the circuit breaker
+     * counts it as a failure. In the config file this is given in
+     * milliseconds.
+     *
+     * @return The circuit breaker latency, in milliseconds.
+     */
+    public long getBreakerLatency() {
+        return breakerLatency;
+    }
+
+    /**
+     * Get how long the circuit breaker stays open the first time it opens,
+     * before a fetch is let through to test the website. In the config file
+     * this is given in seconds.
+     *
+     * @return The circuit breaker open time, in milliseconds.
+     */
+    public long getBreakerOpenTime() {
+        return breakerOpenTime * 1000L;
+    }
+
+    /**
+     * Get the file which the access log is written to. In the config file,
+     * a value of "none" turns the access log off.
+     *
+     * @return The path of the access log, or an empty String if there is no
+     * access log.
+     */
+    public String getAccessLog() {
+        return accessLog;
+    }
+
+    /**
+     * Get the number of service points files which may be fetched at once
+     * while the stops database is being created.
+     *
+     * @return The number of crawler threads.
+     */
+    public int getCrawlParallelism() {
+        return crawlParallelism;
+    }
+
+    /**
+     * Get the shortest time between starting one service points fetch and
+     * starting the next while the stops database is being created.
+     *
+     * @return The crawl delay, in milliseconds.
+     */
+    public long getCrawlDelay() {
+        return crawlDelay;
+    }
+
+    /**
+     * Get how the stops database is built. An incremental build only looks
+     * at the services whose stops changed since the previous build, going by
+     * the hash kept for each service. A full build ignores those hashes and
+     * compares the stops of every service row by row. Both only write and
+     * log real differences.
+     *
+     * @return Either REBUILD_INCREMENTAL or REBUILD_FULL.
+     */
+    public String getDBRebuild() {
+        return dbRebuild;
+    }
+
+    /**
+     * Get the number of delta files which are kept between successive
+     * versions of the stops database. This is also the longest chain of
+     * deltas a client can be given before it has to download the whole
+     * database. A value of 0 means no deltas are made.
+     *
+     * @return The number of database deltas to keep.
+     */
+    public int getDBDeltas() {
+        return dbDeltas;
+    }
+
+    /**
+     * Get which clients of the line protocol may use the stats and
+     * getCacheStats commands. This is one of STATS_NONE, STATS_LOOPBACK or
+     * STATS_ANY. The stats are always available through JMX.
+     *
+     * @return Which clients may use the stats commands.
+     */
+    public String getStatsAccess() {
+        return statsAccess;
+    }
+
+    /**
+     * Whether a client at the given address may use the stats and
+     * getCacheStats commands.
+     *
+     * @param address The address of the client, or null if it is not known.
+     * @return True if the client may see the stats, false if not.
+     */
+    public boolean isStatsAllowed(final InetAddress address) {
+        if(statsAccess.equals(STATS_ANY)) return true;
+        if(statsAccess.equals(STATS_NONE) || address == null) return false;
+        return address.isLoopbackAddress();
+    }
+}
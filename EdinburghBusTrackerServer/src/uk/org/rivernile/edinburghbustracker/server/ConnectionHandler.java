@@ -25,28 +25,23 @@
 
 package uk.org.rivernile.edinburghbustracker.server;
 
-import uk.org.rivernile.edinburghbustracker.server.livedata.LiveBusStopData;
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.net.Socket;
-import java.net.URL;
-import org.xml.sax.ContentHandler;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.XMLReaderFactory;
-import uk.org.rivernile.edinburghbustracker.server.stoplocations.Database;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import uk.org.rivernile.edinburghbustracker.server.log.Log;
 
 /**
  * The ConnectionHandler class deals with the individual client connections to
  * the Bus Tracker Server and the requests that each of these clients may have.
+ * Connections which sit idle for longer than the configured idle timeout are
+ * closed by the HashedWheelTimer.
  *
  * @author Niall Scott
  */
@@ -55,7 +50,12 @@ public class ConnectionHandler implements Runnable {
     private Socket clientSocket;
     private IncomingSocketHandler socketHandler;
     private BufferedReader clientIn;
-    private PrintWriter clientOut;
+    private ResponseWriter clientOut;
+    private final CommandHandler commandHandler;
+    private volatile TaggedSession session = null;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile boolean handling = false;
+    private volatile HashedWheelTimer.Timeout idleTimeout;
 
     /**
      * Create a new ConnectionHandler.
@@ -73,16 +73,15 @@ public class ConnectionHandler implements Runnable {
                 "socket handler instance must not be null.");
         this.clientSocket = socket;
         this.socketHandler = socketHandler;
+        commandHandler = new CommandHandler(socket.getInetAddress());
         try {
             clientIn = new BufferedReader(new InputStreamReader(
                     socket.getInputStream()));
-            clientOut = new PrintWriter(socket.getOutputStream(), true);
+            clientOut = new SocketResponseWriter(socket);
         } catch(IOException e) {
-            System.err.println("Exception while setting up socket " +
-                    "input/output streams:");
-            System.err.println(e.toString());
-            System.err.println("Client IP address: " +
-                    socket.getInetAddress().getHostAddress());
+            Log.getLog().error("Exception while setting up socket " +
+                    "input/output streams for client " +
+                    socket.getInetAddress().getHostAddress() + ".", e);
         }
     }
 
@@ -93,49 +92,34 @@ public class ConnectionHandler implements Runnable {
     @Override
     public void run() {
         String line;
-        String[] splitted;
+        idleTimeout = HashedWheelTimer.getTimer().schedule(idleCheck,
+                Config.getConfig().getIdleTimeout(), TimeUnit.MILLISECONDS);
         try {
             while((line = clientIn.readLine()) != null) {
-                line = line.trim();
-                if(line.length() == 0) continue;
-                splitted = line.split(":");
-                if(splitted[0].equals("getBusTimesByStopCode")) {
-                    if(splitted.length != 2) {
-                        clientOut.println("Error: the number of parameters " +
-                                "for getBusTimesByStopCode is 1.");
-                    } else {
-                        getBusTimesByStopCode(splitted[1]);
-                    }
-                } else if(splitted[0].equals("getDBURL")) {
-                    clientOut.println(Config.getConfig().getDBURL());
-                } else if(splitted[0].equals("getDBLastModTime")) {
-                    File f = new File(Database.LAST_MOD_FILE);
-                    if(!f.exists() || f.length() == 0L) {
-                        clientOut.println("0");
-                        continue;
-                    }
-                    BufferedReader in = new BufferedReader(new FileReader(f));
-                    clientOut.println(in.readLine());
-                    in.close();
-                } else if(splitted[0].equals("getLatestAndroidClientVersion")) {
-                    File f = new File("latest.android");
-                    if(!f.exists() || f.length() == 0L) {
-                        clientOut.println("Unknown");
-                        continue;
-                    }
-                    BufferedReader in = new BufferedReader(new FileReader(f));
-                    clientOut.println(in.readLine());
-                    in.close();
-                } else if(splitted[0].equals("exit")) {
+                lastActivity = System.currentTimeMillis();
+                handling = true;
+                if(session != null) {
+                    if(!session.submit(line)) break;
+                } else if(TaggedSession.isEnableCommand(line)) {
+                    session = new TaggedSession(commandHandler, sink);
+                    clientOut.println(TaggedSession.ENABLE_REPLY);
+                } else if(!commandHandler.handleCommand(line, clientOut)) {
                     clientSocket.close();
                     break;
-                } else {
-                    clientOut.println("Error: unknown server command.");
                 }
+                handling = false;
+                lastActivity = System.currentTimeMillis();
             }
+            // Tagged commands which are still in flight get their replies
+            // before the connection is closed.
+            if(session != null) session.awaitIdle();
         } catch(IOException e) {
             // The clientSocket has probably been closed.
+        } catch(InterruptedException e) {
+            // The server is stopping.
         } finally {
+            idleTimeout.cancel();
+            if(session != null) session.close();
             try {
                 clientIn.close();
                 clientOut.close();
@@ -148,51 +132,100 @@ public class ConnectionHandler implements Runnable {
     }
 
     /**
-     * This is the handler for when the getBusTimesByStopCode:stopCode message
-     * is received by the server. It contacts the Bus Tracker HTTP website to
-     * retrieve the data for that stop and transforms that data in to JSON
-     * representation and replies to the client.
-     *
-     * @param stopCode The stop code argument supplied in the call from the
-     * client.
+     * Close the connection if it has been idle for longer than the idle
+     * timeout, or check again once it could have been. Closing the socket
+     * wakes up the connection's thread, which is blocked reading from it. This
+     * is run on the timer thread.
      */
-    private void getBusTimesByStopCode(final String stopCode) {
-        if(stopCode == null) throw new IllegalArgumentException("The stop " +
-                "code must not be null.");
-        if(stopCode.length() == 0) throw new IllegalArgumentException("The " +
-                "length of the stop code must not be 0.");
+    private final Runnable idleCheck = new Runnable() {
+        @Override
+        public void run() {
+            if(clientSocket.isClosed()) return;
+            long timeout = Config.getConfig().getIdleTimeout();
+            long idle = System.currentTimeMillis() - lastActivity;
+            TaggedSession s = session;
+            if(handling || (s != null && s.isBusy())) {
+                idle = 0;
+            } else if(idle >= timeout) {
+                try {
+                    clientSocket.close();
+                } catch(IOException e) {
+                    // Assume the socket is already closed.
+                }
+                return;
+            }
+            idleTimeout = HashedWheelTimer.getTimer().schedule(this,
+                    timeout - idle, TimeUnit.MILLISECONDS);
+        }
+    };
 
-        try {
-            URL url = new URL(Config.getConfig().getMainWebsiteURL() +
-                    "getBusStopDepartures.php?refreshCount=0&clientType=" +
-                    "b&busStopCode=" + stopCode + "&busStopDay=0&" +
-                    "busStopService=0&numberOfPassage=4&busStopTime=&" +
-                    "busStopDestination=0");
-            HttpURLConnection connection =
-                    (HttpURLConnection)url.openConnection();
-            XMLReader parser = XMLReaderFactory.createXMLReader();
-            ContentHandler busStopData = new LiveBusStopData();
-            parser.setContentHandler(busStopData);
-            InputStream in = connection.getInputStream();
-            InputSource source = new InputSource(in);
-            parser.parse(source);
-            in.close();
-            connection.disconnect();
-            LiveBusStopData stopData = (LiveBusStopData)busStopData;
-            clientOut.println("+");
-            stopData.writeJSONToStream(clientOut);
-            clientOut.println();
-            clientOut.println("-");
-        } catch(MalformedURLException e) {
-            System.err.println("The URL protocol was not recognised.");
-        } catch(IOException e) {
-            System.err.println("An IOException occurred during the connection" +
-                    " to the web server. Error:");
-            System.err.println(e.toString());
-        } catch(SAXException e) {
-            System.err.println("An error occurred while trying to initialise " +
-                    "the XML parser.");
-            System.err.println(e.toString());
+    /**
+     * Replies to tagged commands are written to the socket one whole reply at
+     * a time, as they are sent from many threads.
+     */
+    private final TaggedSession.Sink sink = new TaggedSession.Sink() {
+        @Override
+        public void write(final ByteBuffer[] buffers) throws IOException {
+            synchronized(clientOut) {
+                clientOut.write(buffers);
+            }
+        }
+
+        @Override
+        public void commandFinished() {
+            // Nothing to do, the connection waits on the session itself.
+        }
+    };
+
+    /**
+     * The SocketResponseWriter writes replies to the client's socket. Encoded
+     * data is written straight to the socket's channel, when it has one.
+     */
+    private static class SocketResponseWriter extends ResponseWriter {
+
+        private final Socket socket;
+
+        /**
+         * Create a new SocketResponseWriter.
+         *
+         * @param socket The socket connected to the client.
+         * @throws IOException When the socket's output stream cannot be
+         * opened.
+         */
+        public SocketResponseWriter(final Socket socket) throws IOException {
+            super(new BufferedWriter(new OutputStreamWriter(
+                    socket.getOutputStream())), true);
+            this.socket = socket;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void writeBuffers(final ByteBuffer[] buffers)
+                throws IOException
+        {
+            flush();
+            ByteBuffer[] toWrite = duplicate(buffers);
+            SocketChannel channel = socket.getChannel();
+            if(channel != null) {
+                long remaining = 0;
+                for(ByteBuffer buffer : toWrite) {
+                    remaining += buffer.remaining();
+                }
+                while(remaining > 0) {
+                    remaining -= channel.write(toWrite);
+                }
+            } else {
+                OutputStream out = socket.getOutputStream();
+                byte[] tmp;
+                for(ByteBuffer buffer : toWrite) {
+                    tmp = new byte[buffer.remaining()];
+                    buffer.get(tmp);
+                    out.write(tmp);
+                }
+                out.flush();
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,563 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import uk.org.rivernile.edinburghbustracker.server.log.Log;
+import uk.org.rivernile.edinburghbustracker.server.stoplocations.Database;
+import uk.org.rivernile.edinburghbustracker.server.stoplocations
+        .DatabaseDeltas;
+
+/**
+ * The DatabaseHttpServer class serves the bus stop database to clients over
+ * HTTP, so that a separate web server is not needed for it. The file is sent
+ * with FileChannel.transferTo(), which lets the operating system copy it
+ * straight to the socket without it ever being read in to the heap. Single
+ * byte ranges are supported so that interrupted downloads can be resumed, and
+ * the SHA-256 checksum of the database is given as the ETag and can also be
+ * fetched on its own by adding ".sha256" to the path of the database. The
+ * deltas between versions of the database kept by DatabaseDeltas are served
+ * from the deltas directory next to it. Responses are written without
+ * blocking, and a client which does not read anything for the write timeout
+ * is dropped, so clients which stop reading do not hold on to the threads of
+ * the pool.
+ *
+ * @author Niall Scott
+ */
+public class DatabaseHttpServer implements Runnable {
+
+    /** The largest request header which is accepted, in bytes. */
+    private static final int MAX_HEADER_SIZE = 8192;
+    /** How long to wait for a client to send its request, in milliseconds. */
+    private static final int REQUEST_TIMEOUT = 30000;
+    /**
+     * How long a single write to a client may take before the connection is
+     * closed, in milliseconds.
+     */
+    private static final long WRITE_TIMEOUT = 30000;
+    /** How many times to try to open the database while it is replaced. */
+    private static final int OPEN_ATTEMPTS = 3;
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    private static final String DB_PATH = "/" + Database.DB_FILE;
+    private static final String CHECKSUM_PATH = DB_PATH + ".sha256";
+    private static final String DELTA_PATH = "/" + DatabaseDeltas.DELTA_DIR;
+
+    private final ExecutorService executor;
+
+    /**
+     * Create a new DatabaseHttpServer. The size of its thread pool is taken
+     * from the config.
+     */
+    public DatabaseHttpServer() {
+        executor = Executors.newFixedThreadPool(
+                Config.getConfig().getDBHttpThreads(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "db-http");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Listen for connections and hand each one to the thread pool. This
+     * method does not return unless the listening socket could not be
+     * created.
+     */
+    @Override
+    public void run() {
+        ServerSocketChannel listenChannel;
+        try {
+            listenChannel = ServerSocketChannel.open();
+            listenChannel.socket().setReuseAddress(true);
+            listenChannel.socket().bind(new InetSocketAddress(
+                    Config.getConfig().getAddressToBind(),
+                    Config.getConfig().getDBHttpPort()));
+        } catch(IOException e) {
+            Log.getLog().error("Exception while creating the database " +
+                    "download socket. The database will not be served.", e);
+            return;
+        }
+
+        Log.getLog().info("The database is being served on port " +
+                Config.getConfig().getDBHttpPort() + ".");
+        while(true) {
+            try {
+                final SocketChannel channel = listenChannel.accept();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleConnection(channel);
+                    }
+                });
+            } catch(IOException e) {
+                Log.getLog().error("Exception while accepting incoming " +
+                        "database download connection.", e);
+            }
+        }
+    }
+
+    /**
+     * Read a single request from a connection, answer it and then close the
+     * connection.
+     *
+     * @param channel The connection to the client.
+     */
+    private void handleConnection(final SocketChannel channel) {
+        try {
+            channel.socket().setSoTimeout(REQUEST_TIMEOUT);
+            String header = readHeader(new BufferedInputStream(
+                    channel.socket().getInputStream()));
+            channel.configureBlocking(false);
+            if(header == null) {
+                sendError(channel, "400 Bad Request");
+            } else {
+                handleRequest(channel, header.split("\r?\n"));
+            }
+        } catch(SocketTimeoutException e) {
+            // The client did not send a request in time.
+        } catch(IOException e) {
+            // The client has gone away, which happens with mobile downloads.
+        } finally {
+            try {
+                channel.close();
+            } catch(IOException e) {
+                // Do nothing as the connection is closing anyway.
+            }
+        }
+    }
+
+    /**
+     * Read the request header, up to the blank line which ends it.
+     *
+     * @param in The stream to read the header from.
+     * @return The header, or null if it was too long or the client stopped
+     * sending before the end of it.
+     * @throws IOException When the header could not be read.
+     */
+    private static String readHeader(final InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        int length;
+        while((c = in.read()) != -1) {
+            sb.append((char)c);
+            length = sb.length();
+            if(c == '\n' && (sb.lastIndexOf("\n\n") == length - 2
+                    || sb.lastIndexOf("\r\n\r\n") == length - 4))
+                return sb.toString().trim();
+            if(length >= MAX_HEADER_SIZE) return null;
+        }
+        return null;
+    }
+
+    /**
+     * Answer a request.
+     *
+     * @param channel The connection to the client.
+     * @param lines The lines of the request header.
+     * @throws IOException When the response could not be sent.
+     */
+    private void handleRequest(final SocketChannel channel,
+            final String[] lines) throws IOException
+    {
+        String[] requestLine = lines[0].split(" ");
+        if(requestLine.length != 3) {
+            sendError(channel, "400 Bad Request");
+            return;
+        }
+        boolean head = requestLine[0].equals("HEAD");
+        if(!head && !requestLine[0].equals("GET")) {
+            sendError(channel, "405 Method Not Allowed");
+            return;
+        }
+        String path = requestLine[1];
+        int query = path.indexOf('?');
+        if(query >= 0) path = path.substring(0, query);
+
+        if(path.equals(CHECKSUM_PATH)) {
+            sendChecksum(channel, head);
+        } else if(path.equals(DB_PATH)) {
+            sendDatabase(channel, head, getHeader(lines, "Range"),
+                    getHeader(lines, "If-Range"));
+        } else if(path.startsWith(DELTA_PATH) && DatabaseDeltas.isDeltaName(
+                path.substring(DELTA_PATH.length()))) {
+            sendDelta(channel, head, path.substring(DELTA_PATH.length()));
+        } else {
+            sendError(channel, "404 Not Found");
+        }
+    }
+
+    /**
+     * Send the checksum of the database, in the same format as sha256sum.
+     *
+     * @param channel The connection to the client.
+     * @param head True if only the response header should be sent.
+     * @throws IOException When the response could not be sent.
+     */
+    private void sendChecksum(final SocketChannel channel, final boolean head)
+            throws IOException
+    {
+        String checksum = ServerMetadata.getServerMetadata()
+                .updateDBChecksum();
+        if(ServerMetadata.UNKNOWN_DB_CHECKSUM.equals(checksum)) {
+            sendError(channel, "404 Not Found");
+            return;
+        }
+        byte[] body = (checksum + "  " + Database.DB_FILE + "\n")
+                .getBytes(LATIN1);
+        StringBuilder sb = startResponse("200 OK");
+        sb.append("Content-Type: text/plain\r\n");
+        sb.append("Content-Length: ").append(body.length).append("\r\n");
+        sb.append("ETag: \"").append(checksum).append("\"\r\n\r\n");
+        writeFully(channel, ByteBuffer.wrap(sb.toString().getBytes(LATIN1)));
+        if(!head) writeFully(channel, ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Send the database, or the range of it the client asked for.
+     *
+     * @param channel The connection to the client.
+     * @param head True if only the response header should be sent.
+     * @param range The value of the Range header, or null.
+     * @param ifRange The value of the If-Range header, or null.
+     * @throws IOException When the response could not be sent.
+     */
+    private void sendDatabase(final SocketChannel channel, final boolean head,
+            final String range, final String ifRange) throws IOException
+    {
+        File f = new File(Config.getConfig().getDBPath() + Database.DB_FILE);
+        FileInputStream in = null;
+        String checksum = null;
+        long lastModified = 0;
+        long length = 0;
+        for(int i = 0; i < OPEN_ATTEMPTS && checksum == null; i++) {
+            length = f.length();
+            lastModified = f.lastModified();
+            try {
+                in = new FileInputStream(f);
+            } catch(IOException e) {
+                sendError(channel, "404 Not Found");
+                return;
+            }
+            // The checksum is of whatever file is at the path, so it is only
+            // used if the file was not replaced while it was being opened.
+            checksum = ServerMetadata.getServerMetadata().updateDBChecksum();
+            if(f.length() != length || f.lastModified() != lastModified ||
+                    in.getChannel().size() != length) {
+                checksum = null;
+                in.close();
+            }
+        }
+        if(checksum == null) {
+            sendError(channel, "503 Service Unavailable");
+            return;
+        }
+
+        try {
+            // The file is open, so it is this version which is sent even if
+            // the database is replaced while it is being sent.
+            FileChannel file = in.getChannel();
+            String etag = "\"" + checksum + "\"";
+
+            long start = 0;
+            long end = length - 1;
+            boolean partial = false;
+            if(range != null && (ifRange == null || ifRange.equals(etag))) {
+                long[] bounds = parseRange(range, length);
+                if(bounds == null) {
+                    StringBuilder sb = startResponse(
+                            "416 Range Not Satisfiable");
+                    sb.append("Content-Range: bytes */").append(length)
+                            .append("\r\n");
+                    sb.append("Content-Length: 0\r\n\r\n");
+                    writeFully(channel, ByteBuffer.wrap(
+                            sb.toString().getBytes(LATIN1)));
+                    return;
+                } else if(bounds.length == 2) {
+                    start = bounds[0];
+                    end = bounds[1];
+                    partial = true;
+                }
+            }
+
+            StringBuilder sb = startResponse(partial ? "206 Partial Content"
+                    : "200 OK");
+            sb.append("Content-Type: application/octet-stream\r\n");
+            sb.append("Content-Length: ").append(end - start + 1)
+                    .append("\r\n");
+            if(partial) {
+                sb.append("Content-Range: bytes ").append(start).append('-')
+                        .append(end).append('/').append(length).append("\r\n");
+            }
+            sb.append("Accept-Ranges: bytes\r\n");
+            sb.append("ETag: ").append(etag).append("\r\n");
+            sb.append("Last-Modified: ").append(formatDate(lastModified))
+                    .append("\r\n\r\n");
+            writeFully(channel, ByteBuffer.wrap(
+                    sb.toString().getBytes(LATIN1)));
+            if(head) return;
+            transferFully(file, start, end - start + 1, channel);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Send a delta between two versions of the database. A delta never
+     * changes once it has been written, so its name is used as its ETag.
+     *
+     * @param channel The connection to the client.
+     * @param head True if only the response header should be sent.
+     * @param name The file name of the delta.
+     * @throws IOException When the response could not be sent.
+     */
+    private void sendDelta(final SocketChannel channel, final boolean head,
+            final String name) throws IOException
+    {
+        File f = new File(DatabaseDeltas.getDatabaseDeltas().getDirectory(),
+                name);
+        FileInputStream in;
+        try {
+            in = new FileInputStream(f);
+        } catch(IOException e) {
+            sendError(channel, "404 Not Found");
+            return;
+        }
+
+        try {
+            FileChannel file = in.getChannel();
+            long length = file.size();
+            StringBuilder sb = startResponse("200 OK");
+            sb.append("Content-Type: application/gzip\r\n");
+            sb.append("Content-Length: ").append(length).append("\r\n");
+            sb.append("ETag: \"").append(name).append("\"\r\n");
+            sb.append("Last-Modified: ").append(formatDate(f.lastModified()))
+                    .append("\r\n\r\n");
+            writeFully(channel, ByteBuffer.wrap(
+                    sb.toString().getBytes(LATIN1)));
+            if(head) return;
+            transferFully(file, 0, length, channel);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Send part of a file to a client with FileChannel.transferTo().
+     *
+     * @param file The file to send from.
+     * @param start The position of the first byte to send.
+     * @param count The number of bytes to send.
+     * @param channel The connection to the client.
+     * @throws IOException When the file could not be sent.
+     */
+    private static void transferFully(final FileChannel file, final long start,
+            final long count, final SocketChannel channel) throws IOException
+    {
+        long position = start;
+        long remaining = count;
+        long sent;
+        while(remaining > 0) {
+            sent = file.transferTo(position, remaining, channel);
+            if(sent <= 0) {
+                if(position >= file.size()) {
+                    // The file has been truncated underneath us.
+                    throw new IOException("The file was truncated.");
+                }
+                awaitWritable(channel);
+            }
+            position += sent;
+            remaining -= sent;
+        }
+    }
+
+    /**
+     * Parse the value of a Range header. Only a single range of bytes is
+     * supported. Anything else is ignored, as HTTP allows.
+     *
+     * @param range The value of the Range header.
+     * @param length The length of the file.
+     * @return The first and last byte to send, an empty array if the header
+     * should be ignored, or null if the range cannot be satisfied.
+     */
+    private static long[] parseRange(final String range, final long length) {
+        String value = range.trim();
+        if(!value.startsWith("bytes=") || value.indexOf(',') >= 0)
+            return new long[0];
+        value = value.substring(6).trim();
+        int dash = value.indexOf('-');
+        if(dash < 0) return new long[0];
+
+        long start, end;
+        try {
+            if(dash == 0) {
+                long suffix = Long.parseLong(value.substring(1).trim());
+                if(suffix <= 0 || length == 0) return null;
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(value.substring(0, dash).trim());
+                String last = value.substring(dash + 1).trim();
+                if(last.length() == 0) {
+                    end = length - 1;
+                } else {
+                    end = Long.parseLong(last);
+                    if(end < start) return new long[0];
+                    end = Math.min(end, length - 1);
+                }
+            }
+        } catch(NumberFormatException e) {
+            return new long[0];
+        }
+        if(start >= length) return null;
+        return new long[] { start, end };
+    }
+
+    /**
+     * Get the value of a request header.
+     *
+     * @param lines The lines of the request header.
+     * @param name The name of the header to get.
+     * @return The value of the header, or null if it was not sent.
+     */
+    private static String getHeader(final String[] lines, final String name) {
+        int colon;
+        for(int i = 1; i < lines.length; i++) {
+            colon = lines[i].indexOf(':');
+            if(colon > 0 && lines[i].substring(0, colon).trim()
+                    .equalsIgnoreCase(name))
+                return lines[i].substring(colon + 1).trim();
+        }
+        return null;
+    }
+
+    /**
+     * Start a response header with the status line and the headers which are
+     * sent with every response.
+     *
+     * @param status The status code and reason phrase.
+     * @return The response header so far.
+     */
+    private static StringBuilder startResponse(final String status) {
+        StringBuilder sb = new StringBuilder("HTTP/1.1 ");
+        sb.append(status).append("\r\n");
+        sb.append("Date: ").append(formatDate(System.currentTimeMillis()))
+                .append("\r\n");
+        sb.append("Server: ").append(Main.APPLICATIONTITLE).append(' ')
+                .append(Main.getVersion()).append("\r\n");
+        sb.append("Connection: close\r\n");
+        return sb;
+    }
+
+    /**
+     * Send a response with no body.
+     *
+     * @param channel The connection to the client.
+     * @param status The status code and reason phrase.
+     * @throws IOException When the response could not be sent.
+     */
+    private static void sendError(final SocketChannel channel,
+            final String status) throws IOException
+    {
+        StringBuilder sb = startResponse(status);
+        if(status.startsWith("405")) sb.append("Allow: GET, HEAD\r\n");
+        sb.append("Content-Length: 0\r\n\r\n");
+        writeFully(channel, ByteBuffer.wrap(sb.toString().getBytes(LATIN1)));
+    }
+
+    /**
+     * Write all of a buffer to a channel.
+     *
+     * @param channel The channel to write to.
+     * @param buffer The buffer to write.
+     * @throws IOException When the buffer could not be written.
+     */
+    private static void writeFully(final SocketChannel channel,
+            final ByteBuffer buffer) throws IOException
+    {
+        while(buffer.hasRemaining()) {
+            if(channel.write(buffer) == 0) awaitWritable(channel);
+        }
+    }
+
+    /**
+     * Wait until a client has read enough for more to be written to it. The
+     * connection is non-blocking once the request has been read, so a client
+     * which stops reading cannot hold on to a thread of the pool for longer
+     * than the write timeout.
+     *
+     * @param channel The connection being written to.
+     * @throws IOException When the client has not read anything within the
+     * write timeout, or the wait failed.
+     */
+    private static void awaitWritable(final SocketChannel channel)
+            throws IOException
+    {
+        Selector selector = Selector.open();
+        try {
+            channel.register(selector, SelectionKey.OP_WRITE);
+            if(selector.select(WRITE_TIMEOUT) == 0)
+                throw new SocketTimeoutException("The client stopped " +
+                        "reading.");
+        } finally {
+            selector.close();
+        }
+    }
+
+    /**
+     * Format a time as a HTTP date.
+     *
+     * @param time The time, in milliseconds since the epoch.
+     * @return The HTTP date.
+     */
+    private static String formatDate(final long time) {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.UK);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+}
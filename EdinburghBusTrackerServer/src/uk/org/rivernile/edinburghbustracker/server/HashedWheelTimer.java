@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import uk.org.rivernile.edinburghbustracker.server.log.Log;
+
+/**
+ * The HashedWheelTimer runs all of the server's timeouts, such as idle
+ * connections, upstream deadlines and cache expiry, on a single thread.
+ * Timeouts are kept in a ring of buckets, one bucket for each tick, so
+ * scheduling and cancelling a timeout costs the same no matter how many others
+ * are pending, and the timer thread only looks at one bucket per tick. The
+ * price is that timeouts fire up to one tick late.
+ *
+ * Tasks are run on the timer thread, so they must be quick and must not
+ * block. Anything more than a few field updates should be handed off to
+ * another thread.
+ *
+ * @author Niall Scott
+ */
+public class HashedWheelTimer {
+
+    /** How often the timer ticks, in milliseconds. */
+    private static final long TICK = 100;
+    /** The number of buckets in the wheel, which must be a power of 2. */
+    private static final int WHEEL_SIZE = 512;
+
+    private static HashedWheelTimer timer = null;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> added =
+            new ConcurrentLinkedQueue<Timeout>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled =
+            new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final long startTime;
+    private long tick = 0;
+
+    /**
+     * Create a new HashedWheelTimer and start its thread.
+     *
+     * @param name The name of the timer thread.
+     * @param tickMillis How often the timer ticks, in milliseconds.
+     * @param wheelSize The number of buckets in the wheel, which is rounded
+     * up to a power of 2.
+     */
+    public HashedWheelTimer(final String name, final long tickMillis,
+            final int wheelSize) {
+        if(tickMillis < 1) throw new IllegalArgumentException("The tick " +
+                "must be at least 1 millisecond.");
+        if(wheelSize < 1) throw new IllegalArgumentException("The wheel " +
+                "size must be at least 1.");
+        int size = 1;
+        while(size < wheelSize) size <<= 1;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        wheel = new Bucket[size];
+        for(int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        startTime = System.nanoTime();
+
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Get the timer shared by the whole server.
+     *
+     * @return The shared HashedWheelTimer.
+     */
+    public static synchronized HashedWheelTimer getTimer() {
+        if(timer == null) timer = new HashedWheelTimer("wheel-timer", TICK,
+                WHEEL_SIZE);
+        return timer;
+    }
+
+    /**
+     * Schedule a task to be run once after a delay. This method is thread
+     * safe and does not block.
+     *
+     * @param task The task to run. It is run on the timer thread.
+     * @param delay How long to wait before running the task.
+     * @param unit The unit of the delay.
+     * @return The Timeout, which can be used to cancel the task.
+     */
+    public Timeout schedule(final Runnable task, final long delay,
+            final TimeUnit unit) {
+        if(task == null) throw new IllegalArgumentException("The task must " +
+                "not be null.");
+        if(unit == null) throw new IllegalArgumentException("The unit must " +
+                "not be null.");
+        long deadline = System.nanoTime() - startTime +
+                Math.max(0, unit.toNanos(delay));
+        Timeout timeout = new Timeout(task, deadline);
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Get the number of timeouts which have been scheduled but have not yet
+     * fired or been cancelled.
+     *
+     * @return The number of pending timeouts.
+     */
+    public long getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Get the number of timeouts which have fired.
+     *
+     * @return The number of expired timeouts.
+     */
+    public long getExpired() {
+        return expired.get();
+    }
+
+    /**
+     * The main loop of the timer thread. Each tick, newly scheduled timeouts
+     * are put in to their buckets, cancelled timeouts are taken out, and the
+     * timeouts in the current bucket which are due are run.
+     */
+    private void loop() {
+        long deadline;
+        long sleep;
+        while(true) {
+            deadline = tickNanos * (tick + 1);
+            sleep = deadline - (System.nanoTime() - startTime);
+            if(sleep > 0) {
+                try {
+                    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleep + 999999));
+                } catch(InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            removeCancelled();
+            transferAdded();
+            wheel[(int)(tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    /**
+     * Put newly scheduled timeouts in to the buckets they are due in.
+     * Timeouts which are already overdue go in to the current bucket.
+     */
+    private void transferAdded() {
+        Timeout timeout;
+        long due;
+        while((timeout = added.poll()) != null) {
+            if(timeout.state.get() != Timeout.PENDING) continue;
+            due = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.rounds = (due - tick) / wheel.length;
+            wheel[(int)(due & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Take cancelled timeouts out of their buckets.
+     */
+    private void removeCancelled() {
+        Timeout timeout;
+        while((timeout = cancelled.poll()) != null) {
+            if(timeout.bucket != null) timeout.bucket.remove(timeout);
+        }
+    }
+
+    /**
+     * A Timeout is a task which has been scheduled on the timer.
+     */
+    public final class Timeout {
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        // These are only touched by the timer thread.
+        private long rounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        /**
+         * Create a new Timeout.
+         *
+         * @param task The task to run.
+         * @param deadline When the task is due, in nanoseconds since the
+         * timer started.
+         */
+        private Timeout(final Runnable task, final long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task so that it is not run. This method is thread safe
+         * and does not block.
+         *
+         * @return True if the task was cancelled, false if it has already run
+         * or been cancelled.
+         */
+        public boolean cancel() {
+            if(!state.compareAndSet(PENDING, CANCELLED)) return false;
+            pending.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        /**
+         * Whether the task has been cancelled.
+         *
+         * @return True if the task has been cancelled.
+         */
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * Whether the task has been run.
+         *
+         * @return True if the task has been run.
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        /**
+         * Run the task, unless it has been cancelled.
+         */
+        private void expire() {
+            if(!state.compareAndSet(PENDING, EXPIRED)) return;
+            pending.decrementAndGet();
+            expired.incrementAndGet();
+            try {
+                task.run();
+            } catch(RuntimeException e) {
+                Log.getLog().error("A timer task failed.", e);
+            }
+        }
+    }
+
+    /**
+     * A Bucket holds the timeouts which are due on a tick of the wheel, as a
+     * doubly linked list so that cancelled timeouts can be taken out
+     * directly. Buckets are only touched by the timer thread.
+     */
+    private static final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        /**
+         * Add a timeout to the end of this bucket.
+         *
+         * @param timeout The timeout to add.
+         */
+        private void add(final Timeout timeout) {
+            timeout.bucket = this;
+            if(head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        /**
+         * Take a timeout out of this bucket.
+         *
+         * @param timeout The timeout to take out.
+         */
+        private void remove(final Timeout timeout) {
+            if(timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if(timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.next = null;
+            timeout.prev = null;
+            timeout.bucket = null;
+        }
+
+        /**
+         * Run the timeouts in this bucket which are due, and count down the
+         * rounds of the ones which are due on a later turn of the wheel.
+         */
+        private void expire() {
+            Timeout timeout = head;
+            Timeout next;
+            while(timeout != null) {
+                next = timeout.next;
+                if(timeout.rounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if(timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+import uk.org.rivernile.edinburghbustracker.server.livedata.LiveDataBinaryCodec;
+import uk.org.rivernile.edinburghbustracker.server.livedata.LiveDataCache;
+import uk.org.rivernile.edinburghbustracker.server.log.Log;
+
+/**
+ * The HttpGateway exposes the server commands over HTTP/1.1, so the server can
+ * sit behind standard load balancers and caches. Each command is a path, for
+ * example /getBusTimesByStopCode?stopCode=36232684, and is answered by the same
+ * CommandHandler as the line based protocol. Connections are kept alive,
+ * responses are gzip compressed when the client accepts it, and live data is
+ * sent with an ETag and a Cache-Control max-age taken from the age of the
+ * cached data. Clients which send an Accept header of
+ * application/x-bustracker-departures get live data in the compact binary form
+ * given by the LiveDataBinaryCodec instead of JSON. Requests turned away
+ * because the server is busy get a 503 with a Retry-After header. Other
+ * errors are given the status which matches the error code the
+ * CommandHandler gave, such as 400 for a bad parameter and 502 when the live
+ * data could not be fetched.
+ *
+ * @author Niall Scott
+ */
+public class HttpGateway implements HttpHandler {
+
+    /** Responses smaller than this are not worth compressing. */
+    private static final int GZIP_MIN_SIZE = 256;
+    private static final String TEXT_TYPE = "text/plain; charset=UTF-8";
+    private static final String JSON_TYPE = "application/json; charset=UTF-8";
+    private static final String[] COMMANDS = {
+        "getBusTimesByStopCode", "getDBURL", "getDBLastModTime",
+        "getDBChecksum", "getDBDeltaChain", "getLatestAndroidClientVersion"
+    };
+
+    private final CommandHandler commandHandler = new CommandHandler();
+    private HttpServer server;
+
+    /**
+     * Create a new HttpGateway. It does not listen for requests until start()
+     * is called.
+     */
+    public HttpGateway() {
+        // Nothing to set up.
+    }
+
+    /**
+     * Start listening for requests on the configured address and HTTP port.
+     * Requests are handled on a fixed size pool of threads.
+     *
+     * @throws IOException When the listening socket could not be created.
+     */
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(
+                Config.getConfig().getAddressToBind(),
+                Config.getConfig().getHttpPort()), 0);
+        server.createContext("/", this);
+        server.setExecutor(Executors.newFixedThreadPool(
+                Config.getConfig().getHttpThreads(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "http-gateway");
+                t.setDaemon(true);
+                return t;
+            }
+        }));
+        server.start();
+        Log.getLog().info("The HTTP gateway is listening on port " +
+                Config.getConfig().getHttpPort() + ".");
+    }
+
+    /**
+     * Stop listening for requests.
+     */
+    public void stop() {
+        if(server != null) server.stop(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void handle(final HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            boolean head = method.equals("HEAD");
+            if(!head && !method.equals("GET")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            String command = exchange.getRequestURI().getPath().substring(1);
+            if(!Arrays.asList(COMMANDS).contains(command)) {
+                sendText(exchange, head, 404,
+                        "Error: unknown server command.");
+                return;
+            }
+            if(command.equals("getBusTimesByStopCode")) {
+                String stopCode = getParameter(
+                        exchange.getRequestURI().getRawQuery(), "stopCode");
+                if(stopCode == null || stopCode.length() == 0) {
+                    sendText(exchange, head, 400, "Error: the stopCode " +
+                            "parameter is required.");
+                    return;
+                }
+                command += ":" + stopCode;
+            } else if(command.equals("getDBDeltaChain")) {
+                String version = getParameter(
+                        exchange.getRequestURI().getRawQuery(), "version");
+                if(version == null || version.length() == 0) {
+                    sendText(exchange, head, 400, "Error: the version " +
+                            "parameter is required.");
+                    return;
+                }
+                command += ":" + version;
+            }
+
+            HttpResponseWriter out = new HttpResponseWriter();
+            commandHandler.handleCommand(command, out);
+            if(out.retryAfter > 0) {
+                exchange.getResponseHeaders().set("Retry-After",
+                        String.valueOf(out.retryAfter));
+                sendText(exchange, head, 503, "Error: the server is busy.");
+            } else if(out.error != 0) {
+                if(out.message == null) {
+                    exchange.sendResponseHeaders(getStatus(out.error), -1);
+                } else {
+                    sendText(exchange, head, getStatus(out.error),
+                            "Error: " + out.message);
+                }
+            } else if(out.entry != null) {
+                sendEntry(exchange, head, out.entry);
+            } else {
+                byte[] body = out.getBody();
+                exchange.getResponseHeaders().set("ETag", "W/\"" +
+                        Integer.toHexString(Arrays.hashCode(body)) + "\"");
+                exchange.getResponseHeaders().set("Cache-Control",
+                        "no-cache");
+                // The delta chain is the only command with a JSON reply.
+                send(exchange, head, 200, command.startsWith(
+                        "getDBDeltaChain:") ? JSON_TYPE : TEXT_TYPE, body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Get the HTTP status code for an error from the CommandHandler.
+     *
+     * @param error One of the ResponseWriter ERROR_ codes.
+     * @return The HTTP status code.
+     */
+    private static int getStatus(final int error) {
+        switch(error) {
+            case ResponseWriter.ERROR_BAD_REQUEST:
+                return 400;
+            case ResponseWriter.ERROR_UNKNOWN_COMMAND:
+                return 404;
+            case ResponseWriter.ERROR_UPSTREAM:
+                return 502;
+            default:
+                return 500;
+        }
+    }
+
+    /**
+     * Send live data from the cache. The ETag is unique to the stop and the
+     * time the data was fetched, and the data may be cached by the client
+     * until it would expire from the live data cache. Stale data is marked
+     * with a Warning header and may not be cached.
+     *
+     * @param exchange The request and response.
+     * @param head True if only the response header should be sent.
+     * @param entry The live data cache entry to send.
+     * @throws IOException When the response could not be sent.
+     */
+    private static void sendEntry(final HttpExchange exchange,
+            final boolean head, final LiveDataCache.Entry entry)
+            throws IOException
+    {
+        Headers headers = exchange.getResponseHeaders();
+        boolean binary = acceptsBinary(exchange);
+        String etag = "W/\"" + entry.getStopCode() + "-" +
+                Long.toString(entry.getFetchTime(), 36) +
+                (binary ? "-b" : "") + "\"";
+        long age = entry.getAge();
+        long ttl = Config.getConfig().getCacheTTL();
+        headers.set("ETag", etag);
+        headers.set("Age", String.valueOf(age / 1000));
+        if(entry.isStale()) {
+            headers.set("Cache-Control", "no-cache");
+            headers.set("Warning", "110 - \"Response is Stale\"");
+        } else if(ttl > 0) {
+            headers.set("Cache-Control", "public, max-age=" +
+                    (Math.max(0, ttl - age) / 1000));
+        } else {
+            headers.set("Cache-Control", "no-cache");
+        }
+        headers.set("Vary", "Accept, Accept-Encoding");
+        if(etag.equals(exchange.getRequestHeaders().getFirst(
+                "If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        byte[] body;
+        if(binary) {
+            // The binary form is already compact, so it is not compressed.
+            headers.set("Content-Type", LiveDataBinaryCodec.CONTENT_TYPE);
+            ByteBuffer buffer = entry.getBinaryBody();
+            body = new byte[buffer.remaining()];
+            buffer.get(body);
+        } else if(acceptsGzip(exchange)) {
+            headers.set("Content-Type", "application/json; charset=UTF-8");
+            headers.set("Content-Encoding", "gzip");
+            body = entry.getGzippedBody();
+        } else {
+            headers.set("Content-Type", "application/json; charset=UTF-8");
+            ByteBuffer buffer = entry.getBody();
+            body = new byte[buffer.remaining()];
+            buffer.get(body);
+        }
+        sendBody(exchange, head, 200, body);
+    }
+
+    /**
+     * Send a plain text response.
+     *
+     * @param exchange The request and response.
+     * @param head True if only the response header should be sent.
+     * @param status The HTTP status code.
+     * @param text The text to send.
+     * @throws IOException When the response could not be sent.
+     */
+    private static void sendText(final HttpExchange exchange,
+            final boolean head, final int status, final String text)
+            throws IOException
+    {
+        send(exchange, head, status, TEXT_TYPE,
+                text.getBytes(CommandHandler.UTF8));
+    }
+
+    /**
+     * Send a text response, compressing it if it is large enough and the
+     * client accepts it.
+     *
+     * @param exchange The request and response.
+     * @param head True if only the response header should be sent.
+     * @param status The HTTP status code.
+     * @param type The content type of the response.
+     * @param body The encoded text to send.
+     * @throws IOException When the response could not be sent.
+     */
+    private static void send(final HttpExchange exchange, final boolean head,
+            final int status, final String type, final byte[] body)
+            throws IOException
+    {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", type);
+        headers.set("Vary", "Accept-Encoding");
+        byte[] toSend = body;
+        if(body.length >= GZIP_MIN_SIZE && acceptsGzip(exchange)) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(baos);
+            gzip.write(body);
+            gzip.close();
+            toSend = baos.toByteArray();
+            headers.set("Content-Encoding", "gzip");
+        }
+        sendBody(exchange, head, status, toSend);
+    }
+
+    /**
+     * Send the response header and body. The length of the body is always
+     * given so that the connection can be kept alive.
+     *
+     * @param exchange The request and response.
+     * @param head True if only the response header should be sent.
+     * @param status The HTTP status code.
+     * @param body The body to send.
+     * @throws IOException When the response could not be sent.
+     */
+    private static void sendBody(final HttpExchange exchange,
+            final boolean head, final int status, final byte[] body)
+            throws IOException
+    {
+        if(head) {
+            exchange.getResponseHeaders().set("Content-Length",
+                    String.valueOf(body.length));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+
+    /**
+     * Check whether the client accepts gzip compressed responses.
+     *
+     * @param exchange The request and response.
+     * @return True if the client accepts gzip compressed responses.
+     */
+    private static boolean acceptsGzip(final HttpExchange exchange) {
+        String accept = exchange.getRequestHeaders().getFirst(
+                "Accept-Encoding");
+        return accept != null && accept.toLowerCase().contains("gzip");
+    }
+
+    /**
+     * Check whether the client asked for live data in the binary form given
+     * by the LiveDataBinaryCodec rather than JSON.
+     *
+     * @param exchange The request and response.
+     * @return True if the client accepts the binary form.
+     */
+    private static boolean acceptsBinary(final HttpExchange exchange) {
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        return accept != null && accept.toLowerCase().contains(
+                LiveDataBinaryCodec.CONTENT_TYPE);
+    }
+
+    /**
+     * Get the value of a parameter from a query string.
+     *
+     * @param query The raw query string, which may be null.
+     * @param name The name of the parameter.
+     * @return The decoded value of the parameter, or null if it is not in the
+     * query string.
+     */
+    private static String getParameter(final String query, final String name)
+    {
+        if(query == null) return null;
+        int equals;
+        for(String pair : query.split("&")) {
+            equals = pair.indexOf('=');
+            if(equals > 0 && pair.substring(0, equals).equals(name)) {
+                try {
+                    return URLDecoder.decode(pair.substring(equals + 1),
+                            "UTF-8");
+                } catch(UnsupportedEncodingException e) {
+                    return null;
+                } catch(IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The HttpResponseWriter collects the reply from the CommandHandler so it
+     * can be sent once its length is known. Live data cache entries are kept
+     * as they are, so their age can be used in the response header.
+     */
+    private static class HttpResponseWriter extends ResponseWriter {
+
+        private final StringWriter text;
+        private final ByteArrayOutputStream data =
+                new ByteArrayOutputStream();
+        private LiveDataCache.Entry entry = null;
+        private int retryAfter = 0;
+        private int error = 0;
+        private String message = null;
+
+        /**
+         * Create a new HttpResponseWriter.
+         */
+        public HttpResponseWriter() {
+            this(new StringWriter());
+        }
+
+        /**
+         * Create a new HttpResponseWriter.
+         *
+         * @param text Where text is held until it is encoded.
+         */
+        private HttpResponseWriter(final StringWriter text) {
+            super(text, false);
+            this.text = text;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void writeBuffers(final ByteBuffer[] buffers) {
+            encodeText();
+            for(ByteBuffer buffer : duplicate(buffers)) {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                data.write(bytes, 0, bytes.length);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(final LiveDataCache.Entry entry) {
+            this.entry = entry;
+            countBytes(entry.getBody().remaining());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void writeBusy(final int retryAfter) {
+            this.retryAfter = retryAfter;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void writeError(final int error, final String message) {
+            this.error = error;
+            this.message = message;
+        }
+
+        /**
+         * Get everything which has been written, apart from any live data
+         * cache entry.
+         *
+         * @return Everything which has been written.
+         */
+        public byte[] getBody() {
+            encodeText();
+            return data.toByteArray();
+        }
+
+        /**
+         * Encode any text which has been written.
+         */
+        private void encodeText() {
+            flush();
+            if(text.getBuffer().length() > 0) {
+                byte[] bytes = text.toString().getBytes(CommandHandler.UTF8);
+                data.write(bytes, 0, bytes.length);
+                text.getBuffer().setLength(0);
+            }
+        }
+    }
+}
@@ -30,20 +30,34 @@ import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.LinkedList;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import uk.org.rivernile.edinburghbustracker.server.log.Log;
+import uk.org.rivernile.edinburghbustracker.server.metrics.Metrics;
 
 /**
  * The IncomingSocketHandler class deals with the server socket connections
  * abstractly and then passes the new socket connection to a new thread in the
- * ConnectionHandler class.
+ * ConnectionHandler class. Depending on the config, the new thread is either a
+ * platform thread or a virtual thread.
+ *
+ * New connections are turned away once the maximum number of connections has
+ * been reached, which is a ceiling on the number of open sockets. Before
+ * then, they are also turned away while the AdmissionController is turning
+ * fetches away, in which case the client is told when to try again.
  *
  * @author Niall Scott
  */
 public class IncomingSocketHandler {
 
     private ServerSocket listenSocket;
-    private final LinkedList<ConnectionHandler> connectionList;
-    private final Object listLock;
+    private final Set<ConnectionHandler> connections;
+    private final AtomicInteger connectionCount;
+    private final Executor connectionExecutor;
     private boolean keepRunning;
 
     /**
@@ -51,11 +65,34 @@ public class IncomingSocketHandler {
      * paramters.
      */
     public IncomingSocketHandler() {
-        connectionList = new LinkedList<ConnectionHandler>();
-        listLock = new Object();
+        connections = Collections.newSetFromMap(
+                new ConcurrentHashMap<ConnectionHandler, Boolean>());
+        connectionCount = new AtomicInteger(0);
+        connectionExecutor = createConnectionExecutor();
         keepRunning = true;
     }
 
+    /**
+     * Create the Executor which runs the ConnectionHandlers. When virtual
+     * threads are configured, each connection is run on a new virtual thread.
+     * Platform threads are used if virtual threads are not available.
+     *
+     * @return The Executor to run the ConnectionHandlers on.
+     */
+    private static Executor createConnectionExecutor() {
+        if(VirtualThreads.isConfigured()) {
+            Executor executor = VirtualThreads.newExecutor();
+            if(executor != null) return executor;
+        }
+
+        return new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                new Thread(command).start();
+            }
+        };
+    }
+
     /**
      * This is the main loop of the whole server. It sets up the socket and then
      * proceeds to loop indefinitely, blocking while it waits for incoming
@@ -63,56 +100,65 @@ public class IncomingSocketHandler {
      */
     public void run() {
         try {
-            listenSocket = new ServerSocket();
+            // Sockets accepted through a channel have channels of their own,
+            // which cached replies are written straight to.
+            listenSocket = ServerSocketChannel.open().socket();
             listenSocket.setReuseAddress(true);
             listenSocket.setPerformancePreferences(1, 2, 0);
             listenSocket.bind(new InetSocketAddress(
                     Config.getConfig().getAddressToBind(),
                     Config.getConfig().getPortNumber()));
         } catch(IOException e) {
-            System.err.println("Exception while creating listening socket: " +
-                    e.toString());
-            System.err.println("Server exiting.");
+            Log.getLog().error("Exception while creating listening " +
+                    "socket. Server exiting.", e);
             System.exit(-1);
         }
 
-        System.out.println("The socket is now listening.");
+        Log.getLog().info("The socket is now listening.");
         Socket socket;
         PrintWriter writer;
         ConnectionHandler temp;
-        int listSize;
+        int maxConnections;
+        AdmissionController admission;
         while(keepRunning) {
             try {
                 socket = listenSocket.accept();
-                socket.setSoTimeout(120000);
-                synchronized(listLock) {
-                    listSize = connectionList.size();
-                }
-                if(Config.getConfig().getMaxConnections() != 0 &&
-                        listSize >= Config.getConfig().getMaxConnections()) {
+                maxConnections = Config.getConfig().getMaxConnections();
+                admission = AdmissionController.getAdmissionController();
+                if(maxConnections != 0 &&
+                        connectionCount.get() >= maxConnections) {
                     writer = new PrintWriter(socket.getOutputStream(), true);
                     writer.println("Error: server has reached maximum number " +
                             "of connections.");
                     writer.close();
                     socket.close();
+                    Metrics.getMetrics().increment("connections.rejected");
+                } else if(admission.isOverloaded()) {
+                    writer = new PrintWriter(socket.getOutputStream(), true);
+                    writer.println(ResponseWriter.getBusyMessage(
+                            admission.getRetryAfter()));
+                    writer.close();
+                    socket.close();
+                    Metrics.getMetrics().increment("connections.shed");
                 } else {
                     temp = new ConnectionHandler(socket, this);
-                    synchronized(listLock) {
-                        connectionList.add(temp);
-                    }
-                    new Thread(temp).start();
+                    connections.add(temp);
+                    connectionCount.incrementAndGet();
+                    Metrics.getMetrics().increment("connections.accepted");
+                    Metrics.getMetrics().increment("connections.active");
+                    connectionExecutor.execute(temp);
                 }
             } catch(IOException e) {
-                System.err.println("Exception while accepting incoming " +
-                        "connection: ");
-                System.err.println(e.toString());
+                Log.getLog().error("Exception while accepting incoming " +
+                        "connection.", e);
             }
         }
     }
 
     /**
      * Remove a connection from the connection list once it has finished dealing
-     * with it's connection from the client. This method is thread safe.
+     * with it's connection from the client. This method is thread safe and
+     * does not block.
      *
      * @param connection The connection to remove.
      */
@@ -120,8 +166,9 @@ public class IncomingSocketHandler {
             final ConnectionHandler connection) {
         if(connection == null) throw new IllegalArgumentException("A non " +
                 "null connection handler must be provided.");
-        synchronized(listLock) {
-            connectionList.remove(connection);
+        if(connections.remove(connection)) {
+            connectionCount.decrementAndGet();
+            Metrics.getMetrics().decrement("connections.active");
         }
     }
 
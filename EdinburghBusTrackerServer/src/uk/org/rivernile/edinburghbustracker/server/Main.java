@@ -25,6 +25,8 @@
 
 package uk.org.rivernile.edinburghbustracker.server;
 
+import java.io.IOException;
+import uk.org.rivernile.edinburghbustracker.server.log.Log;
 import uk.org.rivernile.edinburghbustracker.server.stoplocations
         .StopLocationsTask;
 
@@ -93,10 +95,35 @@ public final class Main {
      */
     public static void start() {
         Config.initConfig(configFile);
+        // These are read by the JVM wide keep-alive cache when the first
+        // connection is made, so they are set before anything connects.
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections",
+                String.valueOf(Config.getConfig().getUpstreamPoolSize()));
+        ServerMetadata.getServerMetadata();
+        ServerStats.getServerStats().register();
         new StopLocationsTask(Config.getConfig().getDBPath());
-        IncomingSocketHandler socketHandler = new IncomingSocketHandler();
-        socketHandler.run();
-        System.out.println("The server is now exiting.");
+        if(Config.getConfig().getDBHttpPort() != 0) {
+            Thread dbServer = new Thread(new DatabaseHttpServer(), "db-http");
+            dbServer.setDaemon(true);
+            dbServer.start();
+        }
+        if(Config.getConfig().getHttpPort() != 0) {
+            try {
+                new HttpGateway().start();
+            } catch(IOException e) {
+                Log.getLog().error("Exception while starting the HTTP " +
+                        "gateway.", e);
+            }
+        }
+        if(Config.FRONTEND_NIO.equals(Config.getConfig().getFrontEnd())) {
+            SelectorSocketHandler socketHandler = new SelectorSocketHandler();
+            socketHandler.run();
+        } else {
+            IncomingSocketHandler socketHandler = new IncomingSocketHandler();
+            socketHandler.run();
+        }
+        Log.getLog().info("The server is now exiting.");
     }
 
     /**
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import uk.org.rivernile.edinburghbustracker.server.livedata.LiveDataCache;
+
+/**
+ * A ResponseWriter is where the CommandHandler writes its replies to a client.
+ * As well as text written through the usual PrintWriter methods, replies which
+ * have already been encoded, such as cached live data, can be written as
+ * ByteBuffers. These are sent to the client as they are, after any text which
+ * was written before them.
+ *
+ * A ResponseWriter also counts the bytes written to it and holds the outcome
+ * of the command being handled, so the command can be written to the access
+ * log. Text is counted a character at a time, which is exact for the ASCII
+ * replies of the line protocol.
+ *
+ * Errors are written through writeError() with one of the ERROR_ codes, so
+ * that front ends such as the HttpGateway can tell what went wrong without
+ * looking at the text of the reply.
+ *
+ * @author Niall Scott
+ */
+public abstract class ResponseWriter extends PrintWriter {
+
+    /** The command or its parameters were not valid. */
+    public static final int ERROR_BAD_REQUEST = 1;
+    /** The command is not known. */
+    public static final int ERROR_UNKNOWN_COMMAND = 2;
+    /** The live data could not be got from the Bus Tracker website. */
+    public static final int ERROR_UPSTREAM = 3;
+    /** The server could not make the reply. */
+    public static final int ERROR_INTERNAL = 4;
+    private static final String LINE_SEPARATOR =
+            System.getProperty("line.separator");
+
+    private long bytesWritten = 0;
+    private String outcome = null;
+
+    /**
+     * Create a new ResponseWriter.
+     *
+     * @param out Where text written to this ResponseWriter goes.
+     * @param autoFlush Whether println() flushes the text.
+     */
+    protected ResponseWriter(final Writer out, final boolean autoFlush) {
+        super(out, autoFlush);
+    }
+
+    /**
+     * Write encoded data to the client with a single gathering write. The
+     * positions of the given buffers are not changed, so the same buffers can
+     * be written to many clients at once.
+     *
+     * @param buffers The encoded data to write.
+     * @throws IOException When the data could not be written.
+     */
+    public final void write(final ByteBuffer[] buffers) throws IOException {
+        for(ByteBuffer buffer : buffers) bytesWritten += buffer.remaining();
+        writeBuffers(buffers);
+    }
+
+    /**
+     * Write encoded data to the client with a single gathering write. This is
+     * where subclasses send the data passed to write(ByteBuffer[]), and the
+     * same rules apply.
+     *
+     * @param buffers The encoded data to write.
+     * @throws IOException When the data could not be written.
+     */
+    protected abstract void writeBuffers(ByteBuffer[] buffers)
+            throws IOException;
+
+    /**
+     * Write encoded data to the client. The position of the given buffer is
+     * not changed.
+     *
+     * @param buffer The encoded data to write.
+     * @throws IOException When the data could not be written.
+     */
+    public void write(final ByteBuffer buffer) throws IOException {
+        write(new ByteBuffer[] { buffer });
+    }
+
+    /**
+     * Write the reply held by a live data cache entry to the client. By
+     * default the entry's encoded reply is written as it is, but a
+     * ResponseWriter may override this to make use of the rest of the entry,
+     * such as its age.
+     *
+     * @param entry The live data cache entry to write.
+     * @throws IOException When the data could not be written.
+     */
+    public void write(final LiveDataCache.Entry entry) throws IOException {
+        write(entry.getResponse());
+    }
+
+    /**
+     * Tell the client that its request was turned away because the server is
+     * busy. By default this is written as an error line, but a ResponseWriter
+     * may override this to tell the client in its own way.
+     *
+     * @param retryAfter How long the client should wait before trying again,
+     * in seconds.
+     * @throws IOException When the data could not be written.
+     */
+    public void writeBusy(final int retryAfter) throws IOException {
+        println(getBusyMessage(retryAfter));
+    }
+
+    /**
+     * Get the error line which tells a client that the server is busy.
+     *
+     * @param retryAfter How long the client should wait before trying again,
+     * in seconds.
+     * @return The error line, without a line terminator.
+     */
+    static String getBusyMessage(final int retryAfter) {
+        return "Error: the server is busy, retry after " + retryAfter +
+                " seconds.";
+    }
+
+    /**
+     * Tell the client that its command failed. By default the message is
+     * written as an error line, or nothing is written if there is no
+     * message, but a ResponseWriter may override this to tell the client in
+     * its own way.
+     *
+     * @param error What went wrong, as one of the ERROR_ codes.
+     * @param message The reason the command failed, starting with a lower
+     * case letter, or null if the client is not told why.
+     */
+    public void writeError(final int error, final String message) {
+        if(message != null) println("Error: " + message);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final int c) {
+        bytesWritten++;
+        super.write(c);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final char[] buf, final int off, final int len) {
+        bytesWritten += len;
+        super.write(buf, off, len);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final String s, final int off, final int len) {
+        bytesWritten += len;
+        super.write(s, off, len);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void println() {
+        // PrintWriter writes the line separator without calling write().
+        bytesWritten += LINE_SEPARATOR.length();
+        super.println();
+    }
+
+    /**
+     * Count bytes which are sent to the client in place of data written to
+     * this ResponseWriter, such as the body of a live data cache entry.
+     *
+     * @param count The number of bytes.
+     */
+    protected void countBytes(final long count) {
+        bytesWritten += count;
+    }
+
+    /**
+     * Get the number of bytes which have been written so far.
+     *
+     * @return The number of bytes written.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Set the outcome of the command being handled, for the access log.
+     *
+     * @param outcome How the command ended, such as "ok" or "busy", or null
+     * if it has not ended yet.
+     */
+    public void setOutcome(final String outcome) {
+        this.outcome = outcome;
+    }
+
+    /**
+     * Get the outcome of the command being handled.
+     *
+     * @return How the command ended, or null if it has not been set.
+     */
+    public String getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * Create duplicates of buffers, so that they can be written without
+     * changing the positions of the originals.
+     *
+     * @param buffers The buffers to duplicate.
+     * @return The duplicated buffers.
+     */
+    protected static ByteBuffer[] duplicate(final ByteBuffer[] buffers) {
+        ByteBuffer[] result = new ByteBuffer[buffers.length];
+        for(int i = 0; i < buffers.length; i++) {
+            result[i] = buffers[i].duplicate();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,784 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import uk.org.rivernile.edinburghbustracker.server.log.Log;
+import uk.org.rivernile.edinburghbustracker.server.metrics.Metrics;
+
+/**
+ * The SelectorSocketHandler class is an alternative front end to the
+ * IncomingSocketHandler. Rather than starting a thread for every client, a
+ * single thread multiplexes all of the client sockets with a Selector and hands
+ * complete command lines to worker threads, which reply using the same
+ * CommandHandler as the ConnectionHandler does. This means a large amount of
+ * mostly idle connections can be held open on only a few threads.
+ * Connections which sit idle for longer than the configured idle timeout are
+ * found by the HashedWheelTimer and closed by the selector thread.
+ *
+ * A client only uses a worker while it has commands to run, and only one at
+ * a time. Commands may block on the Bus Tracker website, so the worker pool
+ * keeps the configured number of threads but grows when they are all busy,
+ * rather than making other clients, such as those asking for cached stops,
+ * wait behind a slow fetch. When virtual threads are configured, each
+ * client's commands are run on a virtual thread instead. Either way, at most
+ * the configured maximum number of clients are served at once. A command
+ * which arrives when that many are busy is told that the server is busy and
+ * when to try again, rather than starting yet another thread to wait on the
+ * website. Tagged commands do not need a worker of their own, so they are
+ * handed straight to the client's TaggedSession instead. A client which
+ * sends commands faster than they are run, or does not read its replies,
+ * is no longer read from until its backlog has gone down.
+ *
+ * @author Niall Scott
+ */
+public class SelectorSocketHandler {
+
+    private static final int MAX_LINE_LENGTH = 8192;
+    /** Reading from a client stops once it has this many commands queued. */
+    private static final int MAX_QUEUED_COMMANDS = 64;
+    /** Reading from a client stops once it has this many bytes to write. */
+    private static final long MAX_QUEUED_BYTES = 256 * 1024;
+    /** How long spare worker threads are kept, in seconds. */
+    private static final long WORKER_KEEP_ALIVE = 60;
+
+    private Selector selector;
+    private ServerSocketChannel listenChannel;
+    private ExecutorService workers;
+    private final AtomicInteger activeWorkers;
+    private final ConcurrentLinkedQueue<Client> pendingChanges;
+    private final ConcurrentLinkedQueue<Client> idleClients;
+    private final ByteBuffer readBuffer;
+    private int connectionCount;
+    private volatile boolean keepRunning;
+
+    /**
+     * Creates a new SelectorSocketHandler. This constructor does not accept any
+     * parameters.
+     */
+    public SelectorSocketHandler() {
+        pendingChanges = new ConcurrentLinkedQueue<Client>();
+        idleClients = new ConcurrentLinkedQueue<Client>();
+        activeWorkers = new AtomicInteger();
+        readBuffer = ByteBuffer.allocateDirect(4096);
+        connectionCount = 0;
+        keepRunning = true;
+    }
+
+    /**
+     * This is the main loop of the server when the NIO front end is in use. It
+     * sets up the listening channel and worker pool and then loops, dispatching
+     * the socket events, until the server is stopped.
+     */
+    public void run() {
+        try {
+            selector = Selector.open();
+            listenChannel = ServerSocketChannel.open();
+            listenChannel.socket().setReuseAddress(true);
+            listenChannel.socket().setPerformancePreferences(1, 2, 0);
+            listenChannel.socket().bind(new InetSocketAddress(
+                    Config.getConfig().getAddressToBind(),
+                    Config.getConfig().getPortNumber()));
+            listenChannel.configureBlocking(false);
+            listenChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch(IOException e) {
+            Log.getLog().error("Exception while creating listening " +
+                    "socket. Server exiting.", e);
+            System.exit(-1);
+        }
+
+        workers = createWorkers();
+        Log.getLog().info("The socket is now listening.");
+        Iterator<SelectionKey> it;
+        SelectionKey key;
+        try {
+            while(keepRunning) {
+                try {
+                    // There is no periodic work, so this only wakes up for
+                    // socket events, replies, idle clients or a stop.
+                    selector.select();
+                } catch(IOException e) {
+                    Log.getLog().error("Exception while waiting for socket " +
+                            "events.", e);
+                    continue;
+                }
+                applyPendingChanges();
+                closeIdleClients();
+                it = selector.selectedKeys().iterator();
+                while(it.hasNext()) {
+                    key = it.next();
+                    it.remove();
+                    try {
+                        if(!key.isValid()) continue;
+                        if(key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if(key.isReadable()) read((Client)key.attachment());
+                            if(key.isValid() && key.isWritable())
+                                write((Client)key.attachment());
+                        }
+                    } catch(CancelledKeyException e) {
+                        if(key.attachment() != null)
+                            closeClient((Client)key.attachment());
+                    } catch(IOException e) {
+                        Log.getLog().error("Exception while accepting " +
+                                "incoming connection.", e);
+                    }
+                }
+            }
+        } catch(ClosedSelectorException e) {
+            // The server is stopping.
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Create the executor which runs the clients' commands. With platform
+     * threads, the configured number of workers are kept, and more are
+     * started when they are all busy, up to the configured maximum. Each
+     * client uses at most one worker at a time, so there are never more
+     * workers than clients.
+     *
+     * @return The executor which runs the clients' commands.
+     */
+    private static ExecutorService createWorkers() {
+        if(VirtualThreads.isConfigured()) {
+            ExecutorService executor = VirtualThreads.newExecutor();
+            if(executor != null) return executor;
+        }
+        Config config = Config.getConfig();
+        return new ThreadPoolExecutor(config.getWorkerThreads(),
+                config.getMaxWorkerThreads(), WORKER_KEEP_ALIVE,
+                TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "nio-worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Start a worker to execute a client's commands, unless the maximum number
+     * of clients are already being served.
+     *
+     * @param client The client whose commands should be executed.
+     * @return True if a worker was started, false if the workers are all busy.
+     */
+    private boolean startWorker(final Client client) {
+        if(activeWorkers.incrementAndGet() >
+                Config.getConfig().getMaxWorkerThreads()) {
+            activeWorkers.decrementAndGet();
+            return false;
+        }
+        try {
+            workers.execute(client);
+            return true;
+        } catch(RejectedExecutionException e) {
+            // A finished worker has not gone back to the pool yet.
+            activeWorkers.decrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Stops the server by ending the selector loop, which closes the listening
+     * channel and all of the client connections.
+     */
+    public void stopServer() {
+        keepRunning = false;
+        if(selector != null) selector.wakeup();
+    }
+
+    /**
+     * Accept all of the connections waiting on the listening channel. If the
+     * maximum number of connections has been reached, the new client is told
+     * so and is disconnected. While the AdmissionController is turning
+     * fetches away, new clients are told that the server is busy and when to
+     * try again, and are disconnected.
+     *
+     * @throws IOException When an error occurs while accepting a connection.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        int maxConnections;
+        AdmissionController admission;
+        String refusal;
+        while((channel = listenChannel.accept()) != null) {
+            maxConnections = Config.getConfig().getMaxConnections();
+            admission = AdmissionController.getAdmissionController();
+            refusal = null;
+            if(maxConnections != 0 && connectionCount >= maxConnections) {
+                refusal = "Error: server has reached maximum number of " +
+                        "connections.";
+                Metrics.getMetrics().increment("connections.rejected");
+            } else if(admission.isOverloaded()) {
+                refusal = ResponseWriter.getBusyMessage(
+                        admission.getRetryAfter());
+                Metrics.getMetrics().increment("connections.shed");
+            }
+            if(refusal != null) {
+                // The accepted channel is still blocking, so this is written
+                // in full before closing.
+                StringWriter sw = new StringWriter();
+                PrintWriter writer = new PrintWriter(sw);
+                writer.println(refusal);
+                writer.flush();
+                try {
+                    channel.write(ByteBuffer.wrap(sw.toString().getBytes()));
+                } finally {
+                    channel.close();
+                }
+                continue;
+            }
+            channel.configureBlocking(false);
+            Client client = new Client(channel);
+            client.key = channel.register(selector, SelectionKey.OP_READ,
+                    client);
+            client.scheduleIdleCheck(Config.getConfig().getIdleTimeout());
+            connectionCount++;
+            Metrics.getMetrics().increment("connections.accepted");
+            Metrics.getMetrics().increment("connections.active");
+        }
+    }
+
+    /**
+     * Read the data waiting on a client channel and split it in to command
+     * lines, which are then queued for execution on the worker pool. Reading
+     * is paused if the client now has too much of a backlog, so the commands
+     * from a single read may take it a little over the limit.
+     *
+     * @param client The client which has data waiting.
+     */
+    private void read(final Client client) {
+        int count;
+        readBuffer.clear();
+        try {
+            count = client.channel.read(readBuffer);
+        } catch(IOException e) {
+            closeClient(client);
+            return;
+        }
+        if(count < 0) {
+            // The client won't send any more commands, but the ones it has
+            // already sent still get replied to.
+            client.key.interestOps(client.key.interestOps() &
+                    ~SelectionKey.OP_READ);
+            client.inputClosed = true;
+            if(client.isFinished()) closeClient(client);
+            return;
+        }
+
+        client.lastActivity = System.currentTimeMillis();
+        readBuffer.flip();
+        byte b;
+        while(readBuffer.hasRemaining()) {
+            b = readBuffer.get();
+            if(b == '\n') {
+                client.queueCommand(new String(client.line, 0,
+                        client.lineLength));
+                client.lineLength = 0;
+            } else if(client.lineLength == MAX_LINE_LENGTH) {
+                closeClient(client);
+                return;
+            } else {
+                if(client.lineLength == client.line.length) {
+                    byte[] tmp = new byte[Math.min(client.line.length * 2,
+                            MAX_LINE_LENGTH)];
+                    System.arraycopy(client.line, 0, tmp, 0,
+                            client.lineLength);
+                    client.line = tmp;
+                }
+                client.line[client.lineLength++] = b;
+            }
+        }
+        updateReadInterest(client);
+    }
+
+    /**
+     * Write as much of the queued replies to a client as the channel will
+     * currently accept, using a single gathering write.
+     *
+     * @param client The client whose channel is ready for writing.
+     */
+    private void write(final Client client) {
+        ByteBuffer[] buffers = client.writeQueue.toArray(new ByteBuffer[0]);
+        try {
+            client.queuedBytes.addAndGet(-client.channel.write(buffers));
+        } catch(IOException e) {
+            closeClient(client);
+            return;
+        }
+        ByteBuffer head;
+        while((head = client.writeQueue.peek()) != null &&
+                !head.hasRemaining()) {
+            client.writeQueue.poll();
+        }
+        client.lastActivity = System.currentTimeMillis();
+        if(client.writeQueue.isEmpty()) {
+            client.key.interestOps(client.key.interestOps() &
+                    ~SelectionKey.OP_WRITE);
+            if(client.isFinished()) {
+                closeClient(client);
+                return;
+            }
+        }
+        updateReadInterest(client);
+    }
+
+    /**
+     * Stop reading from a client while it has too many commands waiting to
+     * be run or too many bytes waiting to be written, and start again once
+     * it has caught up. This must only be called from the selector thread.
+     *
+     * @param client The client to check.
+     */
+    private void updateReadInterest(final Client client) {
+        if(client.closed || client.inputClosed) return;
+        boolean backlogged = client.isBacklogged();
+        if(backlogged && !client.readPaused) {
+            client.key.interestOps(client.key.interestOps() &
+                    ~SelectionKey.OP_READ);
+            client.readPaused = true;
+        } else if(!backlogged && client.readPaused) {
+            client.key.interestOps(client.key.interestOps() |
+                    SelectionKey.OP_READ);
+            client.readPaused = false;
+        }
+    }
+
+    /**
+     * Worker threads may not touch the selection keys, so they queue the
+     * clients which have new replies waiting instead. This is called from the
+     * selector thread to register interest in writing to those clients, and
+     * to read from them again if they have caught up.
+     */
+    private void applyPendingChanges() {
+        Client client;
+        while((client = pendingChanges.poll()) != null) {
+            if(client.closed) continue;
+            if(!client.writeQueue.isEmpty()) {
+                client.key.interestOps(client.key.interestOps() |
+                        SelectionKey.OP_WRITE);
+            } else if(client.isFinished()) {
+                closeClient(client);
+                continue;
+            }
+            updateReadInterest(client);
+        }
+    }
+
+    /**
+     * Close the client connections which the timer has found to be idle for
+     * longer than the idle timeout, unless they have become active again or
+     * are waiting on a reply, in which case they are checked again later.
+     */
+    private void closeIdleClients() {
+        Client client;
+        long timeout = Config.getConfig().getIdleTimeout();
+        long idle;
+        while((client = idleClients.poll()) != null) {
+            if(client.closed) continue;
+            idle = System.currentTimeMillis() - client.lastActivity;
+            if(client.isBusy()) {
+                client.scheduleIdleCheck(timeout);
+            } else if(idle >= timeout) {
+                closeClient(client);
+            } else {
+                client.scheduleIdleCheck(timeout - idle);
+            }
+        }
+    }
+
+    /**
+     * Close a client connection and stop any of its queued commands from
+     * being executed. This must only be called from the selector thread.
+     *
+     * @param client The client to close.
+     */
+    private void closeClient(final Client client) {
+        if(client.closed) return;
+        client.closed = true;
+        client.idleTimeout.cancel();
+        client.abandon();
+        if(client.session != null) client.session.close();
+        client.key.cancel();
+        try {
+            client.channel.close();
+        } catch(IOException e) {
+            // Assume the channel is already closed.
+        }
+        connectionCount--;
+        Metrics.getMetrics().decrement("connections.active");
+    }
+
+    /**
+     * Close the listening channel, all of the client connections and the
+     * worker pool.
+     */
+    private void shutdown() {
+        if(workers != null) workers.shutdownNow();
+        if(selector == null) return;
+        try {
+            for(SelectionKey key : selector.keys()) {
+                if(key.attachment() instanceof Client)
+                    closeClient((Client)key.attachment());
+            }
+        } catch(ClosedSelectorException e) {
+            // The keys have already been cancelled.
+        }
+        try {
+            if(listenChannel != null) listenChannel.close();
+            selector.close();
+        } catch(IOException e) {
+            // Do nothing as the server is closing anyway.
+        }
+    }
+
+    /**
+     * A Client holds the state of a single client connection. The read and
+     * write state is only touched from the selector thread, while the command
+     * queue is shared with the worker threads. Only one worker executes a
+     * client's commands at any time, so the replies are in the same order as
+     * the commands, unless the client has switched to tagged mode.
+     */
+    private class Client implements Runnable {
+
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private byte[] line = new byte[128];
+        private int lineLength = 0;
+        private volatile long lastActivity = System.currentTimeMillis();
+        private volatile HashedWheelTimer.Timeout idleTimeout;
+        private boolean closed = false;
+        private boolean readPaused = false;
+        private volatile boolean inputClosed = false;
+        private volatile boolean closeRequested = false;
+        private final LinkedList<String> commands = new LinkedList<String>();
+        private boolean processing = false;
+        private final ConcurrentLinkedQueue<ByteBuffer> writeQueue =
+                new ConcurrentLinkedQueue<ByteBuffer>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private volatile TaggedSession session = null;
+        private final CommandHandler commandHandler;
+
+        /**
+         * Create a new Client.
+         *
+         * @param channel The channel connected to the client.
+         */
+        public Client(final SocketChannel channel) {
+            this.channel = channel;
+            commandHandler = new CommandHandler(
+                    channel.socket().getInetAddress());
+        }
+
+        /**
+         * Check whether this client has become idle after a delay. The check
+         * is run on the timer thread, which hands the client to the selector
+         * thread if it looks idle, or checks again once it could be.
+         *
+         * @param delay How long to wait before checking, in milliseconds.
+         */
+        public void scheduleIdleCheck(final long delay) {
+            idleTimeout = HashedWheelTimer.getTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    long timeout = Config.getConfig().getIdleTimeout();
+                    long idle = System.currentTimeMillis() - lastActivity;
+                    if(idle >= timeout) {
+                        idleClients.add(Client.this);
+                        selector.wakeup();
+                    } else {
+                        scheduleIdleCheck(timeout - idle);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Queue a command line for execution, starting a worker for this
+         * client if one is not already running. If no worker can be started,
+         * the command is turned away instead. This must only be called from
+         * the selector thread.
+         *
+         * @param command The command line received from the client.
+         */
+        public void queueCommand(final String command) {
+            synchronized(this) {
+                if(closeRequested) return;
+                commands.add(command);
+                if(processing) return;
+                if(startWorker(this)) {
+                    processing = true;
+                    return;
+                }
+                commands.removeLast();
+            }
+            turnAway(command);
+        }
+
+        /**
+         * Deal with a command which arrived while all of the workers were
+         * busy. Tagged commands are handed to the client's TaggedSession, as
+         * that does not block. Any other command is told that the server is
+         * busy.
+         *
+         * @param command The command line received from the client.
+         */
+        private void turnAway(final String command) {
+            if(session != null) {
+                if(!session.submit(command)) abandon();
+            } else if(TaggedSession.isEnableCommand(command)) {
+                session = new TaggedSession(commandHandler, sink);
+                QueueResponseWriter out = new QueueResponseWriter();
+                out.println(TaggedSession.ENABLE_REPLY);
+                out.queueText();
+            } else {
+                QueueResponseWriter out = new QueueResponseWriter();
+                boolean keepOpen;
+                try {
+                    keepOpen = commandHandler.turnAway(command, out,
+                            AdmissionController.getAdmissionController()
+                            .getRetryAfter());
+                } catch(IOException e) {
+                    keepOpen = false;
+                }
+                out.queueText();
+                if(!keepOpen) abandon();
+            }
+            pendingChanges.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Queue a reply buffer to be written by the selector thread.
+         *
+         * @param buffer The buffer to write.
+         */
+        private void queueWrite(final ByteBuffer buffer) {
+            queuedBytes.addAndGet(buffer.remaining());
+            writeQueue.add(buffer);
+        }
+
+        /**
+         * Whether this client has too many commands waiting to be run or too
+         * many bytes waiting to be written to be read from.
+         *
+         * @return True if reading from this client should be paused.
+         */
+        public synchronized boolean isBacklogged() {
+            return commands.size() >= MAX_QUEUED_COMMANDS ||
+                    queuedBytes.get() >= MAX_QUEUED_BYTES;
+        }
+
+        /**
+         * Discard any commands which have not been executed yet.
+         */
+        public synchronized void abandon() {
+            closeRequested = true;
+            commands.clear();
+        }
+
+        /**
+         * Whether a worker is executing this client's commands or there are
+         * replies still waiting to be written.
+         *
+         * @return True if the client is busy, false if not.
+         */
+        public synchronized boolean isBusy() {
+            return processing || !writeQueue.isEmpty() ||
+                    (session != null && session.isBusy());
+        }
+
+        /**
+         * Whether this client can be closed because it has asked to be or
+         * has stopped sending, and all of its replies have been written.
+         *
+         * @return True if the client can be closed, false if not.
+         */
+        public synchronized boolean isFinished() {
+            return (closeRequested || inputClosed) && !processing &&
+                    writeQueue.isEmpty() &&
+                    (session == null || !session.isBusy());
+        }
+
+        /**
+         * Execute the queued commands for this client on a worker thread.
+         */
+        @Override
+        public void run() {
+            try {
+                runCommands();
+            } finally {
+                activeWorkers.decrementAndGet();
+            }
+        }
+
+        /**
+         * Execute the queued commands for this client until there are none
+         * left.
+         */
+        private void runCommands() {
+            String command;
+            QueueResponseWriter out;
+            boolean keepOpen;
+            while(true) {
+                synchronized(this) {
+                    command = commands.poll();
+                    if(command == null || closeRequested) {
+                        processing = false;
+                        break;
+                    }
+                }
+
+                if(session != null) {
+                    // Tagged commands reply by themselves once they are done.
+                    if(!session.submit(command)) abandon();
+                    continue;
+                }
+                out = new QueueResponseWriter();
+                if(TaggedSession.isEnableCommand(command)) {
+                    session = new TaggedSession(commandHandler, sink);
+                    out.println(TaggedSession.ENABLE_REPLY);
+                    keepOpen = true;
+                } else {
+                    try {
+                        keepOpen = commandHandler.handleCommand(command, out);
+                    } catch(IOException e) {
+                        keepOpen = false;
+                    }
+                }
+                out.queueText();
+                if(!keepOpen) abandon();
+                pendingChanges.add(this);
+                selector.wakeup();
+            }
+
+            if(closeRequested || inputClosed) {
+                pendingChanges.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Replies to tagged commands are queued one whole reply at a time, as
+         * they are sent from many threads.
+         */
+        private final TaggedSession.Sink sink = new TaggedSession.Sink() {
+            @Override
+            public void write(final ByteBuffer[] buffers) {
+                synchronized(writeQueue) {
+                    for(ByteBuffer buffer : buffers) {
+                        queueWrite(buffer);
+                    }
+                }
+                pendingChanges.add(Client.this);
+                selector.wakeup();
+            }
+
+            @Override
+            public void commandFinished() {
+                pendingChanges.add(Client.this);
+                selector.wakeup();
+            }
+        };
+
+        /**
+         * The QueueResponseWriter queues replies to be written to this client
+         * by the selector thread. Encoded data is queued as it is, so a reply
+         * made up of cached data is written with no copying.
+         */
+        private class QueueResponseWriter extends ResponseWriter {
+
+            private final StringWriter text;
+
+            /**
+             * Create a new QueueResponseWriter.
+             */
+            public QueueResponseWriter() {
+                this(new StringWriter());
+            }
+
+            /**
+             * Create a new QueueResponseWriter.
+             *
+             * @param text Where text is held until it is queued.
+             */
+            private QueueResponseWriter(final StringWriter text) {
+                super(text, false);
+                this.text = text;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            protected void writeBuffers(final ByteBuffer[] buffers) {
+                queueText();
+                for(ByteBuffer buffer : duplicate(buffers)) {
+                    queueWrite(buffer);
+                }
+            }
+
+            /**
+             * Encode any text which has been written and queue it.
+             */
+            public void queueText() {
+                flush();
+                if(text.getBuffer().length() > 0) {
+                    queueWrite(ByteBuffer.wrap(text.toString().getBytes(
+                            CommandHandler.UTF8)));
+                    text.getBuffer().setLength(0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server;
+
+import java.io.IOException;
+
+/**
+ * A ServerBusyException is thrown when a request is turned away because the
+ * server already has as much work as it can take. It carries a hint of how
+ * long the client should wait before trying again.
+ *
+ * @author Niall Scott
+ */
+public class ServerBusyException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int retryAfter;
+
+    /**
+     * Create a new ServerBusyException.
+     *
+     * @param retryAfter How long the client should wait before trying again,
+     * in seconds.
+     */
+    public ServerBusyException(final int retryAfter) {
+        super("The server is busy, retry after " + retryAfter + " seconds.");
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Get how long the client should wait before trying again.
+     *
+     * @return How long the client should wait before trying again, in
+     * seconds.
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicReference;
+import uk.org.rivernile.edinburghbustracker.server.log.Log;
+import uk.org.rivernile.edinburghbustracker.server.stoplocations.Database;
+
+/**
+ * The ServerMetadata class holds the small values which clients ask for when
+ * they start up, such as the time the bus stop database was last modified and
+ * the latest version of the Android client. These values are held in memory as
+ * a single immutable snapshot so they can be served without any file access.
+ * The snapshot is reloaded when the files holding the values change, and the
+ * database modification time is also set directly when the database has been
+ * rebuilt. The SHA-256 checksum of the bus stop database is also held here,
+ * and is only worked out again when the database file changes.
+ *
+ * @author Niall Scott
+ */
+public class ServerMetadata {
+
+    /** The file which holds the latest version of the Android client. */
+    public static final String ANDROID_VERSION_FILE = "latest.android";
+    /** The value given when the database modification time is not known. */
+    public static final String UNKNOWN_DB_LAST_MOD_TIME = "0";
+    /** The value given when the latest Android client version is not known. */
+    public static final String UNKNOWN_ANDROID_VERSION = "Unknown";
+    /** The value given when the database checksum is not known. */
+    public static final String UNKNOWN_DB_CHECKSUM = "Unknown";
+
+    private static ServerMetadata metadata = null;
+
+    private final AtomicReference<Snapshot> snapshot =
+            new AtomicReference<Snapshot>();
+    private final AtomicReference<DBChecksum> dbChecksum =
+            new AtomicReference<DBChecksum>(new DBChecksum(0L, 0L,
+                    UNKNOWN_DB_CHECKSUM));
+
+    /**
+     * This constructor is private and can only be called from
+     * getServerMetadata(). It loads the values and then starts watching the
+     * files which hold them.
+     */
+    private ServerMetadata() {
+        reload();
+        updateDBChecksum();
+        startWatching();
+    }
+
+    /**
+     * Get the single instance of the ServerMetadata class.
+     *
+     * @return The single instance of the ServerMetadata class.
+     */
+    public static synchronized ServerMetadata getServerMetadata() {
+        if(metadata == null) metadata = new ServerMetadata();
+        return metadata;
+    }
+
+    /**
+     * Get the time the bus stop database was last modified.
+     *
+     * @return The time the bus stop database was last modified, in
+     * milliseconds since the epoch, or "0" if it is not known.
+     */
+    public String getDBLastModTime() {
+        return snapshot.get().dbLastModTime;
+    }
+
+    /**
+     * Get the latest version of the Android client.
+     *
+     * @return The latest version of the Android client, or "Unknown" if it is
+     * not known.
+     */
+    public String getLatestAndroidClientVersion() {
+        return snapshot.get().androidVersion;
+    }
+
+    /**
+     * Set the time the bus stop database was last modified. This is called
+     * once the database has been rebuilt so that clients see the new time
+     * straight away.
+     *
+     * @param lastModTime The time the bus stop database was last modified, in
+     * milliseconds since the epoch.
+     */
+    public void setDBLastModTime(final long lastModTime) {
+        Snapshot current, updated;
+        do {
+            current = snapshot.get();
+            updated = new Snapshot(String.valueOf(lastModTime),
+                    current.androidVersion);
+        } while(!snapshot.compareAndSet(current, updated));
+    }
+
+    /**
+     * Get the SHA-256 checksum of the bus stop database, as it was when it was
+     * last worked out.
+     *
+     * @return The checksum of the bus stop database as a hex string, or
+     * "Unknown" if it is not known.
+     */
+    public String getDBChecksum() {
+        return dbChecksum.get().checksum;
+    }
+
+    /**
+     * Work out the checksum of the bus stop database again if the file has
+     * changed since it was last worked out. This only looks at the size and
+     * modification time of the file when it has not changed, so it is cheap
+     * to call before the file is sent to a client.
+     *
+     * @return The checksum of the bus stop database as a hex string, or
+     * "Unknown" if it could not be worked out.
+     */
+    public synchronized String updateDBChecksum() {
+        File f = new File(Config.getConfig().getDBPath() + Database.DB_FILE);
+        long length = f.length();
+        long lastModified = f.lastModified();
+        DBChecksum current = dbChecksum.get();
+        if(current.length == length && current.lastModified == lastModified)
+            return current.checksum;
+
+        String checksum = UNKNOWN_DB_CHECKSUM;
+        if(f.exists()) {
+            try {
+                checksum = sha256(f);
+            } catch(IOException e) {
+                Log.getLog().error("Exception while working out the " +
+                        "checksum of the bus stop database.", e);
+            }
+        }
+        dbChecksum.set(new DBChecksum(length, lastModified, checksum));
+        return checksum;
+    }
+
+    /**
+     * Work out the SHA-256 checksum of a file.
+     *
+     * @param f The file to work out the checksum of.
+     * @return The checksum as a lower case hex string.
+     * @throws IOException When the file could not be read.
+     */
+    private static String sha256(final File f) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+            while(channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for(byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read all of the values from their files again and replace the snapshot.
+     * A value whose file does not exist, such as after it has been deleted,
+     * goes back to its default. A file which exists may be caught part way
+     * through being written, so a value which cannot be read, is empty, or
+     * for the database modification time is not a number, is left as it was
+     * in the previous snapshot. The defaults are used for these too when
+     * there is no previous snapshot.
+     */
+    public void reload() {
+        String dbLastModTime = readFirstLine(Database.LAST_MOD_FILE,
+                UNKNOWN_DB_LAST_MOD_TIME);
+        if(dbLastModTime != null) {
+            try {
+                Long.parseLong(dbLastModTime);
+            } catch(NumberFormatException e) {
+                dbLastModTime = null;
+            }
+        }
+        String androidVersion = readFirstLine(ANDROID_VERSION_FILE,
+                UNKNOWN_ANDROID_VERSION);
+        if(androidVersion != null && androidVersion.trim().length() == 0)
+            androidVersion = null;
+
+        Snapshot current, updated;
+        do {
+            current = snapshot.get();
+            updated = new Snapshot(dbLastModTime != null ? dbLastModTime :
+                    current != null ? current.dbLastModTime :
+                    UNKNOWN_DB_LAST_MOD_TIME,
+                    androidVersion != null ? androidVersion :
+                    current != null ? current.androidVersion :
+                    UNKNOWN_ANDROID_VERSION);
+        } while(!snapshot.compareAndSet(current, updated));
+    }
+
+    /**
+     * Read the first line of a file.
+     *
+     * @param fileName The name of the file to read.
+     * @param missingValue The value to give if the file does not exist.
+     * @return The first line of the file, the missing value if the file does
+     * not exist, or null if the file is empty or could not be read.
+     */
+    private static String readFirstLine(final String fileName,
+            final String missingValue)
+    {
+        File f = new File(fileName);
+        if(!f.exists()) return missingValue;
+        if(f.length() == 0L) return null;
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(f));
+            return in.readLine();
+        } catch(FileNotFoundException e) {
+            // The file was deleted after it was checked.
+            return missingValue;
+        } catch(IOException e) {
+            Log.getLog().error("Exception while reading " + fileName + ".",
+                    e);
+            return null;
+        } finally {
+            if(in != null) {
+                try {
+                    in.close();
+                } catch(IOException e) {
+                    // Do nothing as the file has been read.
+                }
+            }
+        }
+    }
+
+    /**
+     * Start a daemon thread which watches the working directory, where the
+     * metadata files are kept, and reloads the snapshot when any of them
+     * change. If the directory cannot be watched, the values are still updated
+     * when the database is rebuilt.
+     */
+    private void startWatching() {
+        final Path dir = new File("").getAbsoluteFile().toPath();
+        final WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch(IOException e) {
+            Log.getLog().error("Unable to watch the metadata files for " +
+                    "changes.", e);
+            return;
+        }
+
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                WatchKey key;
+                boolean changed;
+                while(true) {
+                    try {
+                        key = watcher.take();
+                    } catch(InterruptedException e) {
+                        return;
+                    } catch(ClosedWatchServiceException e) {
+                        return;
+                    }
+                    changed = false;
+                    for(WatchEvent<?> event : key.pollEvents()) {
+                        if(isMetadataFile(event.context())) changed = true;
+                    }
+                    // Overflowed events have no context, so reload anyway.
+                    if(changed || !key.isValid()) reload();
+                    if(!key.reset()) return;
+                }
+            }
+        }, "metadata-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Check whether the file named in a watch event holds metadata.
+     *
+     * @param context The context of the watch event.
+     * @return True if the file holds metadata, or if the event does not say
+     * which file changed.
+     */
+    private static boolean isMetadataFile(final Object context) {
+        if(context == null) return true;
+        String name = context.toString();
+        return name.equals(Database.LAST_MOD_FILE)
+                || name.equals(ANDROID_VERSION_FILE);
+    }
+
+    /**
+     * An immutable snapshot of the metadata values.
+     */
+    private static class Snapshot {
+
+        private final String dbLastModTime;
+        private final String androidVersion;
+
+        /**
+         * Create a new Snapshot.
+         *
+         * @param dbLastModTime The time the bus stop database was last
+         * modified.
+         * @param androidVersion The latest version of the Android client.
+         */
+        public Snapshot(final String dbLastModTime,
+                final String androidVersion)
+        {
+            this.dbLastModTime = dbLastModTime;
+            this.androidVersion = androidVersion;
+        }
+    }
+
+    /**
+     * The checksum of the bus stop database along with the size and
+     * modification time of the file it was worked out from.
+     */
+    private static class DBChecksum {
+
+        private final long length;
+        private final long lastModified;
+        private final String checksum;
+
+        /**
+         * Create a new DBChecksum.
+         *
+         * @param length The size of the database file.
+         * @param lastModified The modification time of the database file.
+         * @param checksum The checksum of the database file.
+         */
+        public DBChecksum(final long length, final long lastModified,
+                final String checksum)
+        {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.json.JSONException;
+import org.json.JSONObject;
+import uk.org.rivernile.edinburghbustracker.server.livedata.LiveDataCache;
+import uk.org.rivernile.edinburghbustracker.server.log.Log;
+import uk.org.rivernile.edinburghbustracker.server.metrics.LatencyHistogram;
+import uk.org.rivernile.edinburghbustracker.server.metrics.Metrics;
+
+/**
+ * The ServerStats class gathers the server's metrics, the state of the live
+ * data cache and the state of the admission controller in to one place. They
+ * are given to JMX clients through the ServerStatsMXBean interface, and to the
+ * line protocol clients allowed by the statsaccess config key through the
+ * stats command.
+ *
+ * @author Niall Scott
+ */
+public class ServerStats implements ServerStatsMXBean {
+
+    /** The name the ServerStats are registered under with JMX. */
+    public static final String OBJECT_NAME =
+            "uk.org.rivernile.edinburghbustracker.server:type=ServerStats";
+
+    private static final ServerStats stats = new ServerStats();
+
+    /**
+     * This constructor is private and can only be called once, when the
+     * single instance is created.
+     */
+    private ServerStats() {
+        // Nothing to set up.
+    }
+
+    /**
+     * Get the single instance of the ServerStats class.
+     *
+     * @return The single instance of the ServerStats class.
+     */
+    public static ServerStats getServerStats() {
+        return stats;
+    }
+
+    /**
+     * Register the ServerStats with the platform MBean server, so they can be
+     * read with tools such as JConsole.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName(OBJECT_NAME));
+        } catch(JMException e) {
+            Log.getLog().error("The server stats could not be registered " +
+                    "with JMX.", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getUptime() {
+        return Metrics.getMetrics().getUptime();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getCounters() {
+        return Metrics.getMetrics().getCounters();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getLatencies() {
+        TreeMap<String, Long> result = new TreeMap<String, Long>();
+        LatencyHistogram h;
+        for(Map.Entry<String, LatencyHistogram> e :
+                Metrics.getMetrics().getHistograms().entrySet()) {
+            h = e.getValue();
+            result.put(e.getKey() + ".count", h.getCount());
+            result.put(e.getKey() + ".mean", h.getMean());
+            result.put(e.getKey() + ".p50", h.getPercentile(50));
+            result.put(e.getKey() + ".p99", h.getPercentile(99));
+            result.put(e.getKey() + ".max", h.getMax());
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getCacheHitRate() {
+        LiveDataCache cache = LiveDataCache.getLiveDataCache();
+        long hits = cache.getHits();
+        long total = hits + cache.getMisses();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getCacheSize() {
+        return LiveDataCache.getLiveDataCache().size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getAdmissionLimit() {
+        return AdmissionController.getAdmissionController().getLimit();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getAdmissionInFlight() {
+        return AdmissionController.getAdmissionController().getInFlight();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getAdmissionQueued() {
+        return AdmissionController.getAdmissionController().getQueued();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAdmissionShed() {
+        return AdmissionController.getAdmissionController().getShed();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getCircuitBreakerState() {
+        return CircuitBreaker.getCircuitBreaker().getState();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getStats() {
+        try {
+            JSONObject json = Metrics.getMetrics().toJSON();
+            json.put("cache", getCacheJSON());
+            json.put("admission", getAdmissionJSON());
+            CircuitBreaker breaker = CircuitBreaker.getCircuitBreaker();
+            JSONObject circuit = new JSONObject();
+            circuit.put("state", breaker.getState());
+            circuit.put("trips", breaker.getTrips());
+            circuit.put("rejected", breaker.getRejected());
+            json.put("breaker", circuit);
+            JSONObject timer = new JSONObject();
+            timer.put("pending", HashedWheelTimer.getTimer().getPending());
+            timer.put("expired", HashedWheelTimer.getTimer().getExpired());
+            json.put("timer", timer);
+            JSONObject log = new JSONObject();
+            log.put("written", Log.getLog().getWritten());
+            log.put("dropped", Log.getLog().getDropped());
+            json.put("log", log);
+            return json.toString();
+        } catch(JSONException e) {
+            Log.getLog().error("A JSON exception has occurred.", e);
+            return "{}";
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean reloadConfig() {
+        return Config.reload();
+    }
+
+    /**
+     * Create a JSON object describing the state of the live data cache.
+     *
+     * @return The state of the live data cache as a JSON object.
+     * @throws JSONException When the JSON object could not be created.
+     */
+    public JSONObject getCacheJSON() throws JSONException {
+        LiveDataCache cache = LiveDataCache.getLiveDataCache();
+        JSONObject json = new JSONObject();
+        json.put("size", cache.size());
+        json.put("maxSize", Config.getConfig().getCacheSize());
+        json.put("memory", cache.getMemory());
+        json.put("maxMemory", Config.getConfig().getCacheMemory());
+        json.put("ttl", Config.getConfig().getCacheTTL());
+        json.put("hits", cache.getHits());
+        json.put("misses", cache.getMisses());
+        json.put("hitRate", getCacheHitRate());
+        json.put("coalesced", cache.getCoalesced());
+        json.put("evictions", cache.getEvictions());
+        json.put("expirations", cache.getExpirations());
+        json.put("refreshes", cache.getRefreshes());
+        json.put("revalidations", cache.getRevalidations());
+        json.put("stale", cache.getStaleServed());
+        return json;
+    }
+
+    /**
+     * Create a JSON object describing the state of the admission controller.
+     *
+     * @return The state of the admission controller as a JSON object.
+     * @throws JSONException When the JSON object could not be created.
+     */
+    public JSONObject getAdmissionJSON() throws JSONException {
+        AdmissionController admission =
+                AdmissionController.getAdmissionController();
+        JSONObject json = new JSONObject();
+        json.put("limit", admission.getLimit());
+        json.put("inFlight", admission.getInFlight());
+        json.put("queued", admission.getQueued());
+        json.put("averageLatency", admission.getAverageLatency());
+        json.put("admitted", admission.getAdmitted());
+        json.put("shed", admission.getShed());
+        return json;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server;
+
+import java.util.Map;
+
+/**
+ * The management interface through which the server's metrics are exposed over
+ * JMX. Latencies are in microseconds. It also lets the config be reloaded,
+ * which is not offered to the clients of the public ports.
+ *
+ * @author Niall Scott
+ */
+public interface ServerStatsMXBean {
+
+    /**
+     * Get how long the server has been running.
+     *
+     * @return The server's uptime, in milliseconds.
+     */
+    long getUptime();
+
+    /**
+     * Get the values of all of the counters, such as the number of accepted
+     * connections and the number of each upstream status code.
+     *
+     * @return The values of the counters, keyed by name.
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * Get the count, mean, percentiles and maximum of each latency histogram.
+     * The keys are the histogram name followed by the statistic, for example
+     * "command.getBusTimesByStopCode.p99".
+     *
+     * @return The latency statistics, keyed by name.
+     */
+    Map<String, Long> getLatencies();
+
+    /**
+     * Get the proportion of live data requests answered from the cache.
+     *
+     * @return The cache hit rate, from 0 to 1.
+     */
+    double getCacheHitRate();
+
+    /**
+     * Get the number of entries in the live data cache.
+     *
+     * @return The number of entries in the live data cache.
+     */
+    int getCacheSize();
+
+    /**
+     * Get the current limit on the number of live data fetches in progress.
+     *
+     * @return The current admission limit.
+     */
+    int getAdmissionLimit();
+
+    /**
+     * Get the number of live data fetches in progress.
+     *
+     * @return The number of live data fetches in progress.
+     */
+    int getAdmissionInFlight();
+
+    /**
+     * Get the number of live data fetches waiting to be let in.
+     *
+     * @return The number of queued live data fetches.
+     */
+    int getAdmissionQueued();
+
+    /**
+     * Get the number of live data fetches which have been turned away.
+     *
+     * @return The number of shed live data fetches.
+     */
+    long getAdmissionShed();
+
+    /**
+     * Get the state of the circuit breaker around live data fetches.
+     *
+     * @return "closed", "open" or "half-open".
+     */
+    String getCircuitBreakerState();
+
+    /**
+     * Get all of the statistics as a single JSON object, in the same form as
+     * the reply to the stats command.
+     *
+     * @return All of the statistics as JSON.
+     */
+    String getStats();
+
+    /**
+     * Reload the config file straight away, rather than waiting for the
+     * change to be noticed. This is only offered over JMX, so only those who
+     * can manage the server can cause a reload.
+     *
+     * @return True if the config was reloaded, false if it was kept as it
+     * was.
+     */
+    boolean reloadConfig();
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A TaggedSession runs the commands of a client which has switched to tagged
+ * mode by sending the enableTaggedMode command. In tagged mode every command
+ * line starts with a tag chosen by the client and a space, for example
+ * "a1 getBusTimesByStopCode:36232684". Several commands from the same client
+ * may be running at once and each reply is sent as soon as it is ready, so
+ * replies may come back in a different order to the commands.
+ *
+ * Each reply is sent as a header line made up of "@", the tag, a space and the
+ * length of the reply in bytes, followed by exactly that many bytes of the
+ * reply the command would have had in the normal mode. A length of 0 means the
+ * command had no reply, such as when the live data could not be fetched. Lines
+ * which do not start with a valid tag are replied to with the tag "*". Tags
+ * may be up to 32 letters, digits, '-' or '_'.
+ *
+ * Tagged commands are run on a pool of threads shared by every client. So
+ * that a few busy clients cannot take all of the pool, each client may only
+ * have its fair share of the pool's threads in flight, and never more than
+ * the configured maximum. When virtual threads are configured, each command
+ * is run on a virtual thread instead and only the configured maximum applies.
+ *
+ * @author Niall Scott
+ */
+public class TaggedSession {
+
+    /** The command which switches a connection in to tagged mode. */
+    public static final String ENABLE_COMMAND = "enableTaggedMode";
+    /** The reply to the command which switches in to tagged mode. */
+    public static final String ENABLE_REPLY = "Tagged mode enabled.";
+    private static final int MAX_TAG_LENGTH = 32;
+    private static final String LINE_SEPARATOR =
+            System.getProperty("line.separator");
+
+    private static ExecutorService executor = null;
+    private static volatile boolean virtual = false;
+    private static final AtomicInteger sessions = new AtomicInteger();
+
+    private final CommandHandler commandHandler;
+    private final Sink sink;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final LinkedList<Command> queued = new LinkedList<Command>();
+    private int inFlight = 0;
+    private boolean exiting = false;
+    private boolean closed = false;
+
+    /**
+     * Create a new TaggedSession.
+     *
+     * @param commandHandler The CommandHandler which runs the commands.
+     * @param sink Where the framed replies are sent.
+     */
+    public TaggedSession(final CommandHandler commandHandler,
+            final Sink sink) {
+        if(commandHandler == null) throw new IllegalArgumentException("The " +
+                "command handler must not be null.");
+        if(sink == null) throw new IllegalArgumentException("The sink must " +
+                "not be null.");
+        this.commandHandler = commandHandler;
+        this.sink = sink;
+        maxInFlight = Config.getConfig().getTaggedMaxInFlight();
+        maxQueued = maxInFlight * 4;
+        sessions.incrementAndGet();
+    }
+
+    /**
+     * Whether a line received from a client in the normal mode asks for the
+     * connection to be switched in to tagged mode.
+     *
+     * @param line The line received from the client.
+     * @return True if the connection should be switched in to tagged mode.
+     */
+    public static boolean isEnableCommand(final String line) {
+        return line.trim().equals(ENABLE_COMMAND);
+    }
+
+    /**
+     * Submit a tagged command line received from the client. The command is
+     * started straight away if the client has fewer than its share of
+     * commands in flight, otherwise it is queued. If too many commands are
+     * queued, the command is turned away with an error. This method does not
+     * block on the command.
+     *
+     * @param line The line received from the client, with the line terminator
+     * removed.
+     * @return True if the connection should remain open, false if the client
+     * has asked for the connection to be closed. Commands which are already
+     * in flight or queued still get their replies.
+     */
+    public boolean submit(final String line) {
+        if(line == null) throw new IllegalArgumentException("The line must " +
+                "not be null.");
+        String trimmed = line.trim();
+        if(trimmed.length() == 0) return true;
+
+        int space = trimmed.indexOf(' ');
+        String tag = space > 0 ? trimmed.substring(0, space) : null;
+        if(tag == null || !isValidTag(tag)) {
+            reply("*", "Error: tagged commands must be given as a tag, a " +
+                    "space and then the command.");
+            return true;
+        }
+        String command = trimmed.substring(space + 1).trim();
+        if(command.equals("exit")) {
+            synchronized(this) {
+                exiting = true;
+            }
+            return false;
+        }
+
+        Command c = new Command(tag, command);
+        boolean start = false;
+        boolean rejected = false;
+        ExecutorService pool = getExecutor();
+        synchronized(this) {
+            if(exiting || closed) return false;
+            if(inFlight < getShare()) {
+                inFlight++;
+                start = true;
+            } else if(queued.size() < maxQueued) {
+                queued.add(c);
+            } else {
+                rejected = true;
+            }
+        }
+        if(start) {
+            pool.execute(c);
+        } else if(rejected) {
+            reply(tag, "Error: too many commands are in flight.");
+        }
+        return true;
+    }
+
+    /**
+     * Whether any of the client's commands are running or queued.
+     *
+     * @return True if the session is busy, false if not.
+     */
+    public synchronized boolean isBusy() {
+        return inFlight > 0 || !queued.isEmpty();
+    }
+
+    /**
+     * Block until all of the client's commands have finished and their
+     * replies have been sent.
+     *
+     * @throws InterruptedException When interrupted while waiting.
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while(isBusy()) {
+            wait();
+        }
+    }
+
+    /**
+     * Close the session because the connection has gone. Queued commands are
+     * dropped and no more commands are accepted. Commands which are already
+     * running are left to finish, but their replies will most likely not be
+     * sent.
+     */
+    public synchronized void close() {
+        if(!closed) sessions.decrementAndGet();
+        closed = true;
+        queued.clear();
+        notifyAll();
+    }
+
+    /**
+     * Get the number of commands this client may have in flight at the
+     * moment. With platform threads, this is the client's fair share of the
+     * tagged command pool, but always at least 1, so every client makes
+     * progress.
+     *
+     * @return The number of commands this client may have in flight.
+     */
+    private int getShare() {
+        if(virtual) return maxInFlight;
+        int share = Config.getConfig().getTaggedThreads() /
+                Math.max(1, sessions.get());
+        return Math.max(1, Math.min(maxInFlight, share));
+    }
+
+    /**
+     * Whether a tag is valid.
+     *
+     * @param tag The tag to check.
+     * @return True if the tag is valid, false if not.
+     */
+    private static boolean isValidTag(final String tag) {
+        if(tag.length() > MAX_TAG_LENGTH) return false;
+        char c;
+        for(int i = 0; i < tag.length(); i++) {
+            c = tag.charAt(i);
+            if(!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z') &&
+                    !(c >= '0' && c <= '9') && c != '-' && c != '_')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Send a single line reply straight away.
+     *
+     * @param tag The tag of the reply.
+     * @param text The line to reply with.
+     */
+    private void reply(final String tag, final String text) {
+        BufferResponseWriter out = new BufferResponseWriter();
+        out.println(text);
+        send(tag, out);
+    }
+
+    /**
+     * Frame a reply with its tag and send it.
+     *
+     * @param tag The tag of the reply.
+     * @param out The reply.
+     */
+    private void send(final String tag, final BufferResponseWriter out) {
+        try {
+            sink.write(out.toBuffers(tag));
+        } catch(IOException e) {
+            // The client has gone, so there is nobody to reply to.
+        }
+    }
+
+    /**
+     * Called once a command has finished and its reply has been sent. The
+     * next queued command, if any, is started, unless the client now has
+     * more than its share in flight because other clients have joined.
+     */
+    private void finished() {
+        Command next;
+        synchronized(this) {
+            next = closed || inFlight > getShare() ? null : queued.poll();
+            if(next == null) inFlight--;
+            notifyAll();
+        }
+        if(next != null) getExecutor().execute(next);
+        sink.commandFinished();
+    }
+
+    /**
+     * Get the thread pool which runs tagged commands. It is shared between
+     * all clients and is created the first time it is needed. When virtual
+     * threads are configured, each command is run on a new virtual thread.
+     *
+     * @return The thread pool for tagged commands.
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if(executor == null && VirtualThreads.isConfigured()) {
+            executor = VirtualThreads.newExecutor();
+            virtual = executor != null;
+        }
+        if(executor == null) {
+            executor = Executors.newFixedThreadPool(
+                    Config.getConfig().getTaggedThreads(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            Thread t = new Thread(r, "tagged-command");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return executor;
+    }
+
+    /**
+     * A Sink is where a TaggedSession sends its framed replies. Replies are
+     * sent from many threads at once, so each call to write() must send its
+     * buffers without any other reply coming between them.
+     */
+    public interface Sink {
+
+        /**
+         * Send a framed reply to the client.
+         *
+         * @param buffers The framed reply.
+         * @throws IOException When the reply could not be sent.
+         */
+        void write(ByteBuffer[] buffers) throws IOException;
+
+        /**
+         * Called after a command has finished and its reply has been sent,
+         * so the front end can check whether the connection is now idle.
+         */
+        void commandFinished();
+    }
+
+    /**
+     * A single tagged command, which is run on the tagged command pool.
+     */
+    private class Command implements Runnable {
+
+        private final String tag;
+        private final String command;
+
+        /**
+         * Create a new Command.
+         *
+         * @param tag The tag given by the client.
+         * @param command The command line, without the tag.
+         */
+        public Command(final String tag, final String command) {
+            this.tag = tag;
+            this.command = command;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            BufferResponseWriter out = new BufferResponseWriter();
+            try {
+                commandHandler.handleCommand(command, out);
+                send(tag, out);
+            } catch(IOException e) {
+                send(tag, new BufferResponseWriter());
+            } finally {
+                finished();
+            }
+        }
+    }
+
+    /**
+     * The BufferResponseWriter holds a reply in memory until it is complete,
+     * so its length is known before it is framed. Encoded data is held as it
+     * is, so a reply made up of cached data is sent with no copying.
+     */
+    private static class BufferResponseWriter extends ResponseWriter {
+
+        private final StringWriter text;
+        private final ArrayList<ByteBuffer> buffers =
+                new ArrayList<ByteBuffer>();
+
+        /**
+         * Create a new BufferResponseWriter.
+         */
+        public BufferResponseWriter() {
+            this(new StringWriter());
+        }
+
+        /**
+         * Create a new BufferResponseWriter.
+         *
+         * @param text Where text is held until it is encoded.
+         */
+        private BufferResponseWriter(final StringWriter text) {
+            super(text, false);
+            this.text = text;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void writeBuffers(final ByteBuffer[] buffers) {
+            encodeText();
+            for(ByteBuffer buffer : duplicate(buffers)) {
+                this.buffers.add(buffer);
+            }
+        }
+
+        /**
+         * Get the reply, framed with a header line holding its tag and
+         * length.
+         *
+         * @param tag The tag of the reply.
+         * @return The framed reply.
+         */
+        public ByteBuffer[] toBuffers(final String tag) {
+            encodeText();
+            long length = 0;
+            for(ByteBuffer buffer : buffers) {
+                length += buffer.remaining();
+            }
+            ByteBuffer[] result = new ByteBuffer[buffers.size() + 1];
+            result[0] = ByteBuffer.wrap(("@" + tag + " " + length +
+                    LINE_SEPARATOR).getBytes(CommandHandler.UTF8));
+            for(int i = 0; i < buffers.size(); i++) {
+                result[i + 1] = buffers.get(i);
+            }
+            return result;
+        }
+
+        /**
+         * Encode any text which has been written and hold it.
+         */
+        private void encodeText() {
+            flush();
+            if(text.getBuffer().length() > 0) {
+                buffers.add(ByteBuffer.wrap(text.toString().getBytes(
+                        CommandHandler.UTF8)));
+                text.getBuffer().setLength(0);
+            }
+        }
+    }
+}
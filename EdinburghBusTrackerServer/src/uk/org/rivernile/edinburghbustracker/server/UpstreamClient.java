@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import uk.org.rivernile.edinburghbustracker.server.metrics.Metrics;
+
+/**
+ * The UpstreamClient class makes all of the HTTP requests to the Bus Tracker
+ * website. Requests are executed on a fixed size pool of threads, so there are
+ * never more connections open to the website than there are threads, and the
+ * responses are read in full and the connections left open so that the Java
+ * runtime can reuse them for the next request. Each request has a connect and
+ * read timeout, and failed requests are retried after a randomised, growing
+ * delay. The whole request, including its retries, has a deadline, after which
+ * it fails and any connection it has open is aborted. Retries and deadlines
+ * are both run by the HashedWheelTimer.
+ *
+ * @author Niall Scott
+ */
+public class UpstreamClient {
+
+    /** The longest time to wait before retrying a request, in milliseconds. */
+    private static final long MAX_RETRY_DELAY = 5000;
+
+    private static UpstreamClient client = null;
+
+    private final ExecutorService executor;
+    private final Random random = new Random();
+
+    /**
+     * This constructor is private and can only be called from
+     * getUpstreamClient(). It sizes the thread pool from the config. The
+     * keep-alive cache is sized to match by Main, when the server starts.
+     */
+    private UpstreamClient() {
+        int poolSize = Config.getConfig().getUpstreamPoolSize();
+        executor = Executors.newFixedThreadPool(poolSize,
+                new UpstreamThreadFactory("upstream"));
+    }
+
+    /**
+     * Get the single instance of the UpstreamClient class.
+     *
+     * @return The single instance of the UpstreamClient class.
+     */
+    public static synchronized UpstreamClient getUpstreamClient() {
+        if(client == null) client = new UpstreamClient();
+        return client;
+    }
+
+    /**
+     * Fetch the body of a URL, blocking until it has been fetched or all of
+     * the attempts to fetch it have failed.
+     *
+     * @param url The URL to fetch.
+     * @return The body of the response.
+     * @throws IOException When the URL could not be fetched.
+     */
+    public byte[] fetch(final String url) throws IOException {
+        try {
+            return fetchAsync(url).get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching " +
+                    url);
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Fetch the body of a URL without blocking. The returned future is
+     * completed with the body of the response, or with the IOException of the
+     * last attempt if all of the attempts to fetch it failed, or with a
+     * SocketTimeoutException if the deadline passed first.
+     *
+     * @param url The URL to fetch.
+     * @return A future which is completed once the URL has been fetched.
+     */
+    public CompletableFuture<byte[]> fetchAsync(final String url) {
+        if(url == null) throw new IllegalArgumentException("The url must not " +
+                "be null.");
+        final CompletableFuture<byte[]> result =
+                new CompletableFuture<byte[]>();
+        final AtomicReference<HttpURLConnection> connection =
+                new AtomicReference<HttpURLConnection>();
+        long deadline = Config.getConfig().getUpstreamDeadline();
+        if(deadline > 0) {
+            final HashedWheelTimer.Timeout timeout =
+                    HashedWheelTimer.getTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if(!result.completeExceptionally(new SocketTimeoutException(
+                            "The deadline passed while fetching " + url)))
+                        return;
+                    Metrics.getMetrics().increment("upstream.errors.deadline");
+                    // Closing the connection wakes up the pool thread which
+                    // is blocked reading from it.
+                    HttpURLConnection con = connection.get();
+                    if(con != null) con.disconnect();
+                }
+            }, deadline, TimeUnit.MILLISECONDS);
+            result.whenComplete(new BiConsumer<byte[], Throwable>() {
+                @Override
+                public void accept(final byte[] body, final Throwable t) {
+                    timeout.cancel();
+                }
+            });
+        }
+        attempt(url, 0, result, connection);
+        return result;
+    }
+
+    /**
+     * Submit an attempt at fetching a URL to the pool. If the attempt fails
+     * and the failure may be temporary, another attempt is scheduled. Nothing
+     * is done if the deadline has already passed.
+     *
+     * @param url The URL to fetch.
+     * @param attempt The number of attempts which have already failed.
+     * @param result The future to complete once the URL has been fetched.
+     * @param connection Where the connection of the current attempt is kept,
+     * so that it can be aborted when the deadline passes.
+     */
+    private void attempt(final String url, final int attempt,
+            final CompletableFuture<byte[]> result,
+            final AtomicReference<HttpURLConnection> connection) {
+        if(result.isDone()) return;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(result.isDone()) return;
+                try {
+                    result.complete(fetchOnce(url, connection));
+                } catch(IOException e) {
+                    if(attempt >= Config.getConfig().getUpstreamRetries() ||
+                            !isRetryable(e) || result.isDone()) {
+                        result.completeExceptionally(e);
+                        return;
+                    }
+                    Metrics.getMetrics().increment("upstream.retries");
+                    HashedWheelTimer.getTimer().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            attempt(url, attempt + 1, result, connection);
+                        }
+                    }, getRetryDelay(attempt), TimeUnit.MILLISECONDS);
+                } catch(RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Make a single request for a URL. The response is read in full and the
+     * stream closed, rather than the connection disconnected, so that the
+     * connection is returned to the keep-alive pool.
+     *
+     * @param url The URL to fetch.
+     * @param connection Where the connection is kept while it is open.
+     * @return The body of the response.
+     * @throws IOException When the URL could not be fetched.
+     */
+    private static byte[] fetchOnce(final String url,
+            final AtomicReference<HttpURLConnection> connection)
+            throws IOException
+    {
+        Metrics metrics = Metrics.getMetrics();
+        long start = System.nanoTime();
+        HttpURLConnection con =
+                (HttpURLConnection)new URL(url).openConnection();
+        con.setConnectTimeout(Config.getConfig().getUpstreamConnectTimeout());
+        con.setReadTimeout(Config.getConfig().getUpstreamReadTimeout());
+        con.setUseCaches(false);
+        connection.set(con);
+        try {
+            int responseCode = con.getResponseCode();
+            metrics.increment("upstream.status." + responseCode);
+            if(responseCode != HttpURLConnection.HTTP_OK) {
+                InputStream err = con.getErrorStream();
+                if(err != null) readFully(err);
+                throw new UpstreamException(responseCode);
+            }
+            byte[] body = readFully(con.getInputStream());
+            metrics.recordSince("upstream.fetch", start);
+            return body;
+        } catch(UpstreamException e) {
+            throw e;
+        } catch(IOException e) {
+            metrics.increment(e instanceof SocketTimeoutException ?
+                    "upstream.errors.timeout" : "upstream.errors.io");
+            // Don't let a broken connection go back in to the pool.
+            con.disconnect();
+            throw e;
+        } finally {
+            connection.compareAndSet(con, null);
+        }
+    }
+
+    /**
+     * Read a stream until it ends and then close it.
+     *
+     * @param in The stream to read.
+     * @return Everything which was read from the stream.
+     * @throws IOException When an error occurs while reading.
+     */
+    private static byte[] readFully(final InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+            byte[] buf = new byte[8192];
+            int count;
+            while((count = in.read(buf)) != -1) {
+                out.write(buf, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Whether a failed request may succeed if it is tried again. Requests
+     * which the website rejected as bad are not retried.
+     *
+     * @param e The exception the request failed with.
+     * @return True if the request should be retried, false if not.
+     */
+    private static boolean isRetryable(final IOException e) {
+        if(e instanceof UpstreamException)
+            return ((UpstreamException)e).getResponseCode() >= 500;
+        return true;
+    }
+
+    /**
+     * Get how long to wait before the next attempt. The delay is random, up
+     * to the configured retry delay doubled for each failed attempt, so that
+     * clients retrying at the same time spread out their requests.
+     *
+     * @param attempt The number of attempts which have already failed.
+     * @return The time to wait before the next attempt, in milliseconds.
+     */
+    private long getRetryDelay(final int attempt) {
+        long ceiling = Math.min(MAX_RETRY_DELAY,
+                Config.getConfig().getUpstreamRetryDelay() << Math.min(attempt,
+                16));
+        synchronized(random) {
+            return ceiling / 2 + (long)(random.nextDouble() * (ceiling / 2));
+        }
+    }
+
+    /**
+     * An UpstreamException is thrown when the website replies with a status
+     * other than 200 OK.
+     */
+    public static class UpstreamException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int responseCode;
+
+        /**
+         * Create a new UpstreamException.
+         *
+         * @param responseCode The HTTP status the website replied with.
+         */
+        public UpstreamException(final int responseCode) {
+            super("The Bus Tracker website replied with HTTP status " +
+                    responseCode + ".");
+            this.responseCode = responseCode;
+        }
+
+        /**
+         * Get the HTTP status the website replied with.
+         *
+         * @return The HTTP status the website replied with.
+         */
+        public int getResponseCode() {
+            return responseCode;
+        }
+    }
+
+    /**
+     * Creates the daemon threads used by the UpstreamClient.
+     */
+    private static class UpstreamThreadFactory implements ThreadFactory {
+
+        private final String name;
+
+        /**
+         * Create a new UpstreamThreadFactory.
+         *
+         * @param name The name given to the created threads.
+         */
+        public UpstreamThreadFactory(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import uk.org.rivernile.edinburghbustracker.server.log.Log;
+
+/**
+ * The VirtualThreads class creates executors which run each task on a new
+ * virtual thread. Virtual threads only exist from Java 21 onwards, so they
+ * are looked up reflectively and callers fall back to platform threads when
+ * they are not available.
+ *
+ * @author Niall Scott
+ */
+public final class VirtualThreads {
+
+    /**
+     * This class only has static methods, so it cannot be instantiated.
+     */
+    private VirtualThreads() {
+        // Nothing to set up.
+    }
+
+    /**
+     * Whether the config asks for virtual threads to be used.
+     *
+     * @return True if virtual threads are configured, false if not.
+     */
+    public static boolean isConfigured() {
+        return Config.EXECUTOR_VIRTUAL.equals(
+                Config.getConfig().getExecutor());
+    }
+
+    /**
+     * Create an executor which runs each task on a new virtual thread.
+     *
+     * @return The executor, or null if this Java runtime does not support
+     * virtual threads.
+     */
+    public static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService)Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch(Exception e) {
+            Log.getLog().error("Virtual threads are not supported by this " +
+                    "Java runtime, platform threads will be used instead.");
+            return null;
+        }
+    }
+}
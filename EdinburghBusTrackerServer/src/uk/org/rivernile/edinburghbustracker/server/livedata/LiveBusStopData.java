@@ -31,6 +31,7 @@ import org.json.JSONException;
 import org.json.JSONWriter;
 import org.xml.sax.Attributes;
 import org.xml.sax.helpers.DefaultHandler;
+import uk.org.rivernile.edinburghbustracker.server.log.Log;
 
 /**
  * This class holds the live bus stop data. It gets the values from the parsed
@@ -180,6 +181,64 @@ public class LiveBusStopData extends DefaultHandler {
         service.addLiveBus(bus);
     }
 
+    /**
+     * Set the stop code of the bus stop. This is used by the LiveDataScanner,
+     * which fills in this object without going through the SAX callbacks.
+     *
+     * @param stopCode The stop code of the bus stop.
+     */
+    void setStopCode(final String stopCode) {
+        thisStopCode = stopCode;
+    }
+
+    /**
+     * Set the name of the bus stop. This is used by the LiveDataScanner.
+     *
+     * @param stopName The name of the bus stop.
+     */
+    void setStopName(final String stopName) {
+        thisStopName = stopName;
+    }
+
+    /**
+     * Add a bus service which serves the bus stop. This is used by the
+     * LiveDataScanner.
+     *
+     * @param busService The bus service to add.
+     */
+    void addBusService(final BusService busService) {
+        busServices.add(busService);
+    }
+
+    /**
+     * Get the stop code of the bus stop. This is used by the
+     * LiveDataBinaryCodec.
+     *
+     * @return The stop code of the bus stop.
+     */
+    String getStopCode() {
+        return thisStopCode;
+    }
+
+    /**
+     * Get the name of the bus stop. This is used by the LiveDataBinaryCodec.
+     *
+     * @return The name of the bus stop.
+     */
+    String getStopName() {
+        return thisStopName;
+    }
+
+    /**
+     * Get the bus services which serve the bus stop. This is used by the
+     * LiveDataBinaryCodec.
+     *
+     * @return The bus services which serve the bus stop.
+     */
+    ArrayList<BusService> getBusServices() {
+        return busServices;
+    }
+
     /**
      * Get all of the bus stop information available in this object and output
      * it in JSON format to the supplied Writer stream.
@@ -187,13 +246,29 @@ public class LiveBusStopData extends DefaultHandler {
      * @param out The stream to write the JSON text to.
      */
     public void writeJSONToStream(final Writer out) {
+        writeJSONToStream(out, -1);
+    }
+
+    /**
+     * Get all of the bus stop information available in this object and output
+     * it in JSON format to the supplied Writer stream. When the information is
+     * being served after it should have been fetched again, its age is given
+     * in a "staleAge" key so that clients can tell how old it is.
+     *
+     * @param out The stream to write the JSON text to.
+     * @param staleAge How long ago the information was fetched, in seconds,
+     * or -1 if it is not stale.
+     */
+    public void writeJSONToStream(final Writer out, final long staleAge) {
         if(out == null) throw new IllegalArgumentException("The Writer object" +
                 " cannot be null.");
         
         JSONWriter jw = new JSONWriter(out);
         try {
             jw.object().key("stopCode").value(thisStopCode).key("stopName")
-                    .value(thisStopName).key("services").array();
+                    .value(thisStopName);
+            if(staleAge >= 0) jw.key("staleAge").value(staleAge);
+            jw.key("services").array();
             for(BusService s : busServices) {
                 jw.object().key("serviceName").value(s.getServiceName())
                         .key("route").value(s.getRoute()).key("buses").array();
@@ -207,9 +282,7 @@ public class LiveBusStopData extends DefaultHandler {
             }
             jw.endArray().endObject();
         } catch(JSONException e) {
-            System.err.println("A JSON exception has occurred. The exception " +
-                    "reported was:");
-            System.err.println(e.toString());
+            Log.getLog().error("A JSON exception has occurred.", e);
         }
     }
 }
\ No newline at end of file
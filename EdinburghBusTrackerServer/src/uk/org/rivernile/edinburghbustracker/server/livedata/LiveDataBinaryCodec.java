@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server.livedata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The LiveDataBinaryCodec encodes LiveBusStopData in to a compact binary form,
+ * as an alternative to JSON for clients on slow connections, and decodes it
+ * again. Destinations, routes and arrival times repeat a lot within a single
+ * stop, so every string is held once in a string table at the start and is
+ * then referred to by its position in the table.
+ *
+ * All numbers are unsigned variable length integers, 7 bits to a byte with the
+ * high bit set on every byte but the last. The layout is:
+ * <pre>
+ * 'B' 'T' version(1 byte, currently 1)
+ * stringCount { byteLength UTF-8 bytes }
+ * stopCode stopName serviceCount
+ * { serviceName route busCount
+ *   { destination arrivalTime flags(1 byte, bit 0 = accessible) } }
+ * </pre>
+ * Strings are written as their position in the string table plus 1, with 0
+ * meaning there is no string. The decoder only needs to read bytes, so it can
+ * be used as it is by clients with no JSON or reflection support.
+ *
+ * @author Niall Scott
+ */
+public final class LiveDataBinaryCodec {
+
+    /** The content type of the binary form, used by the HTTP gateway. */
+    public static final String CONTENT_TYPE =
+            "application/x-bustracker-departures";
+    /** The version of the binary form written by this codec. */
+    public static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte MAGIC_0 = 'B';
+    private static final byte MAGIC_1 = 'T';
+    private static final int FLAG_ACCESSIBLE = 1;
+
+    /**
+     * This class only has static methods, so it cannot be created.
+     */
+    private LiveDataBinaryCodec() {
+        // Nothing to do here.
+    }
+
+    /**
+     * Encode live bus stop data in to the binary form.
+     *
+     * @param data The data to encode.
+     * @return The encoded data.
+     */
+    public static byte[] encode(final LiveBusStopData data) {
+        if(data == null) throw new IllegalArgumentException("The data must " +
+                "not be null.");
+
+        HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+        ArrayList<String> strings = new ArrayList<String>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        writeString(body, data.getStopCode(), indexes, strings);
+        writeString(body, data.getStopName(), indexes, strings);
+        ArrayList<BusService> services = data.getBusServices();
+        writeVarInt(body, services.size());
+        for(BusService s : services) {
+            writeString(body, s.getServiceName(), indexes, strings);
+            writeString(body, s.getRoute(), indexes, strings);
+            writeVarInt(body, s.buses.size());
+            for(LiveBus b : s.buses) {
+                writeString(body, b.getDestination(), indexes, strings);
+                writeString(body, b.getArrivalTime(), indexes, strings);
+                body.write(b.getAccessible() ? FLAG_ACCESSIBLE : 0);
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                body.size() + strings.size() * 12 + 8);
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(VERSION);
+        writeVarInt(out, strings.size());
+        byte[] bytes;
+        for(String s : strings) {
+            bytes = s.getBytes(UTF8);
+            writeVarInt(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        byte[] encodedBody = body.toByteArray();
+        out.write(encodedBody, 0, encodedBody.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode live bus stop data from the binary form. The position of the
+     * buffer is moved past the data.
+     *
+     * @param in The encoded data.
+     * @return The decoded data.
+     * @throws IOException When the data is not valid.
+     */
+    public static LiveBusStopData decode(final ByteBuffer in)
+            throws IOException
+    {
+        if(in == null) throw new IllegalArgumentException("The buffer must " +
+                "not be null.");
+
+        try {
+            if(in.get() != MAGIC_0 || in.get() != MAGIC_1)
+                throw new IOException("The data is not in the binary live " +
+                        "data form.");
+            int version = in.get() & 0xff;
+            if(version != VERSION) throw new IOException("Version " +
+                    version + " of the binary live data form is not " +
+                    "supported.");
+
+            int count = readCount(in);
+            String[] strings = new String[count];
+            byte[] bytes;
+            for(int i = 0; i < count; i++) {
+                bytes = new byte[readCount(in)];
+                in.get(bytes);
+                strings[i] = new String(bytes, UTF8);
+            }
+
+            LiveBusStopData data = new LiveBusStopData();
+            String value = readString(in, strings);
+            data.setStopCode(value == null ? "" : value);
+            value = readString(in, strings);
+            data.setStopName(value == null ? "" : value);
+            int serviceCount = readCount(in);
+            BusService service;
+            LiveBus bus;
+            int busCount;
+            // The setters do not accept missing or empty values, which are
+            // left unset instead, as they are when the data is parsed.
+            for(int i = 0; i < serviceCount; i++) {
+                service = new BusService();
+                value = readString(in, strings);
+                if(isSet(value)) service.setServiceName(value);
+                value = readString(in, strings);
+                if(isSet(value)) service.setRoute(value);
+                busCount = readCount(in);
+                for(int j = 0; j < busCount; j++) {
+                    bus = new LiveBus();
+                    value = readString(in, strings);
+                    if(isSet(value)) bus.setDestination(value);
+                    value = readString(in, strings);
+                    if(isSet(value)) bus.setArrivalTime(value);
+                    bus.setAccessible((in.get() & FLAG_ACCESSIBLE) != 0);
+                    service.addLiveBus(bus);
+                }
+                data.addBusService(service);
+            }
+            return data;
+        } catch(BufferUnderflowException e) {
+            throw new IOException("The binary live data is truncated.");
+        }
+    }
+
+    /**
+     * Whether a decoded string has a value.
+     *
+     * @param value The decoded string, which may be null.
+     * @return True if the string is not null or empty.
+     */
+    private static boolean isSet(final String value) {
+        return value != null && value.length() > 0;
+    }
+
+    /**
+     * Write a string as its position in the string table, adding it to the
+     * table if it is not there yet.
+     *
+     * @param out Where to write the position.
+     * @param s The string, which may be null.
+     * @param indexes The position of each string in the table.
+     * @param strings The string table.
+     */
+    private static void writeString(final ByteArrayOutputStream out,
+            final String s, final HashMap<String, Integer> indexes,
+            final ArrayList<String> strings)
+    {
+        if(s == null) {
+            out.write(0);
+            return;
+        }
+        Integer index = indexes.get(s);
+        if(index == null) {
+            index = strings.size();
+            indexes.put(s, index);
+            strings.add(s);
+        }
+        writeVarInt(out, index + 1);
+    }
+
+    /**
+     * Write an unsigned variable length integer.
+     *
+     * @param out Where to write the integer.
+     * @param value The integer, which must not be negative.
+     */
+    private static void writeVarInt(final ByteArrayOutputStream out,
+            final int value)
+    {
+        int v = value;
+        while((v & ~0x7f) != 0) {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    /**
+     * Read an unsigned variable length integer.
+     *
+     * @param in Where to read the integer from.
+     * @return The integer.
+     * @throws IOException When the integer is too large.
+     */
+    private static int readVarInt(final ByteBuffer in) throws IOException {
+        int result = 0;
+        int b;
+        for(int shift = 0; shift < 32; shift += 7) {
+            b = in.get() & 0xff;
+            result |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0) return result;
+        }
+        throw new IOException("A number in the binary live data is too " +
+                "large.");
+    }
+
+    /**
+     * Read a count or a length, which can be no larger than the data which is
+     * left, so that bad data cannot cause a huge allocation.
+     *
+     * @param in Where to read the count from.
+     * @return The count.
+     * @throws IOException When the count is not valid.
+     */
+    private static int readCount(final ByteBuffer in) throws IOException {
+        int count = readVarInt(in);
+        if(count < 0 || count > in.remaining()) throw new IOException("A " +
+                "count in the binary live data is larger than the data.");
+        return count;
+    }
+
+    /**
+     * Read a string as its position in the string table.
+     *
+     * @param in Where to read the position from.
+     * @param strings The string table.
+     * @return The string, or null if there is no string.
+     * @throws IOException When the position is not in the table.
+     */
+    private static String readString(final ByteBuffer in,
+            final String[] strings) throws IOException
+    {
+        int index = readVarInt(in);
+        if(index == 0) return null;
+        if(index < 0 || index > strings.length) throw new IOException("A " +
+                "string in the binary live data is not in the string table.");
+        return strings[index - 1];
+    }
+}
@@ -0,0 +1,765 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server.livedata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.zip.GZIPOutputStream;
+import org.xml.sax.SAXException;
+import uk.org.rivernile.edinburghbustracker.server.AdmissionController;
+import uk.org.rivernile.edinburghbustracker.server.CircuitBreaker;
+import uk.org.rivernile.edinburghbustracker.server.Config;
+import uk.org.rivernile.edinburghbustracker.server.HashedWheelTimer;
+import uk.org.rivernile.edinburghbustracker.server.ServerBusyException;
+import uk.org.rivernile.edinburghbustracker.server.metrics.Metrics;
+
+/**
+ * The LiveDataCache holds recently fetched live departure data, keyed by stop
+ * code, so that many clients asking for the same stop within a short time do
+ * not each cause a request to the Bus Tracker website. Entries expire after
+ * the configured time to live and the least recently used entries are evicted
+ * once either the configured number of stops or the configured amount of
+ * memory is exceeded. When several clients ask for the same stop while it is
+ * not cached, only one request is made and they all share its result.
+ *
+ * Each entry holds its reply already encoded, so serving a cached stop needs
+ * no JSON or character encoding work. Expired entries are taken out by the
+ * HashedWheelTimer, so they do not hold on to memory until they are replaced.
+ * The most requested stops are refreshed by the LiveDataPrefetcher shortly
+ * before their entries expire.
+ *
+ * Expired entries are kept for a while longer so they can still be served
+ * when the Bus Tracker website is failing. This happens when a fetch fails,
+ * and straight away while the CircuitBreaker is open, in which case a fetch
+ * is started in the background to find out whether the website is back. A
+ * stale entry gives its age in its reply.
+ *
+ * @author Niall Scott
+ */
+public class LiveDataCache {
+
+    private static final LiveDataCache cache = new LiveDataCache();
+
+    private final LinkedHashMap<String, Entry> entries;
+    /** The same entries, for lookups which must not change the LRU order. */
+    private final HashMap<String, Entry> index;
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>>
+            inFlight;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong staleServed = new AtomicLong();
+    private long memory = 0;
+
+    /**
+     * This constructor is private and can only be called once, when the
+     * single instance is created.
+     */
+    private LiveDataCache() {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        index = new HashMap<String, Entry>();
+        inFlight = new ConcurrentHashMap<String, CompletableFuture<Entry>>();
+    }
+
+    /**
+     * Get the single instance of the LiveDataCache class.
+     *
+     * @return The single instance of the LiveDataCache class.
+     */
+    public static LiveDataCache getLiveDataCache() {
+        return cache;
+    }
+
+    /**
+     * Get the live departure data for a bus stop. If there is an entry in the
+     * cache which has not expired, it is returned. Otherwise the data is
+     * fetched from the Bus Tracker website, or if another thread is already
+     * fetching the data for this stop, this thread waits for that result.
+     * Fetches are only made once the CircuitBreaker and AdmissionController
+     * let them in. If the fetch cannot be made or fails, the expired entry is
+     * returned as a stale entry if it has not been expired for too long.
+     *
+     * @param stopCode The stop code of the bus stop.
+     * @return The cache entry holding the live departure data.
+     * @throws IOException When an error occurs during the connection to the
+     * Bus Tracker website, or a ServerBusyException when the fetch was turned
+     * away by the CircuitBreaker or the AdmissionController.
+     * @throws SAXException When the fetched data cannot be parsed.
+     */
+    public Entry get(final String stopCode) throws IOException, SAXException {
+        if(stopCode == null) throw new IllegalArgumentException("The stop " +
+                "code must not be null.");
+        if(stopCode.length() == 0) throw new IllegalArgumentException("The " +
+                "length of the stop code must not be 0.");
+
+        LiveDataPrefetcher.getLiveDataPrefetcher().record(stopCode);
+        Config config = Config.getConfig();
+        final long ttl = config.getCacheTTL();
+        Entry entry = null;
+        if(ttl > 0) {
+            synchronized(entries) {
+                entry = entries.get(stopCode);
+            }
+            if(entry != null && entry.getAge() < ttl) {
+                hits.incrementAndGet();
+                return entry;
+            }
+        }
+        misses.incrementAndGet();
+
+        if(entry != null && entry.getAge() >= ttl + config.getCacheStale())
+            entry = null;
+        CircuitBreaker breaker = CircuitBreaker.getCircuitBreaker();
+        if(entry != null && !breaker.isClosed()) {
+            // Don't make the client wait on a website which is failing.
+            if(startRefresh(stopCode)) revalidations.incrementAndGet();
+            return stale(entry);
+        }
+
+        final CompletableFuture<Entry> future =
+                new CompletableFuture<Entry>();
+        CompletableFuture<Entry> existing = inFlight.putIfAbsent(stopCode,
+                future);
+        if(existing == null) {
+            existing = future;
+            AdmissionController admission =
+                    AdmissionController.getAdmissionController();
+            try {
+                if(!breaker.allowRequest()) {
+                    throw new ServerBusyException(breaker.getRetryAfter());
+                }
+                try {
+                    admission.acquire();
+                } catch(IOException e) {
+                    breaker.abandon();
+                    throw e;
+                }
+            } catch(IOException e) {
+                inFlight.remove(stopCode, future);
+                future.completeExceptionally(e);
+                if(entry != null) return stale(entry);
+                throw e;
+            }
+            fetch(stopCode, future, admission, ttl);
+        } else {
+            coalesced.incrementAndGet();
+        }
+
+        // The fetch gives up at the upstream deadline, but the future may
+        // still be waiting for the fetch to be admitted.
+        long deadline = config.getUpstreamDeadline();
+        try {
+            if(deadline <= 0) return existing.get();
+            return existing.get(deadline + config.getAdmissionQueueTimeout(),
+                    TimeUnit.MILLISECONDS);
+        } catch(TimeoutException e) {
+            if(entry != null) return stale(entry);
+            throw new IOException("Timed out waiting for the live data of " +
+                    "stop " + stopCode + ".");
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " +
+                    "the live data of stop " + stopCode + ".");
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof CompletionException && cause.getCause() != null)
+                cause = cause.getCause();
+            if(entry != null && (cause instanceof IOException ||
+                    cause instanceof SAXException)) return stale(entry);
+            if(cause instanceof IOException) throw (IOException)cause;
+            if(cause instanceof SAXException) throw (SAXException)cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if(cause instanceof Error) throw (Error)cause;
+            throw new IOException(cause.toString());
+        }
+    }
+
+    /**
+     * Refresh the live departure data for a bus stop in the background. The
+     * cached entry, if there is one, is still served until the new data
+     * arrives. Nothing is done if the stop is already being fetched, or if the
+     * CircuitBreaker or the AdmissionController cannot let the fetch in
+     * straight away, so a refresh never delays the fetches which clients are
+     * waiting for. This is called by the LiveDataPrefetcher.
+     *
+     * @param stopCode The stop code of the bus stop.
+     * @return True if a fetch was started, false if it was not.
+     */
+    boolean refresh(final String stopCode) {
+        if(!startRefresh(stopCode)) return false;
+        refreshes.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Start a background fetch of the live departure data for a bus stop, as
+     * described by refresh(). This is also used to find out whether the Bus
+     * Tracker website is back while stale entries are being served.
+     *
+     * @param stopCode The stop code of the bus stop.
+     * @return True if a fetch was started, false if it was not.
+     */
+    private boolean startRefresh(final String stopCode) {
+        long ttl = Config.getConfig().getCacheTTL();
+        if(ttl <= 0) return false;
+        CompletableFuture<Entry> future = new CompletableFuture<Entry>();
+        if(inFlight.putIfAbsent(stopCode, future) != null) return false;
+        CircuitBreaker breaker = CircuitBreaker.getCircuitBreaker();
+        if(!breaker.allowRequest()) {
+            inFlight.remove(stopCode, future);
+            return false;
+        }
+        AdmissionController admission =
+                AdmissionController.getAdmissionController();
+        if(!admission.tryAcquire()) {
+            breaker.abandon();
+            inFlight.remove(stopCode, future);
+            return false;
+        }
+        fetch(stopCode, future, admission, ttl);
+        return true;
+    }
+
+    /**
+     * Fetch the live departure data for a bus stop and complete the future
+     * which has been put in to the in flight map for it. The fetch must
+     * already have been let in by the CircuitBreaker and the
+     * AdmissionController, and its outcome is recorded by both.
+     *
+     * @param stopCode The stop code of the bus stop.
+     * @param future The future to complete with the new entry.
+     * @param admission The AdmissionController which let the fetch in.
+     * @param ttl How long the new entry may be served for, in milliseconds.
+     */
+    private void fetch(final String stopCode,
+            final CompletableFuture<Entry> future,
+            final AdmissionController admission, final long ttl) {
+        final long start = System.currentTimeMillis();
+        LiveDataFetcher.fetchAsync(stopCode).whenComplete(
+                new BiConsumer<LiveBusStopData, Throwable>() {
+            @Override
+            public void accept(final LiveBusStopData data,
+                    final Throwable t) {
+                // The future must always be completed and taken out of the
+                // in flight map, or everyone waiting on it would hang.
+                try {
+                    Throwable cause = t instanceof CompletionException ?
+                            t.getCause() : t;
+                    long latency = System.currentTimeMillis() - start;
+                    admission.release(latency, cause instanceof IOException);
+                    // Garbage from the website counts as a failure here too.
+                    CircuitBreaker.getCircuitBreaker().record(latency,
+                            t != null);
+                    if(t != null) {
+                        future.completeExceptionally(t);
+                        return;
+                    }
+                    Entry fetched = new Entry(stopCode, data);
+                    if(ttl > 0) put(fetched, ttl);
+                    future.complete(fetched);
+                } catch(Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    inFlight.remove(stopCode, future);
+                }
+            }
+        });
+    }
+
+    /**
+     * Get a stale copy of an expired entry to be served in its place. The
+     * stale copy gives its age in whole seconds, so it is kept with the entry
+     * and only made again once the age has moved on.
+     *
+     * @param entry The expired entry.
+     * @return The stale copy of the entry.
+     */
+    private Entry stale(final Entry entry) {
+        staleServed.incrementAndGet();
+        long age = entry.getAge() / 1000;
+        Entry copy = entry.staleCopy;
+        if(copy == null || copy.staleAge != age) {
+            copy = new Entry(entry, age);
+            entry.staleCopy = copy;
+            grown(entry);
+        }
+        return copy;
+    }
+
+    /**
+     * Get the cached entry for a bus stop, whether or not it has expired,
+     * without counting it as a hit or a miss.
+     *
+     * @param stopCode The stop code of the bus stop.
+     * @return The cached entry, or null if the stop is not cached.
+     */
+    Entry getCached(final String stopCode) {
+        synchronized(entries) {
+            // This does not count as an access of the entry.
+            return index.get(stopCode);
+        }
+    }
+
+    /**
+     * Put an entry in to the cache, then evict the least recently used
+     * entries until the cache is back within its configured limits. The entry
+     * is taken out again once it has expired and can no longer be served as a
+     * stale entry.
+     *
+     * @param entry The entry to put in to the cache.
+     * @param ttl How long the entry may be served for, in milliseconds.
+     */
+    private void put(final Entry entry, final long ttl) {
+        int maxSize = Config.getConfig().getCacheSize();
+        long maxMemory = Config.getConfig().getCacheMemory();
+        synchronized(entries) {
+            Entry old = entries.put(entry.getStopCode(), entry);
+            index.put(entry.getStopCode(), entry);
+            if(old != null) memory -= old.counted;
+            entry.counted = entry.getSize();
+            memory += entry.counted;
+            evict(maxSize, maxMemory);
+        }
+        // The timer is not told when an entry is replaced or evicted, as
+        // expire() does nothing for entries which are no longer cached.
+        HashedWheelTimer.getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(entry);
+            }
+        }, ttl + Config.getConfig().getCacheStale(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Count the memory an entry has taken since it was put in to the cache,
+     * such as when its gzipped or binary body is built, and evict the least
+     * recently used entries if the cache now uses too much. This does
+     * nothing for entries which are no longer cached.
+     *
+     * @param entry The entry which has grown.
+     */
+    private void grown(final Entry entry) {
+        long maxMemory = Config.getConfig().getCacheMemory();
+        synchronized(entries) {
+            // This does not count as an access of the entry.
+            if(index.get(entry.getStopCode()) != entry) return;
+            int size = entry.getSize();
+            memory += size - entry.counted;
+            entry.counted = size;
+            evict(Integer.MAX_VALUE, maxMemory);
+        }
+    }
+
+    /**
+     * Evict the least recently used entries until the cache is within the
+     * given limits. This must be called while holding the lock on entries.
+     *
+     * @param maxSize The maximum number of entries.
+     * @param maxMemory The maximum amount of memory the entries may hold.
+     */
+    private void evict(final int maxSize, final long maxMemory) {
+        Iterator<Entry> it = entries.values().iterator();
+        Entry eldest;
+        while((entries.size() > maxSize || memory > maxMemory) &&
+                it.hasNext()) {
+            eldest = it.next();
+            it.remove();
+            index.remove(eldest.getStopCode());
+            memory -= eldest.counted;
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Take an expired entry out of the cache, if it is still there. This is
+     * called on the timer thread.
+     *
+     * @param entry The expired entry.
+     */
+    private void expire(final Entry entry) {
+        synchronized(entries) {
+            // This does not count as an access of the entry.
+            if(entries.remove(entry.getStopCode(), entry)) {
+                index.remove(entry.getStopCode());
+                memory -= entry.counted;
+                expirations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Get the number of entries currently held in the cache, including
+     * expired entries which are being kept to be served as stale entries.
+     *
+     * @return The number of entries in the cache.
+     */
+    public int size() {
+        synchronized(entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Get the amount of memory held by the encoded replies in the cache,
+     * including the gzipped and binary bodies which have been built.
+     *
+     * @return The size of the cached replies, in bytes.
+     */
+    public long getMemory() {
+        synchronized(entries) {
+            return memory;
+        }
+    }
+
+    /**
+     * Get the number of requests which were answered from the cache.
+     *
+     * @return The number of cache hits.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of requests which could not be answered from the cache.
+     *
+     * @return The number of cache misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of cache misses which shared the result of a request
+     * already in progress rather than making their own.
+     *
+     * @return The number of coalesced cache misses.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Get the number of entries evicted because the cache was full or used
+     * too much memory.
+     *
+     * @return The number of evicted entries.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the number of entries taken out of the cache because they expired
+     * and could no longer be served as stale entries.
+     *
+     * @return The number of expired entries.
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * Get the number of fetches which were started by the prefetcher to
+     * refresh popular stops before their entries expired.
+     *
+     * @return The number of refreshes.
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * Get the number of fetches which were started in the background, while
+     * a stale entry was served, to find out whether the Bus Tracker website
+     * is back.
+     *
+     * @return The number of revalidations.
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    /**
+     * Get the number of requests which were answered with a stale entry
+     * because the Bus Tracker website was failing.
+     *
+     * @return The number of stale entries served.
+     */
+    public long getStaleServed() {
+        return staleServed.get();
+    }
+
+    /**
+     * An Entry holds the live departure data for a single stop along with the
+     * time it was fetched. The reply to getBusTimesByStopCode is encoded in to
+     * a read only UTF-8 buffer when the entry is created, including the +/-
+     * lines around the JSON. The reply of an entry is never changed once it is
+     * created, so entries can be shared between threads. A stale entry is a
+     * copy of an expired entry which gives its age in its JSON. The latest
+     * stale copy is kept with the expired entry, so it can be served again
+     * while its age is still right.
+     */
+    public static class Entry {
+
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+        private static final String LINE_SEPARATOR =
+                System.getProperty("line.separator");
+
+        private final String stopCode;
+        private final LiveBusStopData data;
+        private final long fetchTime;
+        private final ByteBuffer response;
+        private final int bodyOffset;
+        private final int bodyLength;
+        private volatile byte[] gzippedBody = null;
+        private volatile ByteBuffer binaryBody = null;
+        private volatile Entry staleCopy = null;
+        private final boolean stale;
+        private final long staleAge;
+        /** The size this entry is counted as, guarded by the cache entries. */
+        private int counted = 0;
+
+        /**
+         * Create a new Entry, fetched now.
+         *
+         * @param stopCode The stop code the data is for.
+         * @param data The live departure data.
+         */
+        public Entry(final String stopCode, final LiveBusStopData data) {
+            this(stopCode, data, System.currentTimeMillis(), -1);
+        }
+
+        /**
+         * Create a stale copy of an Entry.
+         *
+         * @param entry The entry to copy.
+         * @param staleAge The age of the entry to give in the copy, in
+         * seconds.
+         */
+        private Entry(final Entry entry, final long staleAge) {
+            this(entry.stopCode, entry.data, entry.fetchTime, staleAge);
+            binaryBody = entry.binaryBody;
+        }
+
+        /**
+         * Create a new Entry and encode its reply.
+         *
+         * @param stopCode The stop code the data is for.
+         * @param data The live departure data.
+         * @param fetchTime The time the data was fetched, in milliseconds
+         * since the epoch.
+         * @param staleAge The age of the entry to give in its JSON, in seconds,
+         * if it is being served after it has expired, or -1 if it is not.
+         */
+        private Entry(final String stopCode, final LiveBusStopData data,
+                final long fetchTime, final long staleAge) {
+            this.stopCode = stopCode;
+            this.data = data;
+            this.fetchTime = fetchTime;
+            this.stale = staleAge >= 0;
+            this.staleAge = staleAge;
+
+            long start = System.nanoTime();
+            StringWriter json = new StringWriter();
+            data.writeJSONToStream(json, staleAge);
+            byte[] head = ("+" + LINE_SEPARATOR).getBytes(UTF8);
+            byte[] body = json.toString().getBytes(UTF8);
+            byte[] tail = (LINE_SEPARATOR + "-" + LINE_SEPARATOR).getBytes(
+                    UTF8);
+            ByteBuffer buffer = ByteBuffer.allocate(head.length +
+                    body.length + tail.length);
+            buffer.put(head).put(body).put(tail).flip();
+            response = buffer.asReadOnlyBuffer();
+            bodyOffset = head.length;
+            bodyLength = body.length;
+            Metrics.getMetrics().recordSince("livedata.serialize", start);
+        }
+
+        /**
+         * Get the stop code the data is for.
+         *
+         * @return The stop code the data is for.
+         */
+        public String getStopCode() {
+            return stopCode;
+        }
+
+        /**
+         * Get the live departure data.
+         *
+         * @return The live departure data.
+         */
+        public LiveBusStopData getData() {
+            return data;
+        }
+
+        /**
+         * Get the encoded reply to getBusTimesByStopCode, which is the JSON
+         * representation of the data framed by the +/- lines. The returned
+         * buffer is read only and its position can be changed without
+         * affecting other users of this entry.
+         *
+         * @return The encoded reply.
+         */
+        public ByteBuffer getResponse() {
+            return response.duplicate();
+        }
+
+        /**
+         * Get the encoded JSON representation of the data, without the +/-
+         * lines. The returned buffer is read only and its position can be
+         * changed without affecting other users of this entry.
+         *
+         * @return The encoded JSON representation of the data.
+         */
+        public ByteBuffer getBody() {
+            ByteBuffer body = response.duplicate();
+            body.position(bodyOffset);
+            body.limit(bodyOffset + bodyLength);
+            return body.slice();
+        }
+
+        /**
+         * Get the gzip compressed JSON representation of the data. This is
+         * only compressed the first time it is asked for, and then kept for
+         * the life of this entry.
+         *
+         * @return The gzip compressed JSON representation of the data.
+         */
+        public byte[] getGzippedBody() {
+            byte[] gzipped = gzippedBody;
+            if(gzipped == null) {
+                ByteBuffer body = getBody();
+                byte[] bytes = new byte[body.remaining()];
+                body.get(bytes);
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(
+                        bytes.length / 2 + 32);
+                try {
+                    GZIPOutputStream gzip = new GZIPOutputStream(baos);
+                    gzip.write(bytes);
+                    gzip.close();
+                } catch(IOException e) {
+                    // This does not happen when writing to memory.
+                    throw new IllegalStateException(e);
+                }
+                gzipped = baos.toByteArray();
+                gzippedBody = gzipped;
+                cache.grown(this);
+            }
+            return gzipped;
+        }
+
+        /**
+         * Get the data encoded in the binary form given by the
+         * LiveDataBinaryCodec. This is only encoded the first time it is
+         * asked for, and then kept for the life of this entry. The returned
+         * buffer is read only and its position can be changed without
+         * affecting other users of this entry.
+         *
+         * @return The data encoded in the binary form.
+         */
+        public ByteBuffer getBinaryBody() {
+            ByteBuffer binary = binaryBody;
+            if(binary == null) {
+                long start = System.nanoTime();
+                binary = ByteBuffer.wrap(LiveDataBinaryCodec.encode(data))
+                        .asReadOnlyBuffer();
+                Metrics.getMetrics().recordSince("livedata.serialize.binary",
+                        start);
+                binaryBody = binary;
+                cache.grown(this);
+            }
+            return binary.duplicate();
+        }
+
+        /**
+         * Get the amount of memory held by the encoded reply, and by the
+         * gzipped and binary bodies and the stale copy if they have been
+         * built.
+         *
+         * @return The size of the encoded replies, in bytes.
+         */
+        public int getSize() {
+            byte[] gzipped = gzippedBody;
+            ByteBuffer binary = binaryBody;
+            Entry copy = staleCopy;
+            return response.capacity() +
+                    (gzipped == null ? 0 : gzipped.length) +
+                    (binary == null ? 0 : binary.capacity()) +
+                    (copy == null ? 0 : copy.response.capacity());
+        }
+
+        /**
+         * Get the time the data was fetched.
+         *
+         * @return The time the data was fetched, in milliseconds since the
+         * epoch.
+         */
+        public long getFetchTime() {
+            return fetchTime;
+        }
+
+        /**
+         * Check whether this entry is being served after it has expired
+         * because the Bus Tracker website is failing.
+         *
+         * @return True if the entry is stale.
+         */
+        public boolean isStale() {
+            return stale;
+        }
+
+        /**
+         * Get how long ago the data was fetched.
+         *
+         * @return The age of the data, in milliseconds.
+         */
+        public long getAge() {
+            return System.currentTimeMillis() - fetchTime;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server.livedata;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLReaderFactory;
+import uk.org.rivernile.edinburghbustracker.server.Config;
+import uk.org.rivernile.edinburghbustracker.server.UpstreamClient;
+import uk.org.rivernile.edinburghbustracker.server.metrics.Metrics;
+
+/**
+ * The LiveDataFetcher class retrieves the live departures for a bus stop from
+ * the Bus Tracker website and parses them in to a LiveBusStopData object.
+ *
+ * @author Niall Scott
+ */
+public final class LiveDataFetcher {
+
+    /** Each thread which parses pages keeps its own scanner and buffers. */
+    private static final ThreadLocal<LiveDataScanner> scanner =
+            new ThreadLocal<LiveDataScanner>() {
+        @Override
+        protected LiveDataScanner initialValue() {
+            return new LiveDataScanner();
+        }
+    };
+
+    /**
+     * The constructor is intentionally empty as this class should not be
+     * initialised.
+     */
+    private LiveDataFetcher() {
+
+    }
+
+    /**
+     * Fetch and parse the live departures for a bus stop without blocking.
+     * The Bus Tracker website is contacted through the UpstreamClient.
+     *
+     * @param stopCode The stop code of the bus stop.
+     * @return A future which is completed with the live departure data for
+     * the bus stop, or with the IOException or SAXException which stopped it
+     * from being fetched.
+     */
+    public static CompletableFuture<LiveBusStopData> fetchAsync(
+            final String stopCode) {
+        if(stopCode == null) throw new IllegalArgumentException("The stop " +
+                "code must not be null.");
+        if(stopCode.length() == 0) throw new IllegalArgumentException("The " +
+                "length of the stop code must not be 0.");
+
+        String url;
+        try {
+            url = Config.getConfig().getMainWebsiteURL() +
+                    "getBusStopDepartures.php?refreshCount=0&clientType=" +
+                    "b&busStopCode=" + URLEncoder.encode(stopCode, "UTF-8") +
+                    "&busStopDay=0&busStopService=0&numberOfPassage=4&" +
+                    "busStopTime=&busStopDestination=0";
+        } catch(UnsupportedEncodingException e) {
+            CompletableFuture<LiveBusStopData> failed =
+                    new CompletableFuture<LiveBusStopData>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        return UpstreamClient.getUpstreamClient().fetchAsync(url).thenApply(
+                new Function<byte[], LiveBusStopData>() {
+            @Override
+            public LiveBusStopData apply(final byte[] data) {
+                try {
+                    return parse(data);
+                } catch(IOException e) {
+                    throw new CompletionException(e);
+                } catch(SAXException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Parse a departures page which has been fetched from the Bus Tracker
+     * website. Depending on the config, the page is parsed by the
+     * LiveDataScanner or by the SAX handler in LiveBusStopData.
+     *
+     * @param data The departures page.
+     * @return The live departure data held in the page.
+     * @throws IOException When an error occurs while reading the data.
+     * @throws SAXException When the XML parser cannot be initialised or the
+     * data cannot be parsed.
+     */
+    public static LiveBusStopData parse(final byte[] data)
+            throws IOException, SAXException
+    {
+        if(data == null) throw new IllegalArgumentException("The data must " +
+                "not be null.");
+
+        long start = System.nanoTime();
+        LiveBusStopData busStopData;
+        try {
+            if(!Config.PARSER_SAX.equals(Config.getConfig().getParser())) {
+                busStopData = scanner.get().scan(data);
+            } else {
+                XMLReader parser = XMLReaderFactory.createXMLReader();
+                busStopData = new LiveBusStopData();
+                parser.setContentHandler(busStopData);
+                parser.parse(new InputSource(new ByteArrayInputStream(data)));
+            }
+        } catch(SAXException e) {
+            Metrics.getMetrics().increment("livedata.parse.errors");
+            throw e;
+        }
+        Metrics.getMetrics().recordSince("livedata.parse", start);
+        return busStopData;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server.livedata;
+
+import java.util.concurrent.TimeUnit;
+import uk.org.rivernile.edinburghbustracker.server.Config;
+import uk.org.rivernile.edinburghbustracker.server.HashedWheelTimer;
+
+/**
+ * The LiveDataPrefetcher keeps the most requested stops fresh in the
+ * LiveDataCache. Every request for a stop is counted by StopPopularity. Once a
+ * second, the hottest stops whose cache entries are about to expire, or have
+ * already expired, are fetched again in the background, so clients asking for
+ * them are almost always answered from the cache.
+ *
+ * Prefetches are limited by a token bucket which fills at the configured
+ * number of requests per minute, so the prefetcher never makes more requests
+ * to the Bus Tracker website than it is allowed. The hottest stops are
+ * refreshed first when the budget runs short. Stops which nobody has asked for
+ * in a while are no longer prefetched, even if they were popular.
+ *
+ * @author Niall Scott
+ */
+public class LiveDataPrefetcher {
+
+    /** How often the hottest stops are checked, in milliseconds. */
+    private static final long PERIOD = 1000;
+    /** The fewest requests a stop must have before it is prefetched. */
+    private static final int MIN_REQUESTS = 3;
+    /** How long a stop may go without a request and still be prefetched. */
+    private static final long IDLE_AFTER = 300000;
+
+    private static final LiveDataPrefetcher prefetcher =
+            new LiveDataPrefetcher();
+
+    private final StopPopularity popularity = new StopPopularity();
+    private double tokens = 0;
+    private long lastRun = 0;
+    private volatile boolean started = false;
+
+    /**
+     * This constructor is private and can only be called once, when the
+     * single instance is created.
+     */
+    private LiveDataPrefetcher() {
+        // Nothing to set up.
+    }
+
+    /**
+     * Get the single instance of the LiveDataPrefetcher class.
+     *
+     * @return The single instance of the LiveDataPrefetcher class.
+     */
+    public static LiveDataPrefetcher getLiveDataPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Count a request for a stop. This is called by the LiveDataCache for
+     * every request, whether it is a hit or a miss. The checks are started
+     * by the first request, so a server which is never asked for live data
+     * never prefetches.
+     *
+     * @param stopCode The stop code which was asked for.
+     */
+    public void record(final String stopCode) {
+        Config config = Config.getConfig();
+        if(config.getPrefetchBudget() == 0) return;
+        popularity.record(stopCode, config.getPrefetchStops());
+        if(!started) start();
+    }
+
+    /**
+     * Get the popularity of the stops which have been asked for.
+     *
+     * @return The StopPopularity used by the prefetcher.
+     */
+    public StopPopularity getPopularity() {
+        return popularity;
+    }
+
+    /**
+     * Start checking the hottest stops, if this has not already been done.
+     */
+    private synchronized void start() {
+        if(started) return;
+        started = true;
+        lastRun = System.currentTimeMillis();
+        schedule();
+    }
+
+    /**
+     * Schedule the next check on the shared timer.
+     */
+    private void schedule() {
+        HashedWheelTimer.getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prefetch();
+                } finally {
+                    schedule();
+                }
+            }
+        }, PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Refresh the hottest stops which are about to expire, for as long as
+     * the budget allows. This is called on the timer thread, and the fetches
+     * it starts do not block it.
+     */
+    private void prefetch() {
+        Config config = Config.getConfig();
+        long now = System.currentTimeMillis();
+        double perMilli = config.getPrefetchBudget() / 60000.0;
+        // A full bucket holds one period's worth of requests, or at least one.
+        tokens = Math.min(Math.max(1, perMilli * PERIOD),
+                tokens + perMilli * (now - lastRun));
+        lastRun = now;
+        long ttl = config.getCacheTTL();
+        if(perMilli == 0 || ttl <= 0 || tokens < 1) return;
+
+        long refreshAt = ttl - config.getPrefetchLead();
+        LiveDataCache cache = LiveDataCache.getLiveDataCache();
+        LiveDataCache.Entry entry;
+        for(String stopCode : popularity.getHottest(MIN_REQUESTS,
+                now - IDLE_AFTER)) {
+            entry = cache.getCached(stopCode);
+            if(entry != null && entry.getAge() < refreshAt) continue;
+            if(cache.refresh(stopCode)) {
+                tokens--;
+                if(tokens < 1) return;
+            }
+        }
+    }
+}
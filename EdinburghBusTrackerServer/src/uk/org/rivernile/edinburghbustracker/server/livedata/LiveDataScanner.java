@@ -0,0 +1,542 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server.livedata;
+
+/**
+ * The LiveDataScanner is a purpose built scanner for the departures page of
+ * the Bus Tracker website. It works directly on the bytes of the page and only
+ * looks for the a, pre and span elements which hold the departures, producing
+ * the same LiveBusStopData as the SAX handler in LiveBusStopData does. The
+ * only objects created per departure are the LiveBus and the Strings held in
+ * it.
+ *
+ * A LiveDataScanner reuses its buffers between pages, so an instance must not
+ * be used by more than one thread at a time.
+ *
+ * @author Niall Scott
+ */
+public class LiveDataScanner {
+
+    private static final int ELEMENT_OTHER = 0;
+    private static final int ELEMENT_A = 1;
+    private static final int ELEMENT_PRE = 2;
+    private static final int ELEMENT_SPAN = 3;
+
+    private byte[] data;
+    private int pos;
+    private int end;
+    private boolean latin1;
+
+    private char[] text = new char[256];
+    private int textLength;
+    private char[] scratch = new char[64];
+    private int[] tokenStarts = new int[16];
+    private int[] tokenEnds = new int[16];
+
+    private boolean span;
+    private LiveBusStopData stopData;
+    private BusService service;
+    private LiveBus bus;
+
+    /**
+     * Create a new LiveDataScanner.
+     */
+    public LiveDataScanner() {
+        // Nothing to set up.
+    }
+
+    /**
+     * Scan a departures page.
+     *
+     * @param page The bytes of the departures page.
+     * @return The live departure data held in the page.
+     */
+    public LiveBusStopData scan(final byte[] page) {
+        if(page == null) throw new IllegalArgumentException("The page must " +
+                "not be null.");
+
+        data = page;
+        pos = 0;
+        end = page.length;
+        textLength = 0;
+        span = false;
+        stopData = new LiveBusStopData();
+        service = null;
+        bus = null;
+        readProlog();
+
+        try {
+            byte b;
+            while(pos < end) {
+                b = data[pos];
+                if(b == '<') {
+                    scanMarkup();
+                } else if(b == '&') {
+                    scanReference();
+                } else {
+                    appendText(decodeChar());
+                }
+            }
+            return stopData;
+        } finally {
+            data = null;
+            stopData = null;
+            service = null;
+            bus = null;
+        }
+    }
+
+    /**
+     * Skip any byte order mark and find the encoding of the page from its XML
+     * declaration. UTF-8 is assumed unless a single byte encoding is declared.
+     */
+    private void readProlog() {
+        latin1 = false;
+        if(end >= 3 && (data[0] & 0xFF) == 0xEF && (data[1] & 0xFF) == 0xBB &&
+                (data[2] & 0xFF) == 0xBF) {
+            pos = 3;
+            return;
+        }
+        if(!startsWith(pos, "<?xml")) return;
+        int declEnd = indexOf(pos, "?>");
+        if(declEnd < 0) return;
+        String decl = new String(data, pos, declEnd - pos).toLowerCase();
+        latin1 = decl.contains("iso-8859-1") || decl.contains("latin1") ||
+                decl.contains("us-ascii") || decl.contains("windows-1252");
+    }
+
+    /**
+     * Scan the markup starting at the current position, which is a '<'.
+     */
+    private void scanMarkup() {
+        int close;
+        if(startsWith(pos, "<!--")) {
+            close = indexOf(pos + 4, "-->");
+            pos = close < 0 ? end : close + 3;
+        } else if(startsWith(pos, "<![CDATA[")) {
+            close = indexOf(pos + 9, "]]>");
+            int cdataEnd = close < 0 ? end : close;
+            pos += 9;
+            while(pos < cdataEnd) {
+                appendText(decodeChar());
+            }
+            pos = close < 0 ? end : close + 3;
+        } else if(pos + 1 < end && (data[pos + 1] == '!' ||
+                data[pos + 1] == '?')) {
+            close = indexOf(pos + 2, ">");
+            pos = close < 0 ? end : close + 1;
+        } else if(pos + 1 < end && data[pos + 1] == '/') {
+            pos += 2;
+            int element = scanElementName();
+            close = indexOf(pos, ">");
+            pos = close < 0 ? end : close + 1;
+            endElement(element);
+        } else {
+            pos++;
+            int element = scanElementName();
+            boolean selfClosing = false;
+            byte quote = 0;
+            byte b;
+            while(pos < end) {
+                b = data[pos++];
+                if(quote != 0) {
+                    if(b == quote) quote = 0;
+                } else if(b == '"' || b == '\'') {
+                    quote = b;
+                } else if(b == '>') {
+                    selfClosing = data[pos - 2] == '/';
+                    break;
+                }
+            }
+            startElement(element);
+            if(selfClosing) endElement(element);
+        }
+    }
+
+    /**
+     * Scan the name of an element, leaving the position after the name. Any
+     * namespace prefix is ignored.
+     *
+     * @return Which of the interesting elements the name is.
+     */
+    private int scanElementName() {
+        int start = pos;
+        byte b;
+        while(pos < end) {
+            b = data[pos];
+            if(b == '>' || b == '/' || b == ' ' || b == '\t' || b == '\n' ||
+                    b == '\r') {
+                break;
+            }
+            if(b == ':') start = pos + 1;
+            pos++;
+        }
+
+        int length = pos - start;
+        if(length == 1 && (data[start] | 0x20) == 'a') return ELEMENT_A;
+        if(length == 3 && (data[start] | 0x20) == 'p' &&
+                (data[start + 1] | 0x20) == 'r' &&
+                (data[start + 2] | 0x20) == 'e') {
+            return ELEMENT_PRE;
+        }
+        if(length == 4 && (data[start] | 0x20) == 's' &&
+                (data[start + 1] | 0x20) == 'p' &&
+                (data[start + 2] | 0x20) == 'a' &&
+                (data[start + 3] | 0x20) == 'n') {
+            return ELEMENT_SPAN;
+        }
+        return ELEMENT_OTHER;
+    }
+
+    /**
+     * Scan the entity or character reference starting at the current
+     * position, which is a '&'. References which are not understood are kept
+     * as they are.
+     */
+    private void scanReference() {
+        int semicolon = -1;
+        for(int i = pos + 1; i < end && i < pos + 12; i++) {
+            if(data[i] == ';') {
+                semicolon = i;
+                break;
+            }
+        }
+
+        int c = -1;
+        if(semicolon > pos + 1) {
+            if(data[pos + 1] == '#') {
+                c = parseCharReference(pos + 2, semicolon);
+            } else if(startsWith(pos, "&amp;")) {
+                c = '&';
+            } else if(startsWith(pos, "&lt;")) {
+                c = '<';
+            } else if(startsWith(pos, "&gt;")) {
+                c = '>';
+            } else if(startsWith(pos, "&quot;")) {
+                c = '"';
+            } else if(startsWith(pos, "&apos;")) {
+                c = '\'';
+            }
+        }
+
+        if(c < 0) {
+            appendText('&');
+            pos++;
+            return;
+        }
+        pos = semicolon + 1;
+        if(c > 0xFFFF) {
+            appendText(Character.highSurrogate(c));
+            appendText(Character.lowSurrogate(c));
+        } else {
+            appendText((char)c);
+        }
+    }
+
+    /**
+     * Parse the number of a character reference.
+     *
+     * @param start Where the number starts, after the '#'.
+     * @param stop Where the number ends, at the ';'.
+     * @return The code point, or -1 if the number is not valid.
+     */
+    private int parseCharReference(final int start, final int stop) {
+        int radix = 10;
+        int i = start;
+        if(i < stop && (data[i] | 0x20) == 'x') {
+            radix = 16;
+            i++;
+        }
+        if(i == stop) return -1;
+
+        int value = 0;
+        int digit;
+        for(; i < stop; i++) {
+            digit = Character.digit(data[i], radix);
+            if(digit < 0) return -1;
+            value = value * radix + digit;
+            if(value > Character.MAX_CODE_POINT) return -1;
+        }
+        return value;
+    }
+
+    /**
+     * Decode the character at the current position and move past it.
+     *
+     * @return The decoded character.
+     */
+    private char decodeChar() {
+        int b = data[pos++] & 0xFF;
+        if(b < 0x80 || latin1) return (char)b;
+
+        int extra;
+        int c;
+        if((b & 0xE0) == 0xC0) {
+            extra = 1;
+            c = b & 0x1F;
+        } else if((b & 0xF0) == 0xE0) {
+            extra = 2;
+            c = b & 0x0F;
+        } else if((b & 0xF8) == 0xF0) {
+            extra = 3;
+            c = b & 0x07;
+        } else {
+            return '\uFFFD';
+        }
+
+        int next;
+        for(int i = 0; i < extra; i++) {
+            if(pos >= end) return '\uFFFD';
+            next = data[pos] & 0xFF;
+            if((next & 0xC0) != 0x80) return '\uFFFD';
+            c = (c << 6) | (next & 0x3F);
+            pos++;
+        }
+
+        if(c > 0xFFFF) {
+            // Characters outside the BMP need a surrogate pair. The high
+            // surrogate is appended here and the low one returned, as every
+            // caller appends the returned character straight away.
+            appendText(Character.highSurrogate(c));
+            return Character.lowSurrogate(c);
+        }
+        return (char)c;
+    }
+
+    /**
+     * Append a character to the current text. Runs of spaces are collapsed in
+     * to a single space and text inside a span is ignored, as the SAX handler
+     * does.
+     *
+     * @param c The character to append.
+     */
+    private void appendText(final char c) {
+        if(span) return;
+        if(c == ' ' && textLength > 0 && text[textLength - 1] == ' ') return;
+        if(textLength == text.length) {
+            char[] tmp = new char[text.length * 2];
+            System.arraycopy(text, 0, tmp, 0, textLength);
+            text = tmp;
+        }
+        text[textLength++] = c;
+    }
+
+    /**
+     * Called when the start of an element has been scanned.
+     *
+     * @param element Which of the interesting elements was started.
+     */
+    private void startElement(final int element) {
+        switch(element) {
+            case ELEMENT_A:
+                textLength = 0;
+                break;
+            case ELEMENT_PRE:
+                bus = new LiveBus();
+                textLength = 0;
+                break;
+            case ELEMENT_SPAN:
+                if(bus != null) bus.setAccessible(true);
+                span = true;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Called when the end of an element has been scanned.
+     *
+     * @param element Which of the interesting elements was ended.
+     */
+    private void endElement(final int element) {
+        switch(element) {
+            case ELEMENT_A:
+                handleStopInformation();
+                break;
+            case ELEMENT_PRE:
+                handleBusInformation();
+                break;
+            case ELEMENT_SPAN:
+                span = false;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Handle the text of an a element, which is the stop code, the stop name
+     * and the route of a bus service, eg "36232626 Princes Street / Leith -
+     * Gyle".
+     */
+    private void handleStopInformation() {
+        service = new BusService();
+        stopData.addBusService(service);
+
+        int i = 0;
+        while(i < textLength && text[i] != ' ') i++;
+        stopData.setStopCode(new String(text, 0, i));
+
+        int nameStart = Math.min(i + 1, textLength);
+        int slash = nameStart;
+        while(slash < textLength && text[slash] != '/') slash++;
+        stopData.setStopName(trimmedString(nameStart, slash));
+        service.setRoute(slash < textLength ?
+                trimmedString(slash + 1, textLength) : "");
+    }
+
+    /**
+     * Handle the text of a pre element, which is the service name, the
+     * destination and the arrival time of a bus, separated by white space,
+     * eg "22 Ocean Terminal 12".
+     */
+    private void handleBusInformation() {
+        if(bus == null || service == null) return;
+
+        int tokens = 0;
+        int i = 0;
+        boolean inToken = false;
+        if(textLength > 0 && isWhitespace(text[0])) {
+            // As with String.split(), leading white space gives an empty token.
+            addToken(tokens++, 0);
+            tokenEnds[0] = 0;
+        }
+        for(; i < textLength; i++) {
+            if(isWhitespace(text[i])) {
+                if(inToken) {
+                    tokenEnds[tokens - 1] = i;
+                    inToken = false;
+                }
+            } else if(!inToken) {
+                addToken(tokens++, i);
+                inToken = true;
+            }
+        }
+        if(inToken) tokenEnds[tokens - 1] = textLength;
+        if(tokens < 3) return;
+
+        service.setServiceName(new String(text, tokenStarts[0],
+                tokenEnds[0] - tokenStarts[0]));
+        bus.setArrivalTime(new String(text, tokenStarts[tokens - 1],
+                tokenEnds[tokens - 1] - tokenStarts[tokens - 1]));
+        if(tokens == 3) {
+            bus.setDestination(new String(text, tokenStarts[1],
+                    tokenEnds[1] - tokenStarts[1]));
+        } else {
+            int length = 0;
+            int tokenLength;
+            for(int t = 1; t < tokens - 1; t++) {
+                tokenLength = tokenEnds[t] - tokenStarts[t];
+                if(scratch.length < length + tokenLength + 1) {
+                    char[] tmp = new char[(length + tokenLength + 1) * 2];
+                    System.arraycopy(scratch, 0, tmp, 0, length);
+                    scratch = tmp;
+                }
+                if(t > 1) scratch[length++] = ' ';
+                System.arraycopy(text, tokenStarts[t], scratch, length,
+                        tokenLength);
+                length += tokenLength;
+            }
+            bus.setDestination(new String(scratch, 0, length));
+        }
+        service.addLiveBus(bus);
+    }
+
+    /**
+     * Record the start of a token, growing the token arrays if needed.
+     *
+     * @param token The index of the token.
+     * @param start Where the token starts in the text.
+     */
+    private void addToken(final int token, final int start) {
+        if(token == tokenStarts.length) {
+            int[] tmp = new int[tokenStarts.length * 2];
+            System.arraycopy(tokenStarts, 0, tmp, 0, token);
+            tokenStarts = tmp;
+            tmp = new int[tokenEnds.length * 2];
+            System.arraycopy(tokenEnds, 0, tmp, 0, token);
+            tokenEnds = tmp;
+        }
+        tokenStarts[token] = start;
+    }
+
+    /**
+     * Create a String from part of the current text, with the leading and
+     * trailing white space removed in the same way as String.trim().
+     *
+     * @param start The start of the text, inclusive.
+     * @param stop The end of the text, exclusive.
+     * @return The trimmed String.
+     */
+    private String trimmedString(int start, int stop) {
+        while(start < stop && text[start] <= ' ') start++;
+        while(stop > start && text[stop - 1] <= ' ') stop--;
+        return new String(text, start, stop - start);
+    }
+
+    /**
+     * Whether a character is white space in the sense of the regular
+     * expression \s.
+     *
+     * @param c The character to test.
+     * @return True if the character is white space, false if not.
+     */
+    private static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' ||
+                c == '\f' || c == '\r';
+    }
+
+    /**
+     * Whether the page holds the given ASCII text at a position.
+     *
+     * @param at The position in the page.
+     * @param s The text to look for.
+     * @return True if the text is at the position, false if not.
+     */
+    private boolean startsWith(final int at, final String s) {
+        if(at + s.length() > end) return false;
+        for(int i = 0; i < s.length(); i++) {
+            if(data[at + i] != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Find the next occurrence of the given ASCII text in the page.
+     *
+     * @param from The position to start looking from.
+     * @param s The text to look for.
+     * @return The position of the text, or -1 if it does not occur.
+     */
+    private int indexOf(final int from, final String s) {
+        byte first = (byte)s.charAt(0);
+        for(int i = from; i <= end - s.length(); i++) {
+            if(data[i] == first && startsWith(i, s)) return i;
+        }
+        return -1;
+    }
+}
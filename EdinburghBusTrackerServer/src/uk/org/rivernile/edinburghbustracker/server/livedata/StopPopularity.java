@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server.livedata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The StopPopularity class keeps track of how often each stop is asked for in
+ * a fixed amount of memory. Every request is counted in a count-min sketch,
+ * which gives an estimate that is never too low and is only too high when
+ * stops share counters. The stops with the highest estimates are kept in a
+ * small candidate table, so the hottest stops can be listed without holding a
+ * counter for every stop.
+ *
+ * Counts are halved every time the sketch has counted ten requests for each of
+ * its counters, so a stop which was popular earlier in the day gives way to
+ * the stops which are popular now.
+ *
+ * @author Niall Scott
+ */
+public class StopPopularity {
+
+    /** The number of rows in the sketch, each with its own hash. */
+    private static final int DEPTH = 4;
+    /** The number of counters in each row. This must be a power of 2. */
+    private static final int WIDTH = 4096;
+    /** The number of requests counted before all counts are halved. */
+    private static final long SAMPLE_SIZE = 10L * WIDTH;
+
+    private final AtomicIntegerArray counters =
+            new AtomicIntegerArray(DEPTH * WIDTH);
+    private final AtomicLong additions = new AtomicLong();
+    private final HashMap<String, Candidate> candidates =
+            new HashMap<String, Candidate>();
+    private volatile int floor = 0;
+
+    /**
+     * Create a new StopPopularity.
+     */
+    public StopPopularity() {
+        // Nothing to set up.
+    }
+
+    /**
+     * Count a request for a stop. Most requests for stops which are not
+     * popular only touch the sketch and do not take a lock.
+     *
+     * @param stopCode The stop code which was asked for.
+     * @param capacity The most stops to keep in the candidate table.
+     */
+    public void record(final String stopCode, final int capacity) {
+        int estimate = increment(stopCode);
+        if(additions.incrementAndGet() % SAMPLE_SIZE == 0) halve();
+        if(estimate <= floor) return;
+
+        long now = System.currentTimeMillis();
+        synchronized(candidates) {
+            Candidate candidate = candidates.get(stopCode);
+            if(candidate != null) {
+                candidate.count = estimate;
+                candidate.lastRequest = now;
+                return;
+            }
+            while(candidates.size() >= capacity) {
+                Candidate coldest = getColdest();
+                if(coldest.count >= estimate) return;
+                candidates.remove(coldest.stopCode);
+            }
+            candidates.put(stopCode, new Candidate(stopCode, estimate, now));
+            floor = candidates.size() < capacity ? 0 : getColdest().count;
+        }
+    }
+
+    /**
+     * Get the estimated number of requests for a stop since the counts were
+     * last halved.
+     *
+     * @param stopCode The stop code.
+     * @return The estimated number of requests for the stop.
+     */
+    public int estimate(final String stopCode) {
+        int hash = spread(stopCode.hashCode());
+        int step = spread(hash) | 1;
+        int min = Integer.MAX_VALUE;
+        for(int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, counters.get(index(i, hash, step)));
+        }
+        return min;
+    }
+
+    /**
+     * Get the most popular stops, most requested first.
+     *
+     * @param minCount The fewest requests a stop must have to be listed.
+     * @param since Stops which have not been asked for since this time, in
+     * milliseconds since the epoch, are not listed.
+     * @return The stop codes of the most popular stops.
+     */
+    public List<String> getHottest(final int minCount, final long since) {
+        ArrayList<Candidate> hottest;
+        synchronized(candidates) {
+            hottest = new ArrayList<Candidate>(candidates.size());
+            for(Candidate candidate : candidates.values()) {
+                if(candidate.count >= minCount &&
+                        candidate.lastRequest >= since) {
+                    hottest.add(new Candidate(candidate.stopCode,
+                            candidate.count, candidate.lastRequest));
+                }
+            }
+        }
+        Collections.sort(hottest, new Comparator<Candidate>() {
+            @Override
+            public int compare(final Candidate a, final Candidate b) {
+                return a.count > b.count ? -1 : a.count < b.count ? 1 : 0;
+            }
+        });
+        ArrayList<String> stopCodes = new ArrayList<String>(hottest.size());
+        for(Candidate candidate : hottest) stopCodes.add(candidate.stopCode);
+        return stopCodes;
+    }
+
+    /**
+     * Add one to each of the counters for a stop, and work out the new
+     * estimate from them. Only the smallest counters are raised, which keeps
+     * the estimates of the stops sharing the other counters lower.
+     *
+     * @param stopCode The stop code.
+     * @return The new estimate for the stop.
+     */
+    private int increment(final String stopCode) {
+        int hash = spread(stopCode.hashCode());
+        int step = spread(hash) | 1;
+        int[] indexes = new int[DEPTH];
+        int min = Integer.MAX_VALUE;
+        for(int i = 0; i < DEPTH; i++) {
+            indexes[i] = index(i, hash, step);
+            min = Math.min(min, counters.get(indexes[i]));
+        }
+        for(int i = 0; i < DEPTH; i++) {
+            // A counter which another stop has already raised is left alone.
+            counters.compareAndSet(indexes[i], min, min + 1);
+        }
+        return min + 1;
+    }
+
+    /**
+     * Halve every count in the sketch and the candidate table. Requests
+     * counted while this is happening may be halved or not, which does not
+     * matter for an estimate.
+     */
+    private void halve() {
+        int value;
+        for(int i = 0; i < counters.length(); i++) {
+            do {
+                value = counters.get(i);
+            } while(!counters.compareAndSet(i, value, value >>> 1));
+        }
+        synchronized(candidates) {
+            Iterator<Candidate> it = candidates.values().iterator();
+            Candidate candidate;
+            while(it.hasNext()) {
+                candidate = it.next();
+                candidate.count >>>= 1;
+                if(candidate.count == 0) it.remove();
+            }
+            floor = 0;
+        }
+    }
+
+    /**
+     * Get the candidate with the lowest count. The caller must hold the lock
+     * on the candidate table, and the table must not be empty.
+     *
+     * @return The candidate with the lowest count.
+     */
+    private Candidate getColdest() {
+        Candidate coldest = null;
+        for(Candidate candidate : candidates.values()) {
+            if(coldest == null || candidate.count < coldest.count)
+                coldest = candidate;
+        }
+        return coldest;
+    }
+
+    /**
+     * Get the position of a counter in the sketch.
+     *
+     * @param row The row of the sketch.
+     * @param hash The hash of the stop code.
+     * @param step The second hash of the stop code, which must be odd.
+     * @return The position of the counter.
+     */
+    private static int index(final int row, final int hash, final int step) {
+        return row * WIDTH + ((hash + row * step) & (WIDTH - 1));
+    }
+
+    /**
+     * Mix the bits of a hash so that the low bits depend on all of them.
+     *
+     * @param h The hash to mix.
+     * @return The mixed hash.
+     */
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A stop in the candidate table, with its estimate and the last time it
+     * was asked for.
+     */
+    private static class Candidate {
+
+        private final String stopCode;
+        private int count;
+        private long lastRequest;
+
+        /**
+         * Create a new Candidate.
+         *
+         * @param stopCode The stop code.
+         * @param count The estimated number of requests for the stop.
+         * @param lastRequest The last time the stop was asked for, in
+         * milliseconds since the epoch.
+         */
+        public Candidate(final String stopCode, final int count,
+                final long lastRequest) {
+            this.stopCode = stopCode;
+            this.count = count;
+            this.lastRequest = lastRequest;
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server.log;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import uk.org.rivernile.edinburghbustracker.server.Config;
+
+/**
+ * The Log class is where the server writes its messages, errors and access
+ * log. Calls to the log never block: each record is put in to a preallocated
+ * ring buffer and written out later by a single drain thread, so a burst of
+ * errors from many connections does not leave them all waiting on the lock of
+ * System.err. If the ring buffer is full, the record is dropped and counted
+ * instead.
+ *
+ * Records are written one to a line as key=value pairs, with values quoted
+ * where needed, so they can be read by people and parsed by tools. Messages
+ * and errors go to System.out and System.err. The access log, which has a line
+ * for every command a client sends, goes to the file given by the accesslog
+ * config key.
+ *
+ * The ring buffer is a bounded multi-producer queue in the style of Dmitry
+ * Vyukov's. Each slot holds a sequence number which says whether it is free
+ * for the next producer or holds a record for the drain thread, so producers
+ * only contend on claiming a position.
+ *
+ * @author Niall Scott
+ */
+public class Log {
+
+    /** The number of slots in the ring buffer. This must be a power of 2. */
+    private static final int CAPACITY = 8192;
+    /** How long the drain thread sleeps when there is nothing to write. */
+    private static final long IDLE_WAIT = 10000000L;
+
+    private static final int TYPE_INFO = 0;
+    private static final int TYPE_ERROR = 1;
+    private static final int TYPE_ACCESS = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Log log = new Log();
+
+    private final Slot[] slots = new Slot[CAPACITY];
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final Thread drainer;
+    private volatile boolean closing = false;
+
+    // These are only used by the drain thread.
+    private long head = 0;
+    private final SimpleDateFormat dateFormat =
+            new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    private final StringBuilder line = new StringBuilder(256);
+    private String accessLogFile = null;
+    private Writer accessLog = null;
+
+    /**
+     * This constructor is private and can only be called once, when the
+     * single instance is created. It starts the drain thread, and makes sure
+     * everything logged before the server exits is written out.
+     */
+    private Log() {
+        for(int i = 0; i < CAPACITY; i++) slots[i] = new Slot(i);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "log-writer");
+        drainer.setDaemon(true);
+        drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                closing = true;
+                LockSupport.unpark(drainer);
+                try {
+                    drainer.join(1000);
+                } catch(InterruptedException e) {
+                    // The JVM is exiting anyway.
+                }
+            }
+        }, "log-flush"));
+    }
+
+    /**
+     * Get the single instance of the Log class.
+     *
+     * @return The single instance of the Log class.
+     */
+    public static Log getLog() {
+        return log;
+    }
+
+    /**
+     * Log a message about the normal running of the server.
+     *
+     * @param message The message.
+     */
+    public void info(final String message) {
+        offer(TYPE_INFO, message, null, null, null, 0, 0, null);
+    }
+
+    /**
+     * Log an error.
+     *
+     * @param message What went wrong.
+     */
+    public void error(final String message) {
+        offer(TYPE_ERROR, message, null, null, null, 0, 0, null);
+    }
+
+    /**
+     * Log an error caused by an exception.
+     *
+     * @param message What went wrong.
+     * @param cause The exception which caused the error.
+     */
+    public void error(final String message, final Throwable cause) {
+        offer(TYPE_ERROR, message, cause, null, null, 0, 0, null);
+    }
+
+    /**
+     * Log a command which was sent by a client.
+     *
+     * @param command The name of the command.
+     * @param argument The argument given with the command, such as the stop
+     * code, or null if there was none.
+     * @param latency How long the command took, in nanoseconds.
+     * @param bytes The number of bytes in the reply.
+     * @param outcome How the command ended, such as "ok" or "busy".
+     */
+    public void access(final String command, final String argument,
+            final long latency, final long bytes, final String outcome) {
+        offer(TYPE_ACCESS, null, null, command, argument, latency, bytes,
+                outcome);
+    }
+
+    /**
+     * Get the number of records which were dropped because the ring buffer
+     * was full.
+     *
+     * @return The number of dropped records.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Get the number of records which have been written out.
+     *
+     * @return The number of written records.
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * Put a record in to the ring buffer, or drop it if the ring buffer is
+     * full. Only the fields used by the type of record need to be given.
+     *
+     * @param type The type of record.
+     * @param message The message, for info and error records.
+     * @param cause The exception which caused an error, or null.
+     * @param command The name of the command, for access records.
+     * @param argument The argument given with the command, or null.
+     * @param latency How long the command took, in nanoseconds.
+     * @param bytes The number of bytes in the reply.
+     * @param outcome How the command ended.
+     */
+    private void offer(final int type, final String message,
+            final Throwable cause, final String command, final String argument,
+            final long latency, final long bytes, final String outcome) {
+        long pos = tail.get();
+        Slot slot;
+        long diff;
+        while(true) {
+            slot = slots[(int)(pos & (CAPACITY - 1))];
+            diff = slot.sequence - pos;
+            if(diff == 0) {
+                if(tail.compareAndSet(pos, pos + 1)) break;
+                pos = tail.get();
+            } else if(diff < 0) {
+                // The drain thread has not freed this slot yet.
+                dropped.incrementAndGet();
+                return;
+            } else {
+                pos = tail.get();
+            }
+        }
+        slot.type = type;
+        slot.time = System.currentTimeMillis();
+        slot.thread = Thread.currentThread().getName();
+        slot.message = message;
+        slot.cause = cause;
+        slot.command = command;
+        slot.argument = argument;
+        slot.latency = latency;
+        slot.bytes = bytes;
+        slot.outcome = outcome;
+        // This publishes the record to the drain thread.
+        slot.sequence = pos + 1;
+    }
+
+    /**
+     * Write out records until the server exits. The streams are flushed after
+     * each batch of records rather than after every record.
+     */
+    private void drain() {
+        Slot slot;
+        int count;
+        while(true) {
+            count = 0;
+            while(true) {
+                slot = slots[(int)(head & (CAPACITY - 1))];
+                if(slot.sequence != head + 1) break;
+                write(slot);
+                slot.thread = null;
+                slot.message = null;
+                slot.cause = null;
+                slot.command = null;
+                slot.argument = null;
+                slot.outcome = null;
+                slot.sequence = head + CAPACITY;
+                head++;
+                count++;
+            }
+            if(count > 0) {
+                written.addAndGet(count);
+                flush();
+            } else if(closing) {
+                closeAccessLog();
+                return;
+            } else {
+                LockSupport.parkNanos(IDLE_WAIT);
+            }
+        }
+    }
+
+    /**
+     * Format a record and write it to where it belongs.
+     *
+     * @param slot The slot holding the record.
+     */
+    private void write(final Slot slot) {
+        line.setLength(0);
+        line.append("time=").append(dateFormat.format(new Date(slot.time)));
+        if(slot.type == TYPE_ACCESS) {
+            line.append(" cmd=");
+            appendValue(slot.command);
+            if(slot.argument != null) {
+                line.append(" arg=");
+                appendValue(slot.argument);
+            }
+            line.append(" ms=").append(slot.latency / 1000000).append('.');
+            long fraction = slot.latency / 1000 % 1000;
+            if(fraction < 100) line.append('0');
+            if(fraction < 10) line.append('0');
+            line.append(fraction);
+            line.append(" bytes=").append(slot.bytes).append(" outcome=");
+            appendValue(slot.outcome);
+            writeAccess(line.toString());
+            return;
+        }
+
+        line.append(slot.type == TYPE_ERROR ? " level=error" : " level=info");
+        line.append(" thread=");
+        appendValue(slot.thread);
+        line.append(" msg=");
+        appendValue(slot.message);
+        if(slot.cause != null) {
+            line.append(" error=");
+            appendValue(slot.cause.toString());
+        }
+        PrintStream out = slot.type == TYPE_ERROR ? System.err : System.out;
+        out.println(line);
+    }
+
+    /**
+     * Append a value to the line, quoting it if it holds spaces, quotes or
+     * equals signs.
+     *
+     * @param value The value to append.
+     */
+    private void appendValue(final String value) {
+        if(value == null) {
+            line.append('-');
+            return;
+        }
+        boolean quote = value.length() == 0;
+        char c;
+        for(int i = 0; i < value.length() && !quote; i++) {
+            c = value.charAt(i);
+            quote = c <= ' ' || c == '"' || c == '=';
+        }
+        if(!quote) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for(int i = 0; i < value.length(); i++) {
+            c = value.charAt(i);
+            if(c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if(c == '\n') {
+                line.append("\\n");
+            } else if(c == '\r') {
+                line.append("\\r");
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    /**
+     * Write a line to the access log. The file is opened the first time it
+     * is needed, and opened again if the config names a different file.
+     *
+     * @param text The line to write.
+     */
+    private void writeAccess(final String text) {
+        String file = Config.getConfig().getAccessLog();
+        if(!file.equals(accessLogFile)) {
+            closeAccessLog();
+            accessLogFile = file;
+            if(file.length() > 0) {
+                try {
+                    accessLog = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(file, true), UTF8));
+                } catch(IOException e) {
+                    System.err.println("The access log " + file + " could " +
+                            "not be opened: " + e.toString());
+                }
+            }
+        }
+        if(accessLog == null) return;
+        try {
+            accessLog.write(text);
+            accessLog.write('\n');
+        } catch(IOException e) {
+            System.err.println("The access log could not be written to: " +
+                    e.toString());
+            closeAccessLog();
+        }
+    }
+
+    /**
+     * Flush the access log, if it is open. System.out and System.err are
+     * flushed by println().
+     */
+    private void flush() {
+        if(accessLog == null) return;
+        try {
+            accessLog.flush();
+        } catch(IOException e) {
+            System.err.println("The access log could not be written to: " +
+                    e.toString());
+            closeAccessLog();
+        }
+    }
+
+    /**
+     * Close the access log, if it is open.
+     */
+    private void closeAccessLog() {
+        if(accessLog == null) return;
+        try {
+            accessLog.close();
+        } catch(IOException e) {
+            // Nothing more can be done with it.
+        }
+        accessLog = null;
+    }
+
+    /**
+     * A Slot is one position in the ring buffer. Its fields are only read by
+     * the drain thread once it has seen the sequence number which the
+     * producer sets after writing them.
+     */
+    private static class Slot {
+
+        private volatile long sequence;
+        private int type;
+        private long time;
+        private String thread;
+        private String message;
+        private Throwable cause;
+        private String command;
+        private String argument;
+        private long latency;
+        private long bytes;
+        private String outcome;
+
+        /**
+         * Create a new Slot.
+         *
+         * @param position The position of the slot in the ring buffer.
+         */
+        public Slot(final int position) {
+            sequence = position;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A LatencyHistogram records how long something took, in microseconds, in a
+ * fixed set of buckets. Each power of two is split in to 16 linear buckets, so
+ * any recorded value is reported to within about 6% while the whole range of
+ * a long fits in under 1000 buckets. Recording only increments counters, so
+ * many threads can record at once without any locking.
+ *
+ * @author Niall Scott
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS =
+            (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Create a new, empty LatencyHistogram.
+     */
+    public LatencyHistogram() {
+        // Nothing to set up.
+    }
+
+    /**
+     * Record a time.
+     *
+     * @param nanos The time to record, in nanoseconds.
+     */
+    public void recordNanos(final long nanos) {
+        record(nanos / 1000);
+    }
+
+    /**
+     * Record a time.
+     *
+     * @param micros The time to record, in microseconds.
+     */
+    public void record(final long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(getIndex(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long current;
+        while(value > (current = max.get())) {
+            if(max.compareAndSet(current, value)) break;
+        }
+    }
+
+    /**
+     * Get the number of recorded times.
+     *
+     * @return The number of recorded times.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the mean of the recorded times.
+     *
+     * @return The mean recorded time, in microseconds.
+     */
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / n;
+    }
+
+    /**
+     * Get the longest recorded time.
+     *
+     * @return The longest recorded time, in microseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the time which the given percentage of recorded times were at or
+     * below. As times are recorded while this is worked out, the result is
+     * only approximate.
+     *
+     * @param percentile The percentage, from 0 to 100.
+     * @return The recorded time at the percentile, in microseconds.
+     */
+    public long getPercentile(final double percentile) {
+        long n = count.get();
+        if(n == 0) return 0;
+        long target = Math.max(1, (long)Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen >= target) return Math.min(getHighestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Get the bucket a value is counted in.
+     *
+     * @param value The value, which must not be negative.
+     * @return The index of the bucket.
+     */
+    private static int getIndex(final long value) {
+        if(value < SUB_BUCKETS) return (int)value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int)(value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Get the highest value counted in a bucket.
+     *
+     * @param index The index of the bucket.
+     * @return The highest value counted in the bucket.
+     */
+    private static long getHighestValue(final int index) {
+        if(index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = SUB_BUCKETS + index % SUB_BUCKETS;
+        long highest = ((sub + 1) << shift) - 1;
+        return highest < 0 ? Long.MAX_VALUE : highest;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The Metrics class is the registry of everything the server measures about
+ * itself. Counters and latency histograms are created by name the first time
+ * they are used, and can then be updated from any thread without locking.
+ * Names are dotted, for example "command.getBusTimesByStopCode" or
+ * "upstream.status.500".
+ *
+ * @author Niall Scott
+ */
+public class Metrics {
+
+    private static final Metrics metrics = new Metrics();
+
+    private final ConcurrentHashMap<String, AtomicLong> counters =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+    private final long startTime = System.currentTimeMillis();
+
+    /**
+     * This constructor is private and can only be called once, when the
+     * single instance is created.
+     */
+    private Metrics() {
+        // Nothing to set up.
+    }
+
+    /**
+     * Get the single instance of the Metrics class.
+     *
+     * @return The single instance of the Metrics class.
+     */
+    public static Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get a counter, creating it if it does not exist yet.
+     *
+     * @param name The name of the counter.
+     * @return The counter.
+     */
+    public AtomicLong getCounter(final String name) {
+        AtomicLong counter = counters.get(name);
+        if(counter == null) {
+            counter = new AtomicLong();
+            AtomicLong existing = counters.putIfAbsent(name, counter);
+            if(existing != null) counter = existing;
+        }
+        return counter;
+    }
+
+    /**
+     * Add one to a counter.
+     *
+     * @param name The name of the counter.
+     */
+    public void increment(final String name) {
+        getCounter(name).incrementAndGet();
+    }
+
+    /**
+     * Take one from a counter. This is used for counters which are really
+     * gauges, such as the number of active connections.
+     *
+     * @param name The name of the counter.
+     */
+    public void decrement(final String name) {
+        getCounter(name).decrementAndGet();
+    }
+
+    /**
+     * Get a latency histogram, creating it if it does not exist yet.
+     *
+     * @param name The name of the histogram.
+     * @return The histogram.
+     */
+    public LatencyHistogram getHistogram(final String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if(histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = histograms.putIfAbsent(name,
+                    histogram);
+            if(existing != null) histogram = existing;
+        }
+        return histogram;
+    }
+
+    /**
+     * Record the time since a start time in a latency histogram.
+     *
+     * @param name The name of the histogram.
+     * @param startNanos The start time, as given by System.nanoTime().
+     */
+    public void recordSince(final String name, final long startNanos) {
+        getHistogram(name).recordNanos(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Get the current values of all of the counters, sorted by name.
+     *
+     * @return The values of the counters.
+     */
+    public Map<String, Long> getCounters() {
+        TreeMap<String, Long> result = new TreeMap<String, Long>();
+        for(Map.Entry<String, AtomicLong> e : counters.entrySet()) {
+            result.put(e.getKey(), e.getValue().get());
+        }
+        return result;
+    }
+
+    /**
+     * Get all of the latency histograms, sorted by name.
+     *
+     * @return The latency histograms.
+     */
+    public Map<String, LatencyHistogram> getHistograms() {
+        return new TreeMap<String, LatencyHistogram>(histograms);
+    }
+
+    /**
+     * Get how long the server has been running.
+     *
+     * @return The server's uptime, in milliseconds.
+     */
+    public long getUptime() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Create a JSON object holding the counters and a summary of each latency
+     * histogram. Latencies are in microseconds.
+     *
+     * @return The counters and latencies as a JSON object.
+     * @throws JSONException When the JSON object could not be created.
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("uptime", getUptime());
+        JSONObject countersJSON = new JSONObject();
+        for(Map.Entry<String, Long> e : getCounters().entrySet()) {
+            countersJSON.put(e.getKey(), e.getValue().longValue());
+        }
+        json.put("counters", countersJSON);
+
+        JSONObject latencies = new JSONObject();
+        JSONObject summary;
+        LatencyHistogram h;
+        for(Map.Entry<String, LatencyHistogram> e :
+                getHistograms().entrySet()) {
+            h = e.getValue();
+            summary = new JSONObject();
+            summary.put("count", h.getCount());
+            summary.put("mean", h.getMean());
+            summary.put("p50", h.getPercentile(50));
+            summary.put("p90", h.getPercentile(90));
+            summary.put("p99", h.getPercentile(99));
+            summary.put("p999", h.getPercentile(99.9));
+            summary.put("max", h.getMax());
+            latencies.put(e.getKey(), summary);
+        }
+        json.put("latencies", latencies);
+        return json;
+    }
+}
@@ -26,13 +26,30 @@
 package uk.org.rivernile.edinburghbustracker.server.stoplocations;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeSet;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import uk.org.rivernile.edinburghbustracker.server.ServerMetadata;
+import uk.org.rivernile.edinburghbustracker.server.log.Log;
 
 /**
  * The Database class deals with the connection and transaction handling of the
@@ -40,70 +57,309 @@ import java.sql.Statement;
  * eventually ends up on Android clients. Much of this class is for convenience.
  * Note, only one instance of this class can be instantiated.
  *
+ * The database is not recreated each time it is built. Instead, the newly
+ * crawled stops and services are compared against the previous build and only
+ * the rows which differ are written. Each service keeps a hash of its stop
+ * codes, so a service whose stops are unchanged is skipped without looking at
+ * its rows. Every difference is recorded in the change log table, against the
+ * time of the build, and the changed rows themselves are written out as a
+ * delta from the previous version through DatabaseDeltas.
+ *
+ * The service hashes and the change log are only of use to the server, so
+ * they are kept in a separate state database, attached as "state", rather
+ * than in the database which is sent to clients. The state also records
+ * which build the hashes belong to. If it does not match the database being
+ * built, for example because a build was never put in place, the hashes are
+ * not trusted and every service is compared row by row. Only the changes of
+ * the last CHANGE_LOG_BUILDS builds are kept.
+ *
+ * Each stop also has the grid cell it lies in, and the cell, x and y columns
+ * are indexed together, so that clients can find the stops in an area with a
+ * range scan of the index rather than a scan of the whole table. The cells
+ * are GRID_CELL_SIZE micro degrees square and are numbered row by row from
+ * the south west, GRID_COLUMNS to a row, as worked out by getGridCell(). The
+ * stops in a bounding box are found with one range of cells for each row of
+ * cells the box covers, for example
+ * "cell BETWEEN ? AND ? AND x BETWEEN ? AND ? AND y BETWEEN ? AND ?". The
+ * nearest stops to a point are found by searching the cells around it in
+ * growing rings.
+ *
  * @author Niall Scott
  */
 public class Database {
 
     public static final String DB_FILE = "busstops.db";
     public static final String LAST_MOD_FILE = "dblastmod";
+    /** The database which holds the state kept between builds. */
+    public static final String STATE_FILE = "busstops-state.db";
+    /** The change log action for a row which was added. */
+    public static final String ACTION_INSERT = "insert";
+    /** The change log action for a row which was changed. */
+    public static final String ACTION_UPDATE = "update";
+    /** The change log action for a row which was removed. */
+    public static final String ACTION_DELETE = "delete";
+    /** The width and height of a grid cell, in micro degrees. */
+    public static final int GRID_CELL_SIZE = 10000;
+    /** The number of grid cells in each row, going all the way round. */
+    public static final int GRID_COLUMNS = 360000000 / GRID_CELL_SIZE;
+    /** The number of rows of grid cells, from pole to pole. */
+    public static final int GRID_ROWS = 180000000 / GRID_CELL_SIZE;
     private static final String TABLE_STOPS = "bus_stops";
     private static final String TABLE_SERVICES = "service_stops";
     private static final String TABLE_METADATA = "metadata";
+    private static final String TABLE_HASHES = "state.service_hashes";
+    private static final String TABLE_CHANGES = "state.change_log";
+    private static final String TABLE_BUILD = "state.build";
+    /** The number of builds the change log is kept for. */
+    private static final int CHANGE_LOG_BUILDS = 52;
+    private static final String INDEX_GRID = "bus_stops_cell";
 
     private static Database db;
 
     private Connection con;
     private Statement stmt;
-    private PreparedStatement insrtStops, insrtServices;
+    private PreparedStatement insrtStops, updtStops, dltStops, insrtServices,
+            dltServices, insrtHashes, dltHashes, insrtChanges;
+    private MessageDigest digest;
+    private final boolean full;
+    private final long updateTS = System.currentTimeMillis();
+    private final HashMap<String, Stop> oldStops = new HashMap<String, Stop>();
+    private final HashMap<String, String> oldHashes =
+            new HashMap<String, String>();
+    private final HashMap<String, TreeSet<String>> oldServices =
+            new HashMap<String, TreeSet<String>>();
+    private long previousTS = 0;
+    private boolean gridAdded = false;
+    private final HashSet<String> seenStops = new HashSet<String>();
+    private final HashSet<String> seenServices = new HashSet<String>();
+    private int changes = 0;
+    private final JSONArray stopInserts = new JSONArray();
+    private final JSONArray stopUpdates = new JSONArray();
+    private final JSONArray stopDeletes = new JSONArray();
+    private final JSONArray serviceInserts = new JSONArray();
+    private final JSONArray serviceDeletes = new JSONArray();
 
     /**
      * This constuctor is private and can only be called from getDatabase().
-     * It sets up the connection to the database and does a little
-     * initialisation.
+     * It sets up the connection to the database, creates any tables which do
+     * not exist yet and reads in the previous build to compare against.
      *
+     * @param path The path of the database file to build in.
+     * @param statePath The path of the state database file.
+     * @param full True if the service hashes should be ignored, so that the
+     * stops of every service are compared row by row.
      * @throws ClassNotFoundException When the SQLite JDBC driver cannot be
      * found.
      * @throws SQLException When a problem occurs whilst trying to access the
      * SQLite database.
      */
-    private Database() throws ClassNotFoundException, SQLException {
+    private Database(final String path, final String statePath,
+            final boolean full) throws ClassNotFoundException, SQLException
+    {
+        this.full = full;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new SQLException("The service hashes cannot be worked out.",
+                    e);
+        }
         Class.forName("org.sqlite.JDBC");
-        con = DriverManager.getConnection("jdbc:sqlite:" + DB_FILE);
-        con.setAutoCommit(false);
+        con = DriverManager.getConnection("jdbc:sqlite:" + path);
         stmt = con.createStatement();
-        stmt.executeUpdate("DROP TABLE IF EXISTS " + TABLE_STOPS + ";");
-        stmt.executeUpdate("DROP TABLE IF EXISTS " + TABLE_SERVICES + ";");
-        stmt.executeUpdate("DROP TABLE IF EXISTS " + TABLE_METADATA + ";");
-        stmt.executeUpdate("CREATE TABLE " + TABLE_STOPS + " (_id TEXT " +
-                "PRIMARY KEY, stopName TEXT, x INTEGER, y INTEGER);");
-        stmt.executeUpdate("CREATE TABLE " + TABLE_SERVICES + " (_id INTEGER " +
-                "PRIMARY KEY AUTOINCREMENT, stopCode TEXT, serviceName TEXT);");
-        stmt.executeUpdate("CREATE TABLE " + TABLE_METADATA + " (_id INTEGER " +
-                "PRIMARY KEY AUTOINCREMENT, updateTS TEXT);");
+        // A database cannot be attached inside a transaction.
+        stmt.executeUpdate("ATTACH DATABASE '" + statePath.replace("'", "''") +
+                "' AS state;");
+        con.setAutoCommit(false);
+        // Earlier builds kept the state in the database sent to clients.
+        stmt.executeUpdate("DROP TABLE IF EXISTS main.service_hashes;");
+        stmt.executeUpdate("DROP TABLE IF EXISTS main.change_log;");
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE_STOPS +
+                " (_id TEXT PRIMARY KEY, stopName TEXT, x INTEGER, " +
+                "y INTEGER, cell INTEGER);");
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE_SERVICES +
+                " (_id INTEGER PRIMARY KEY AUTOINCREMENT, stopCode TEXT, " +
+                "serviceName TEXT);");
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE_METADATA +
+                " (_id INTEGER PRIMARY KEY AUTOINCREMENT, updateTS TEXT);");
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE_HASHES +
+                " (_id TEXT PRIMARY KEY, hash TEXT);");
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE_CHANGES +
+                " (_id INTEGER PRIMARY KEY AUTOINCREMENT, updateTS TEXT, " +
+                "tableName TEXT, action TEXT, rowKey TEXT);");
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE_BUILD +
+                " (updateTS TEXT);");
+        readPreviousBuild();
+        addGridCells();
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS " + INDEX_GRID +
+                " ON " + TABLE_STOPS + " (cell, x, y);");
+
         insrtStops = con.prepareStatement("INSERT INTO " + TABLE_STOPS +
-                " VALUES (?, ?, ?, ?);");
+                " (_id, stopName, x, y, cell) VALUES (?, ?, ?, ?, ?);");
+        updtStops = con.prepareStatement("UPDATE " + TABLE_STOPS +
+                " SET stopName = ?, x = ?, y = ?, cell = ? WHERE _id = ?;");
+        dltStops = con.prepareStatement("DELETE FROM " + TABLE_STOPS +
+                " WHERE _id = ?;");
         insrtServices = con.prepareStatement("INSERT INTO " + TABLE_SERVICES +
                 " (stopCode, serviceName) VALUES (?, ?);");
+        dltServices = con.prepareStatement("DELETE FROM " + TABLE_SERVICES +
+                " WHERE stopCode = ? AND serviceName = ?;");
+        insrtHashes = con.prepareStatement("INSERT OR REPLACE INTO " +
+                TABLE_HASHES + " VALUES (?, ?);");
+        dltHashes = con.prepareStatement("DELETE FROM " + TABLE_HASHES +
+                " WHERE _id = ?;");
+        insrtChanges = con.prepareStatement("INSERT INTO " + TABLE_CHANGES +
+                " (updateTS, tableName, action, rowKey) VALUES (?, ?, ?, ?);");
     }
 
     /**
      * Get the single instance of the Database class.
      *
+     * @param path The path of the database file to build in. This is only
+     * used when the instance is created.
+     * @param statePath The path of the state database file. This is only used
+     * when the instance is created.
+     * @param full True if the service hashes should be ignored, so that the
+     * stops of every service are compared row by row. This is only used when
+     * the instance is created.
      * @return The single instance of the Database class.
      * @throws ClassNotFoundException When the SQLite JDBC driver cannot be
      * found.
      * @throws SQLException When a problem occurs whilst trying to access the
      * SQLite database.
      */
-    public static Database getDatabase() throws ClassNotFoundException,
-            SQLException
+    public static Database getDatabase(final String path,
+            final String statePath, final boolean full)
+            throws ClassNotFoundException, SQLException
     {
-        if(db == null) db = new Database();
+        if(db == null) db = new Database(path, statePath, full);
         return db;
     }
 
     /**
-     * Insert a new bus stop and its location in to the database.
+     * Read the version, stops, services and service hashes of the previous
+     * build. Services which have rows but no hash, such as those from a
+     * database made before the hashes were kept, are given an empty hash so
+     * they are always compared. The same goes for every service when the
+     * hashes are from a different build to the one being built on.
+     *
+     * @throws SQLException When a problem occurs whilst trying to access the
+     * SQLite database.
+     */
+    private void readPreviousBuild() throws SQLException {
+        ResultSet rs = stmt.executeQuery("SELECT _id, stopName, x, y FROM " +
+                TABLE_STOPS + ";");
+        try {
+            while(rs.next()) {
+                oldStops.put(rs.getString(1), new Stop(rs.getString(2),
+                        rs.getInt(3), rs.getInt(4)));
+            }
+        } finally {
+            rs.close();
+        }
+        rs = stmt.executeQuery("SELECT serviceName, stopCode FROM " +
+                TABLE_SERVICES + ";");
+        TreeSet<String> stopCodes;
+        try {
+            while(rs.next()) {
+                stopCodes = oldServices.get(rs.getString(1));
+                if(stopCodes == null) {
+                    stopCodes = new TreeSet<String>();
+                    oldServices.put(rs.getString(1), stopCodes);
+                    oldHashes.put(rs.getString(1), "");
+                }
+                stopCodes.add(rs.getString(2));
+            }
+        } finally {
+            rs.close();
+        }
+        rs = stmt.executeQuery("SELECT updateTS FROM " + TABLE_METADATA +
+                " ORDER BY _id DESC LIMIT 1;");
+        try {
+            if(rs.next()) previousTS = Long.parseLong(rs.getString(1));
+        } catch(NumberFormatException e) {
+            // There is no delta from a version which is not known.
+        } finally {
+            rs.close();
+        }
+        String hashesTS = null;
+        rs = stmt.executeQuery("SELECT updateTS FROM " + TABLE_BUILD + ";");
+        try {
+            if(rs.next()) hashesTS = rs.getString(1);
+        } finally {
+            rs.close();
+        }
+        if(previousTS == 0 || !("" + previousTS).equals(hashesTS)) {
+            stmt.executeUpdate("DELETE FROM " + TABLE_HASHES + ";");
+            return;
+        }
+        rs = stmt.executeQuery("SELECT _id, hash FROM " + TABLE_HASHES + ";");
+        try {
+            while(rs.next()) oldHashes.put(rs.getString(1), rs.getString(2));
+        } finally {
+            rs.close();
+        }
+    }
+
+    /**
+     * Add the grid cell column to a database made before it existed, and
+     * work out the cell of every stop already in it. Clients cannot get the
+     * new column from a delta, so there is no delta from the previous
+     * version and they download the whole database.
+     *
+     * @throws SQLException When a problem occurs whilst trying to access the
+     * SQLite database.
+     */
+    private void addGridCells() throws SQLException {
+        ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + TABLE_STOPS +
+                ");");
+        try {
+            while(rs.next()) {
+                if(rs.getString("name").equals("cell")) return;
+            }
+        } finally {
+            rs.close();
+        }
+
+        Log.getLog().info("Adding grid cells to the stops DB.");
+        stmt.executeUpdate("ALTER TABLE " + TABLE_STOPS + " ADD COLUMN " +
+                "cell INTEGER;");
+        PreparedStatement updtCells = con.prepareStatement("UPDATE " +
+                TABLE_STOPS + " SET cell = ? WHERE _id = ?;");
+        try {
+            for(Map.Entry<String, Stop> e : oldStops.entrySet()) {
+                updtCells.setInt(1, getGridCell(e.getValue().x,
+                        e.getValue().y));
+                updtCells.setString(2, e.getKey());
+                updtCells.addBatch();
+            }
+            updtCells.executeBatch();
+        } finally {
+            updtCells.close();
+        }
+        gridAdded = true;
+        previousTS = 0;
+    }
+
+    /**
+     * Get the grid cell a point lies in. Points off the edge of the grid are
+     * put in the nearest cell.
+     *
+     * @param x The longitude of the point, in micro degrees.
+     * @param y The latitude of the point, in micro degrees.
+     * @return The number of the grid cell.
+     */
+    public static int getGridCell(final int x, final int y) {
+        int column = Math.max(0, Math.min(GRID_COLUMNS - 1,
+                (int)(((long)x + 180000000) / GRID_CELL_SIZE)));
+        int row = Math.max(0, Math.min(GRID_ROWS - 1,
+                (int)(((long)y + 90000000) / GRID_CELL_SIZE)));
+        return row * GRID_COLUMNS + column;
+    }
+
+    /**
+     * Insert a new bus stop and its location in to the database. If the stop
+     * was in the previous build, it is only written when its name or location
+     * has changed.
      *
      * @param stopCode The stop code of the bus stop.
      * @param stopName The name of the bus stop.
@@ -121,64 +377,327 @@ public class Database {
         if(stopName == null || stopName.length() < 1)
             throw new IllegalArgumentException("The stopName parameter must " +
                     "not be null or blank");
+        if(!seenStops.add(stopCode)) return;
 
-        insrtStops.setString(1, stopCode);
-        insrtStops.setString(2, stopName);
-        insrtStops.setInt(3, x);
-        insrtStops.setInt(4, y);
-        insrtStops.addBatch();
+        Stop old = oldStops.get(stopCode);
+        if(old == null) {
+            insrtStops.setString(1, stopCode);
+            insrtStops.setString(2, stopName);
+            insrtStops.setInt(3, x);
+            insrtStops.setInt(4, y);
+            insrtStops.setInt(5, getGridCell(x, y));
+            insrtStops.addBatch();
+            stopInserts.put(new JSONArray().put(stopCode).put(stopName)
+                    .put(x).put(y).put(getGridCell(x, y)));
+            logChange(TABLE_STOPS, ACTION_INSERT, stopCode);
+        } else if(!stopName.equals(old.stopName) || old.x != x ||
+                old.y != y) {
+            updtStops.setString(1, stopName);
+            updtStops.setInt(2, x);
+            updtStops.setInt(3, y);
+            updtStops.setInt(4, getGridCell(x, y));
+            updtStops.setString(5, stopCode);
+            updtStops.addBatch();
+            stopUpdates.put(new JSONArray().put(stopCode).put(stopName)
+                    .put(x).put(y).put(getGridCell(x, y)));
+            logChange(TABLE_STOPS, ACTION_UPDATE, stopCode);
+        }
     }
 
     /**
-     * Insert an association between a bus service and a bus stop in to the
-     * database.
+     * Insert the associations between a bus service and the bus stops it
+     * serves in to the database. The stop codes are hashed, and if the hash
+     * is the same as the previous build the service is left alone. Otherwise
+     * only the associations which were added or removed are written.
      *
-     * @param stopCode The stop code of the bus stop.
      * @param serviceName The name of the bus service.
+     * @param stopCodes The stop codes of the bus stops the service serves.
      * @throws SQLException When a problem occurs whilst trying to access the
      * SQLite database.
      */
-    public void insertService(final String stopCode, final String serviceName)
-            throws SQLException
+    public void insertService(final String serviceName,
+            final Collection<String> stopCodes) throws SQLException
     {
-        if(stopCode == null || stopCode.length() < 1)
-            throw new IllegalArgumentException("The stopCode parameter must " +
-                    "not be null or blank.");
         if(serviceName == null || serviceName.length() < 1)
             throw new IllegalArgumentException("The serviceName parameter " +
                     "must not be null or blank.");
-        insrtServices.setString(1, stopCode);
-        insrtServices.setString(2, serviceName);
-        insrtServices.addBatch();
+        if(stopCodes == null)
+            throw new IllegalArgumentException("The stopCodes parameter " +
+                    "must not be null.");
+        if(!seenServices.add(serviceName)) return;
+
+        TreeSet<String> sorted = new TreeSet<String>(stopCodes);
+        for(String stopCode : sorted) {
+            if(stopCode == null || stopCode.length() < 1)
+                throw new IllegalArgumentException("The stopCodes must not " +
+                        "be null or blank.");
+        }
+        String hash = hash(sorted);
+        String oldHash = oldHashes.get(serviceName);
+        if(!full && hash.equals(oldHash)) return;
+
+        TreeSet<String> old = oldServices.get(serviceName);
+        if(old == null) old = new TreeSet<String>();
+        boolean changed = false;
+        for(String stopCode : old) {
+            if(sorted.contains(stopCode)) continue;
+            deleteService(stopCode, serviceName);
+            changed = true;
+        }
+        for(String stopCode : sorted) {
+            if(old.contains(stopCode)) continue;
+            insrtServices.setString(1, stopCode);
+            insrtServices.setString(2, serviceName);
+            insrtServices.addBatch();
+            serviceInserts.put(new JSONArray().put(stopCode)
+                    .put(serviceName));
+            changed = true;
+        }
+        if(!hash.equals(oldHash)) {
+            insrtHashes.setString(1, serviceName);
+            insrtHashes.setString(2, hash);
+            insrtHashes.addBatch();
+        }
+        if(oldHash == null) {
+            logChange(TABLE_SERVICES, ACTION_INSERT, serviceName);
+        } else if(changed) {
+            logChange(TABLE_SERVICES, ACTION_UPDATE, serviceName);
+        }
+    }
+
+    /**
+     * Delete a single association between a bus service and a bus stop.
+     *
+     * @param stopCode The stop code of the bus stop.
+     * @param serviceName The name of the bus service.
+     * @throws SQLException When a problem occurs whilst trying to access the
+     * SQLite database.
+     */
+    private void deleteService(final String stopCode,
+            final String serviceName) throws SQLException
+    {
+        dltServices.setString(1, stopCode);
+        dltServices.setString(2, serviceName);
+        dltServices.addBatch();
+        serviceDeletes.put(new JSONArray().put(stopCode).put(serviceName));
+    }
+
+    /**
+     * Work out the hash of the stop codes of a service.
+     *
+     * @param stopCodes The sorted stop codes of the service.
+     * @return The hash as a lower case hex string.
+     */
+    private String hash(final TreeSet<String> stopCodes) {
+        Charset utf8 = Charset.forName("UTF-8");
+        digest.reset();
+        for(String stopCode : stopCodes) {
+            digest.update(stopCode.getBytes(utf8));
+            digest.update((byte)'\n');
+        }
+        StringBuilder sb = new StringBuilder();
+        for(byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Record a difference from the previous build in the change log.
+     *
+     * @param tableName The table the row belongs to.
+     * @param action What happened to the row.
+     * @param rowKey The stop code for a stop, or the service name for the
+     * stops of a service.
+     * @throws SQLException When a problem occurs whilst trying to access the
+     * SQLite database.
+     */
+    private void logChange(final String tableName, final String action,
+            final String rowKey) throws SQLException
+    {
+        insrtChanges.setString(1, "" + updateTS);
+        insrtChanges.setString(2, tableName);
+        insrtChanges.setString(3, action);
+        insrtChanges.setString(4, rowKey);
+        insrtChanges.addBatch();
+        changes++;
     }
 
     /**
      * This method SHOULD be called when the activity using this class has
-     * finished dealing with the database.
+     * finished dealing with the database. The stops and services which were
+     * in the previous build but were not seen this time are only deleted
+     * when the crawl was complete, so a service which could not be fetched is
+     * not lost. The last modification time is only moved on when something
+     * changed, so clients do not download a database which is the same, and
+     * only then is the delta from the previous version written, by
+     * announce(). Adding the grid cells to an older database also counts as
+     * a change.
      *
+     * @param complete True if every service was crawled.
+     * @return The number of changes made to the database.
      * @throws SQLException When a problem occurs whilst trying to access the
      * SQLite database.
      */
-    public void finished() throws SQLException{
-        insrtStops.executeBatch();
-        insrtServices.executeBatch();
-        long currentTS = System.currentTimeMillis();
-        stmt.executeUpdate("INSERT INTO " + TABLE_METADATA + " (updateTS) " +
-                "VALUES (\"" + currentTS + "\");");
-        con.commit();
+    public int finished(final boolean complete) throws SQLException {
         try {
-            BufferedWriter out = new BufferedWriter(
-                    new FileWriter(LAST_MOD_FILE));
-            out.write("" + currentTS);
-            out.close();
-        } catch(IOException e) {
-            // Do nothing.
+            if(complete) deleteUnseen();
+            dltServices.executeBatch();
+            insrtServices.executeBatch();
+            insrtHashes.executeBatch();
+            dltHashes.executeBatch();
+            insrtStops.executeBatch();
+            updtStops.executeBatch();
+            dltStops.executeBatch();
+            insrtChanges.executeBatch();
+            long builtTS = previousTS;
+            if(changes > 0 || gridAdded) {
+                builtTS = updateTS;
+                stmt.executeUpdate("DELETE FROM " + TABLE_METADATA + ";");
+                stmt.executeUpdate("INSERT INTO " + TABLE_METADATA +
+                        " (updateTS) VALUES (\"" + updateTS + "\");");
+                stmt.executeUpdate("DELETE FROM " + TABLE_CHANGES +
+                        " WHERE updateTS NOT IN (SELECT DISTINCT updateTS " +
+                        "FROM " + TABLE_CHANGES + " ORDER BY updateTS DESC " +
+                        "LIMIT " + CHANGE_LOG_BUILDS + ");");
+            }
+            // The hashes now match the build, even when nothing changed.
+            stmt.executeUpdate("DELETE FROM " + TABLE_BUILD + ";");
+            stmt.executeUpdate("INSERT INTO " + TABLE_BUILD +
+                    " (updateTS) VALUES (\"" + builtTS + "\");");
+            con.commit();
+        } finally {
+            try {
+                db = null;
+                con.close();
+            } catch(SQLException e) {
+                // Do nothing as we're closing anyway
+            }
         }
+        return changes;
+    }
+
+    /**
+     * Let the rest of the server know about the new version. This SHOULD be
+     * called once the database built by finished() has been put in place,
+     * so the new version is not announced before it can be downloaded. It
+     * does nothing when nothing changed.
+     */
+    public void announce() {
+        if(changes > 0 || gridAdded) {
+            // The file is watched, so it is written aside and moved in to
+            // place, so it is never seen half written.
+            File tmp = new File(LAST_MOD_FILE + ".tmp");
+            try {
+                BufferedWriter out = new BufferedWriter(new FileWriter(tmp));
+                out.write("" + updateTS);
+                out.close();
+                Files.move(tmp.toPath(), new File(LAST_MOD_FILE).toPath(),
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch(IOException e) {
+                Log.getLog().error("Could not write " + LAST_MOD_FILE + ".",
+                        e);
+                tmp.delete();
+            }
+            if(previousTS > 0) writeDelta();
+            ServerMetadata.getServerMetadata().setDBLastModTime(updateTS);
+        }
+    }
+
+    /**
+     * Write the rows which changed in this build as a delta from the
+     * previous version. Each table lists its columns once, and then the rows
+     * which were inserted, updated and deleted. Deleted rows only give the
+     * columns which identify them. A client applies the delta and then sets
+     * the updateTS in the metadata table to the version the delta is to.
+     */
+    private void writeDelta() {
         try {
-            db = null;
-            con.close();
-        } catch(SQLException e) {
-            // Do nothing as we're closing anyway
+            JSONObject stops = new JSONObject();
+            stops.put("columns", new JSONArray().put("_id").put("stopName")
+                    .put("x").put("y").put("cell"));
+            stops.put("key", new JSONArray().put("_id"));
+            stops.put(ACTION_INSERT, stopInserts);
+            stops.put(ACTION_UPDATE, stopUpdates);
+            stops.put(ACTION_DELETE, stopDeletes);
+
+            JSONObject services = new JSONObject();
+            services.put("columns", new JSONArray().put("stopCode")
+                    .put("serviceName"));
+            services.put("key", new JSONArray().put("stopCode")
+                    .put("serviceName"));
+            services.put(ACTION_INSERT, serviceInserts);
+            services.put(ACTION_UPDATE, new JSONArray());
+            services.put(ACTION_DELETE, serviceDeletes);
+
+            JSONObject tables = new JSONObject();
+            tables.put(TABLE_STOPS, stops);
+            tables.put(TABLE_SERVICES, services);
+            JSONObject delta = new JSONObject();
+            delta.put("from", "" + previousTS);
+            delta.put("to", "" + updateTS);
+            delta.put("tables", tables);
+            DatabaseDeltas.getDatabaseDeltas().add(previousTS, updateTS,
+                    delta);
+        } catch(JSONException e) {
+            Log.getLog().error("A JSON exception has occurred.", e);
+        } catch(IOException e) {
+            Log.getLog().error("Could not write the delta from version " +
+                    previousTS + " of the stops DB.", e);
+        }
+    }
+
+    /**
+     * Delete the stops and services which were in the previous build but have
+     * not been seen in this one.
+     *
+     * @throws SQLException When a problem occurs whilst trying to access the
+     * SQLite database.
+     */
+    private void deleteUnseen() throws SQLException {
+        for(String stopCode : oldStops.keySet()) {
+            if(seenStops.contains(stopCode)) continue;
+            dltStops.setString(1, stopCode);
+            dltStops.addBatch();
+            stopDeletes.put(new JSONArray().put(stopCode));
+            logChange(TABLE_STOPS, ACTION_DELETE, stopCode);
+        }
+        for(Map.Entry<String, String> e : oldHashes.entrySet()) {
+            if(seenServices.contains(e.getKey())) continue;
+            TreeSet<String> stopCodes = oldServices.get(e.getKey());
+            if(stopCodes != null) {
+                for(String stopCode : stopCodes) {
+                    deleteService(stopCode, e.getKey());
+                }
+            }
+            dltHashes.setString(1, e.getKey());
+            dltHashes.addBatch();
+            logChange(TABLE_SERVICES, ACTION_DELETE, e.getKey());
+        }
+    }
+
+    /**
+     * A Stop is a bus stop as it was in the previous build.
+     */
+    private static class Stop {
+
+        private final String stopName;
+        private final int x;
+        private final int y;
+
+        /**
+         * Create a new Stop.
+         *
+         * @param stopName The name of the stop.
+         * @param x The x position of the stop.
+         * @param y The y position of the stop.
+         */
+        public Stop(final String stopName, final int x, final int y) {
+            this.stopName = stopName;
+            this.x = x;
+            this.y = y;
         }
     }
-}
\ No newline at end of file
+}
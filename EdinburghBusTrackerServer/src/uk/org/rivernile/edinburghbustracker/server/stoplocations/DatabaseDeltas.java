@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server.stoplocations;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.json.JSONObject;
+import uk.org.rivernile.edinburghbustracker.server.Config;
+
+/**
+ * The DatabaseDeltas class keeps the delta files between successive versions
+ * of the stops database, so that a client with an older version can bring it
+ * up to date without downloading the whole database again. Each delta is a
+ * gzipped JSON file holding the rows which were inserted, updated and deleted
+ * in each table between two versions, and is named after the two versions.
+ * Only the most recent deltas are kept, as set in the config.
+ *
+ * @author Niall Scott
+ */
+public class DatabaseDeltas {
+
+    /** The directory under the database path which the deltas are kept in. */
+    public static final String DELTA_DIR = "deltas/";
+    private static final String SUFFIX = ".json.gz";
+
+    private static DatabaseDeltas deltas = null;
+
+    /**
+     * This constructor is private and can only be called from
+     * getDatabaseDeltas().
+     */
+    private DatabaseDeltas() {
+        // Nothing to do here.
+    }
+
+    /**
+     * Get the single instance of the DatabaseDeltas class.
+     *
+     * @return The single instance of the DatabaseDeltas class.
+     */
+    public static synchronized DatabaseDeltas getDatabaseDeltas() {
+        if(deltas == null) deltas = new DatabaseDeltas();
+        return deltas;
+    }
+
+    /**
+     * Check if a file name is the name of a delta file, so a name given by a
+     * client can be used safely.
+     *
+     * @param name The file name to check.
+     * @return True if the name is the name of a delta file.
+     */
+    public static boolean isDeltaName(final String name) {
+        return name.matches("[0-9]+-[0-9]+\\.json\\.gz");
+    }
+
+    /**
+     * Get the directory the deltas are kept in.
+     *
+     * @return The directory the deltas are kept in.
+     */
+    public File getDirectory() {
+        return new File(Config.getConfig().getDBPath() + DELTA_DIR);
+    }
+
+    /**
+     * Write the delta between two versions of the database and remove the
+     * oldest deltas past the number which are kept. The file is written
+     * under a temporary name first so a client never sees half of it.
+     *
+     * @param from The version the delta starts from.
+     * @param to The version the delta brings the database up to.
+     * @param delta The delta as a JSON object.
+     * @throws IOException When the delta could not be written.
+     */
+    public synchronized void add(final long from, final long to,
+            final JSONObject delta) throws IOException
+    {
+        if(Config.getConfig().getDBDeltas() < 1) return;
+        File dir = getDirectory();
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create the directory " + dir +
+                    ".");
+        File file = new File(dir, from + "-" + to + SUFFIX);
+        File tmp = new File(dir, file.getName() + ".tmp");
+        Writer out = new OutputStreamWriter(new GZIPOutputStream(
+                new FileOutputStream(tmp)), Charset.forName("UTF-8"));
+        try {
+            out.write(delta.toString());
+        } finally {
+            out.close();
+        }
+        file.delete();
+        if(!tmp.renameTo(file))
+            throw new IOException("Could not rename " + tmp + " to " + file +
+                    ".");
+        prune(dir);
+    }
+
+    /**
+     * Delete the oldest deltas past the number which are kept.
+     *
+     * @param dir The directory the deltas are kept in.
+     */
+    private void prune(final File dir) {
+        File[] files = listDeltas(dir);
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File a, final File b) {
+                long diff = getTo(b) - getTo(a);
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        int keep = Config.getConfig().getDBDeltas();
+        for(int i = keep; i < files.length; i++) files[i].delete();
+    }
+
+    /**
+     * Get the chain of deltas which bring a client's database up to the
+     * latest version. There is no chain when the client's version is older
+     * than the deltas which are kept, or when the chain would be no smaller
+     * than the database itself. The client should then download the whole
+     * database.
+     *
+     * @param from The version of the client's database.
+     * @param latest The latest version of the database.
+     * @param databaseSize The size of the whole database, in bytes.
+     * @return The delta files to apply in order, an empty list if the client
+     * is up to date, or null if the client should download the whole
+     * database.
+     */
+    public synchronized List<File> getChain(final long from, final long latest,
+            final long databaseSize)
+    {
+        ArrayList<File> chain = new ArrayList<File>();
+        if(from == latest) return chain;
+        HashMap<Long, File> byFrom = new HashMap<Long, File>();
+        for(File f : listDeltas(getDirectory())) byFrom.put(getFrom(f), f);
+
+        long version = from;
+        long size = 0;
+        File f;
+        while(version != latest) {
+            f = byFrom.remove(version);
+            if(f == null) return null;
+            size += f.length();
+            if(size >= databaseSize) return null;
+            chain.add(f);
+            version = getTo(f);
+        }
+        return chain;
+    }
+
+    /**
+     * List the delta files in a directory.
+     *
+     * @param dir The directory the deltas are kept in.
+     * @return The delta files, which is empty if there are none.
+     */
+    private static File[] listDeltas(final File dir) {
+        ArrayList<File> list = new ArrayList<File>();
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f : files) {
+                if(isDeltaName(f.getName())) list.add(f);
+            }
+        }
+        return list.toArray(new File[list.size()]);
+    }
+
+    /**
+     * Get the version a delta file starts from.
+     *
+     * @param f The delta file.
+     * @return The version the delta starts from.
+     */
+    public static long getFrom(final File f) {
+        String name = f.getName();
+        return Long.parseLong(name.substring(0, name.indexOf('-')));
+    }
+
+    /**
+     * Get the version a delta file brings the database up to.
+     *
+     * @param f The delta file.
+     * @return The version the delta brings the database up to.
+     */
+    public static long getTo(final File f) {
+        String name = f.getName();
+        return Long.parseLong(name.substring(name.indexOf('-') + 1,
+                name.length() - SUFFIX.length()));
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2009 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.server.stoplocations;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+import uk.org.rivernile.edinburghbustracker.server.log.Log;
+
+/**
+ * The ServicePointsHandler parses the service points XML files from the Bus
+ * Tracker website, which list the stops on a service along with their
+ * locations and the other services which serve them. Each stop and service
+ * found is passed to a Listener, so the parsing is kept apart from what is
+ * done with the results.
+ *
+ * @author Niall Scott
+ */
+public class ServicePointsHandler extends DefaultHandler {
+
+    private final Listener listener;
+    private String currStopCode;
+    private String currStopName;
+    private int currX;
+    private int currY;
+    private String currServiceName;
+    private boolean onStopCode = false, onStopName = false, onX = false,
+            onY = false, onServiceName = false, ignoreRest = false;
+
+    /**
+     * Create a new ServicePointsHandler.
+     *
+     * @param listener Where the stops and services found are passed to.
+     */
+    public ServicePointsHandler(final Listener listener) {
+        if(listener == null) throw new IllegalArgumentException("The " +
+                "listener must not be null.");
+        this.listener = listener;
+    }
+
+    /**
+     * Reset the handler so that it can parse another file.
+     */
+    public void reset() {
+        onStopCode = onStopName = onX = onY = onServiceName = false;
+        ignoreRest = false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startElement(final String uri, final String localName,
+            final String qname, final Attributes attributes)
+    {
+        if(ignoreRest) return;
+        if(localName.toLowerCase().equals("sms")) {
+            onStopCode = true;
+        } else if(localName.toLowerCase().equals("nom")) {
+            onStopName = true;
+        } else if(localName.toLowerCase().equals("x")) {
+            onX = true;
+        } else if(localName.toLowerCase().equals("y")) {
+            onY = true;
+        } else if(localName.toLowerCase().equals("mnemo")) {
+            onServiceName = true;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endElement(final String uri, final String localName,
+            final String qName)
+    {
+        if(ignoreRest) return;
+        if(localName.toLowerCase().equals("sms")) {
+            onStopCode = false;
+        } else if(localName.toLowerCase().equals("nom")) {
+            onStopName = false;
+        } else if(localName.toLowerCase().equals("x")) {
+            onX = false;
+        } else if(localName.toLowerCase().equals("y")) {
+            onY = false;
+        } else if(localName.toLowerCase().equals("mnemo")) {
+            onServiceName = false;
+            listener.onService(currServiceName);
+        } else if(localName.toLowerCase().equals("busstop")) {
+            listener.onStop(currStopCode, currStopName, currX, currY);
+        } else if(localName.toLowerCase().equals("markers")) {
+            ignoreRest = true;
+            onStopCode = onStopName = onX = onY = onServiceName = false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void characters(final char[] ch, final int start, final int length) {
+        if(ignoreRest) return;
+        if(onStopCode) {
+            currStopCode = charactersToString(ch, start, length);
+        } else if(onStopName) {
+            currStopName = charactersToString(ch, start, length);
+        } else if(onX) {
+            currX = degreesToMicroDegrees(
+                    charactersToString(ch, start, length));
+        } else if(onY) {
+            currY = degreesToMicroDegrees(
+                    charactersToString(ch, start, length));
+        } else if(onServiceName) {
+            currServiceName = charactersToString(ch, start, length);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    private String charactersToString(final char[] ch, final int start,
+            final int length)
+    {
+        StringBuffer sb = new StringBuffer();
+        for(int i = start; i < start + length; i++) {
+            sb.append(ch[i]);
+        }
+        return sb.toString().trim();
+    }
+
+    /**
+     * On the Android clients, a GeoPoint is represented as an integer with a
+     * precision of one millionth. Therefore, we want to elimiate the decimal
+     * point and only have the first 6 digits after the decimal point.
+     *
+     * @param degrees The floating point representation of a coordinate.
+     * @return The integer representation of a coordinate.
+     */
+    private static int degreesToMicroDegrees(final String degrees) {
+        if(degrees == null || degrees.length() < 1)
+            throw new IllegalArgumentException("The degrees argument must " +
+                    "not be null or blank.");
+        String[] splitted = degrees.split("\\.");
+        if(splitted.length < 2) {
+            try {
+                return Integer.parseInt(degrees);
+            } catch(NumberFormatException e) {
+                Log.getLog().error("Exception while converting degrees to " +
+                        "microdegrees.", e);
+            }
+            return Integer.MAX_VALUE;
+        }
+
+        try {
+            if(splitted[1].length() > 6) {
+                return Integer.parseInt(splitted[0] +
+                        splitted[1].substring(0, 6));
+            } else {
+                return Integer.parseInt(splitted[0] + splitted[1]);
+            }
+        } catch(NumberFormatException e) {
+            Log.getLog().error("Exception while converting degrees to " +
+                    "microdegrees.", e);
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * A Listener is told about each stop and service found in a service
+     * points XML file.
+     */
+    public interface Listener {
+
+        /**
+         * Called for each stop found. A stop is listed once for each service
+         * points file it appears in.
+         *
+         * @param stopCode The stop code of the stop.
+         * @param stopName The name of the stop.
+         * @param x The longitude of the stop, in micro degrees.
+         * @param y The latitude of the stop, in micro degrees.
+         */
+        void onStop(String stopCode, String stopName, int x, int y);
+
+        /**
+         * Called for each service found serving a stop. The same service may
+         * be found many times.
+         *
+         * @param serviceName The name of the service.
+         */
+        void onService(String serviceName);
+    }
+}
@@ -25,23 +25,33 @@
 
 package uk.org.rivernile.edinburghbustracker.server.stoplocations;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Timer;
 import java.util.TimerTask;
-import org.xml.sax.Attributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.DefaultHandler;
 import org.xml.sax.helpers.XMLReaderFactory;
+import uk.org.rivernile.edinburghbustracker.server.Config;
+import uk.org.rivernile.edinburghbustracker.server.ServerMetadata;
+import uk.org.rivernile.edinburghbustracker.server.UpstreamClient;
+import uk.org.rivernile.edinburghbustracker.server.log.Log;
 
 /**
  * This is class which deals with maintaining a database of stop locations and
@@ -49,19 +59,20 @@ import org.xml.sax.helpers.XMLReaderFactory;
  * 
  * @author Niall Scott
  */
-public class StopLocationsTask extends DefaultHandler {
+public class StopLocationsTask {
+
+    /** The service which the crawl starts from. */
+    private static final String FIRST_SERVICE = "1";
+    /** The number of times a service is tried before it is given up on. */
+    private static final int CRAWL_ATTEMPTS = 5;
+    /** Added to the name of the database while it is being built. */
+    private static final String BUILD_SUFFIX = ".build";
 
     private String dbPath;
-    private String currStopCode;
-    private String currStopName;
-    private int currX;
-    private int currY;
-    private String currServiceName, loopServiceName;
-    private boolean onStopCode = false, onStopName = false, onX = false,
-            onY = false, onServiceName = false, ignoreRest = false;
-    private LinkedList<String> services, stops;
     private Database db;
     private Timer timer;
+    private final Object fetchLock = new Object();
+    private long nextFetch = 0;
 
     /**
      * Initialise the stop locations task. The object created will attempt to
@@ -93,249 +104,356 @@ public class StopLocationsTask extends DefaultHandler {
         @Override
         public void run() {
             File dest = new File(dbPath + Database.DB_FILE);
-            File orig = new File(Database.DB_FILE);
-            if(!dest.exists()) {
-                doTask();
-                if(!orig.equals(dest)) {
-                    dest.delete();
-                    orig.renameTo(dest);
-                }
-            } else {
-                if(System.currentTimeMillis() >=
-                        (dest.lastModified() + 604800000)) {
-                    doTask();
-                    if(!orig.equals(dest)) {
-                        dest.delete();
-                        orig.renameTo(dest);
-                    }
-                }
+            if(!dest.exists() || System.currentTimeMillis() >=
+                    (dest.lastModified() + 604800000)) {
+                build();
             }
+            ServerMetadata.getServerMetadata().updateDBChecksum();
         }
     };
 
     private TimerTask tt = new TimerTask() {
         @Override
         public void run() {
-            File orig = new File(Database.DB_FILE);
-            File dest = new File(dbPath + Database.DB_FILE);
-            System.out.println("Commencing weekly stop DB creation.");
-            doTask();
-            if(!orig.equals(dest)) {
-                orig.renameTo(dest);
-            }
-            System.out.println("Weekly stop DB creation complete.");
+            Log.getLog().info("Commencing weekly stop DB creation.");
+            build();
+            ServerMetadata.getServerMetadata().updateDBChecksum();
+            Log.getLog().info("Weekly stop DB creation complete.");
         }
     };
 
     /**
-     * The database fecthing task.
+     * Build the database and put it in place. It is built in a copy of the
+     * previous build, so only the differences are written, and the copy is
+     * then moved over the served database in one step. Clients downloading
+     * the database while it is built get the previous version whole.
      */
-    private synchronized void doTask() {
-        System.out.println("Starting to create stops DB.");
-        services = new LinkedList<String>();
-        stops = new LinkedList<String>();
-        loopServiceName = "1";
-        services.add(loopServiceName);
-        try {
-            db = Database.getDatabase();
-        } catch(SQLException e) {
-            System.err.println("The following SQLException occurred:");
-            System.err.println(e.toString());
-            System.err.println("The stop location fetching loop cannot " +
-                    "continue.");
-            return;
-        } catch(ClassNotFoundException e) {
-            System.err.println("The SQLite JDBC driver could not be found, " +
-                    "the stop location fetching loop cannot continue.");
-            return;
-        }
-
-        int i = 0;
-        URL url;
-        HttpURLConnection con;
-        InputStream in;
-        InputSource source;
-        XMLReader parser;
-        try {
-            parser = XMLReaderFactory.createXMLReader();
-            parser.setContentHandler(this);
-        } catch(SAXException e) {
-            System.err.println("An exception occurred while trying to " +
-                    "initialise the XML parser:");
-            System.err.println(e.toString());
-            return;
-        }
-        while(i < services.size()) {
-            loopServiceName = services.get(i);
+    private synchronized void build() {
+        File dest = new File(dbPath + Database.DB_FILE);
+        File tmp = new File(dbPath + Database.DB_FILE + BUILD_SUFFIX);
+        tmp.delete();
+        if(dest.exists()) {
             try {
-                url = new URL("http://old.mybustracker.co.uk/" +
-                        "getServicePoints.php?serviceMnemo=" + services.get(i));
-                con = (HttpURLConnection)url.openConnection();
-                in = con.getInputStream();
-                source = new InputSource(in);
-                ignoreRest = false;
-                parser.parse(source);
-                in.close();
-                con.disconnect();
-                i++;
-            } catch(MalformedURLException e) {
-                System.err.println(e.toString());
+                copyFile(dest, tmp);
             } catch(IOException e) {
-                System.err.println("The following IOException occurred whilst" +
-                        "trying to get the stop location XML file from the " +
-                        "Bustracker web server:");
-                System.err.println(e.toString());
-            } catch(SAXException e) {
-                System.err.println("An exception occurred while trying to " +
-                        "parse an XML file:");
-                System.err.println(e.toString());
+                Log.getLog().error("Could not copy the previous stops DB, " +
+                        "it will be built from scratch.", e);
+                tmp.delete();
             }
         }
+        Database built = doTask(tmp.getPath());
+        if(built == null) {
+            tmp.delete();
+            return;
+        }
+        // The file is not written to when nothing has changed, so mark when
+        // it was last built for the check made at start up.
+        tmp.setLastModified(System.currentTimeMillis());
         try {
-            db.finished();
-        } catch(SQLException e) {
-            System.err.println("Cannot commit changes to database due to " +
-                    "SQLException:");
-            System.err.println(e.toString());
+            Files.move(tmp.toPath(), dest.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch(IOException e) {
+            Log.getLog().error("Could not move the new stops DB in to place.",
+                    e);
+            tmp.delete();
+            return;
         }
-        db = null;
-        System.out.println("Database now ready.");
+        built.announce();
     }
 
     /**
-     * {@inheritDoc}
+     * Copy a file, replacing the destination if it exists.
+     *
+     * @param from The file to copy.
+     * @param to Where to copy it to.
+     * @throws IOException When the file could not be copied.
      */
-    @Override
-    public void startElement(final String uri, final String localName,
-            final String qname, final Attributes attributes)
+    private static void copyFile(final File from, final File to)
+            throws IOException
     {
-        if(ignoreRest) return;
-        if(localName.toLowerCase().equals("sms")) {
-            onStopCode = true;
-        } else if(localName.toLowerCase().equals("nom")) {
-            onStopName = true;
-        } else if(localName.toLowerCase().equals("x")) {
-            onX = true;
-        } else if(localName.toLowerCase().equals("y")) {
-            onY = true;
-        } else if(localName.toLowerCase().equals("mnemo")) {
-            onServiceName = true;
+        FileInputStream in = new FileInputStream(from);
+        try {
+            FileOutputStream out = new FileOutputStream(to);
+            try {
+                FileChannel src = in.getChannel();
+                long size = src.size();
+                long position = 0;
+                while(position < size) {
+                    position += src.transferTo(position, size - position,
+                            out.getChannel());
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
         }
     }
 
     /**
-     * {@inheritDoc}
+     * The database fecthing task. The services are crawled as a work queue,
+     * starting from service 1. Each service points file is fetched and
+     * parsed on a small pool of crawler threads, and the services it names
+     * which have not been seen yet are queued as soon as it has been parsed.
+     * The number of files fetched at once and the time between starting each
+     * fetch are limited by the config, so the Bus Tracker website is not
+     * flooded. Only this thread writes to the database, as the results of
+     * each service come back.
+     *
+     * @param path The path of the database file to build in.
+     * @return The database which was built, or null if it could not be.
      */
-    @Override
-    public void endElement(final String uri, final String localName,
-            final String qName)
-    {
-        if(ignoreRest) return;
-        if(localName.toLowerCase().equals("sms")) {
-            onStopCode = false;
-        } else if(localName.toLowerCase().equals("nom")) {
-            onStopName = false;
-        } else if(localName.toLowerCase().equals("x")) {
-            onX = false;
-        } else if(localName.toLowerCase().equals("y")) {
-            onY = false;
-        } else if(localName.toLowerCase().equals("mnemo")) {
-            onServiceName = false;
-            if(!services.contains(currServiceName)) {
-                services.add(currServiceName);
+    private synchronized Database doTask(final String path) {
+        Log.getLog().info("Starting to create stops DB.");
+        Config config = Config.getConfig();
+        try {
+            db = Database.getDatabase(path, dbPath + Database.STATE_FILE,
+                    config.getDBRebuild().equals(Config.REBUILD_FULL));
+        } catch(SQLException e) {
+            Log.getLog().error("An SQLException occurred, the stop location " +
+                    "fetching loop cannot continue.", e);
+            return null;
+        } catch(ClassNotFoundException e) {
+            Log.getLog().error("The SQLite JDBC driver could not be found, " +
+                    "the stop location fetching loop cannot continue.");
+            return null;
+        }
+
+        ExecutorService crawlers = Executors.newFixedThreadPool(
+                config.getCrawlParallelism(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "stop-crawl");
+                t.setDaemon(true);
+                return t;
             }
-        } else if(localName.toLowerCase().equals("busstop")) {
-            if(!stops.contains(currStopCode)) {
-                try {
-                    db.insertStop(currStopCode, currStopName, currX, currY);
-                } catch(SQLException e) {
-                    System.err.println("An SQLException occurred.");
-                    System.err.println(e.toString());
+        });
+        LinkedBlockingQueue<ServicePoints> results =
+                new LinkedBlockingQueue<ServicePoints>();
+        nextFetch = 0;
+        HashSet<String> services = new HashSet<String>();
+        services.add(FIRST_SERVICE);
+        crawlers.execute(new Crawl(new ServicePoints(FIRST_SERVICE, 1),
+                results));
+        int pending = 1;
+        boolean complete = true;
+        ServicePoints points;
+        try {
+            while(pending > 0) {
+                points = results.take();
+                pending--;
+                if(points.error != null) {
+                    if(points.attempt < CRAWL_ATTEMPTS) {
+                        crawlers.execute(new Crawl(new ServicePoints(
+                                points.serviceName, points.attempt + 1),
+                                results));
+                        pending++;
+                    } else {
+                        complete = false;
+                        Log.getLog().error("Giving up on the stop locations " +
+                                "of service " + points.serviceName + ".",
+                                points.error);
+                    }
+                    continue;
+                }
+                for(String service : points.services) {
+                    if(services.add(service)) {
+                        crawlers.execute(new Crawl(new ServicePoints(service,
+                                1), results));
+                        pending++;
+                    }
                 }
-                stops.add(currStopCode);
+                store(points);
             }
+        } catch(InterruptedException e) {
+            Log.getLog().error("Interrupted while creating the stops DB, " +
+                    "only the services crawled so far will be stored.");
+            crawlers.shutdownNow();
+            complete = false;
+        }
+        crawlers.shutdown();
+
+        try {
+            int changes = db.finished(complete);
+            Log.getLog().info(changes + " changes were made to the stops " +
+                    "DB.");
+        } catch(SQLException e) {
+            Log.getLog().error("Cannot commit changes to database due to " +
+                    "SQLException.", e);
+            db = null;
+            return null;
+        }
+        Database built = db;
+        db = null;
+        Log.getLog().info("Database now ready.");
+        return built;
+    }
+
+    /**
+     * Write the stops of a service to the database. The database works out
+     * which of them have changed since the previous build.
+     *
+     * @param points The parsed service points of the service.
+     */
+    private void store(final ServicePoints points) {
+        ArrayList<String> stopCodes = new ArrayList<String>();
+        for(Stop stop : points.stops) {
             try {
-                db.insertService(currStopCode, loopServiceName);
+                db.insertStop(stop.stopCode, stop.stopName, stop.x, stop.y);
             } catch(SQLException e) {
-                System.err.println("An SQLException occurred.");
-                System.err.println(e.toString());
+                Log.getLog().error("An SQLException occurred.", e);
             }
-        } else if(localName.toLowerCase().equals("markers")) {
-            ignoreRest = true;
-            onStopCode = onStopName = onX = onY = onServiceName = false;
+            stopCodes.add(stop.stopCode);
+        }
+        try {
+            db.insertService(points.serviceName, stopCodes);
+        } catch(SQLException e) {
+            Log.getLog().error("An SQLException occurred.", e);
         }
     }
 
     /**
-     * {@inheritDoc}
+     * Wait until the next fetch may be started. The start times of the
+     * fetches are spaced out by the configured crawl delay, whichever
+     * crawler thread they are made from.
+     *
+     * @throws InterruptedException When the thread is interrupted while
+     * waiting.
      */
-    @Override
-    public void characters(final char[] ch, final int start, final int length) {
-        if(ignoreRest) return;
-        if(onStopCode) {
-            currStopCode = charactersToString(ch, start, length);
-        } else if(onStopName) {
-            currStopName = charactersToString(ch, start, length);
-        } else if(onX) {
-            currX = degreesToMicroDegrees(
-                    charactersToString(ch, start, length));
-        } else if(onY) {
-            currY = degreesToMicroDegrees(
-                    charactersToString(ch, start, length));
-        } else if(onServiceName) {
-            currServiceName = charactersToString(ch, start, length);
+    private void awaitFetchSlot() throws InterruptedException {
+        long wait;
+        synchronized(fetchLock) {
+            long now = System.currentTimeMillis();
+            long start = Math.max(now, nextFetch);
+            nextFetch = start + Config.getConfig().getCrawlDelay();
+            wait = start - now;
         }
+        if(wait > 0) Thread.sleep(wait);
     }
 
     /**
-     * {@inheritDoc}
+     * A Crawl fetches and parses the service points file of a single service
+     * on a crawler thread, and then hands the result to the database writer.
      */
-    private String charactersToString(final char[] ch, final int start,
-            final int length)
-    {
-        StringBuffer sb = new StringBuffer();
-        for(int i = start; i < start + length; i++) {
-            sb.append(ch[i]);
+    private class Crawl implements Runnable {
+
+        private final ServicePoints points;
+        private final LinkedBlockingQueue<ServicePoints> results;
+
+        /**
+         * Create a new Crawl.
+         *
+         * @param points Where the stops and services found are put.
+         * @param results Where the result is handed to the database writer.
+         */
+        public Crawl(final ServicePoints points,
+                final LinkedBlockingQueue<ServicePoints> results) {
+            this.points = points;
+            this.results = results;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            try {
+                awaitFetchSlot();
+                byte[] data = UpstreamClient.getUpstreamClient().fetch(
+                        Config.getConfig().getMainWebsiteURL() +
+                        "getServicePoints.php?serviceMnemo=" +
+                        points.serviceName);
+                XMLReader parser = XMLReaderFactory.createXMLReader();
+                parser.setContentHandler(new ServicePointsHandler(points));
+                parser.parse(new InputSource(new ByteArrayInputStream(data)));
+            } catch(IOException e) {
+                Log.getLog().error("An IOException occurred whilst trying " +
+                        "to get the stop location XML file of service " +
+                        points.serviceName + " from the Bustracker web " +
+                        "server.", e);
+                points.error = e;
+            } catch(SAXException e) {
+                Log.getLog().error("An exception occurred while trying to " +
+                        "parse the XML file of service " + points.serviceName +
+                        ".", e);
+                points.error = e;
+            } catch(InterruptedException e) {
+                points.error = e;
+            }
+            results.add(points);
         }
-        return sb.toString().trim();
     }
 
     /**
-     * On the Android clients, a GeoPoint is represented as an integer with a
-     * precision of one millionth. Therefore, we want to elimiate the decimal
-     * point and only have the first 6 digits after the decimal point.
-     *
-     * @param degrees The floating point representation of a coordinate.
-     * @return The integer representation of a coordinate.
+     * The ServicePoints of a service are the stops and services found in its
+     * service points file. It is filled in by a single crawler thread and
+     * then only read by the database writer.
      */
-    private static int degreesToMicroDegrees(final String degrees) {
-        if(degrees == null || degrees.length() < 1)
-            throw new IllegalArgumentException("The degrees argument must " +
-                    "not be null or blank.");
-        String[] splitted = degrees.split("\\.");
-        if(splitted.length < 2) {
-            try {
-                return Integer.parseInt(degrees);
-            } catch(NumberFormatException e) {
-                System.err.println("Exception while converting degrees to " +
-                        "microdegrees.");
-                System.err.println(e.toString());
-            }
-            return Integer.MAX_VALUE;
+    private static class ServicePoints
+            implements ServicePointsHandler.Listener {
+
+        private final String serviceName;
+        private final int attempt;
+        private final ArrayList<Stop> stops = new ArrayList<Stop>();
+        private final LinkedHashSet<String> services =
+                new LinkedHashSet<String>();
+        private Exception error = null;
+
+        /**
+         * Create a new, empty, ServicePoints.
+         *
+         * @param serviceName The name of the service.
+         * @param attempt The number of times this service has been tried,
+         * including this one.
+         */
+        public ServicePoints(final String serviceName, final int attempt) {
+            this.serviceName = serviceName;
+            this.attempt = attempt;
         }
 
-        try {
-            if(splitted[1].length() > 6) {
-                return Integer.parseInt(splitted[0] +
-                        splitted[1].substring(0, 6));
-            } else {
-                return Integer.parseInt(splitted[0] + splitted[1]);
-            }
-        } catch(NumberFormatException e) {
-            System.err.println("Exception while converting degrees to " +
-                    "microdegrees.");
-            System.err.println(e.toString());
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onService(final String serviceName) {
+            services.add(serviceName);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onStop(final String stopCode, final String stopName,
+                final int x, final int y) {
+            stops.add(new Stop(stopCode, stopName, x, y));
+        }
+    }
+
+    /**
+     * A Stop found in a service points file.
+     */
+    private static class Stop {
+
+        private final String stopCode;
+        private final String stopName;
+        private final int x;
+        private final int y;
+
+        /**
+         * Create a new Stop.
+         *
+         * @param stopCode The stop code of the stop.
+         * @param stopName The name of the stop.
+         * @param x The longitude of the stop, in micro degrees.
+         * @param y The latitude of the stop, in micro degrees.
+         */
+        public Stop(final String stopCode, final String stopName,
+                final int x, final int y) {
+            this.stopCode = stopCode;
+            this.stopName = stopName;
+            this.x = x;
+            this.y = y;
         }
-        return Integer.MAX_VALUE;
     }
-}
\ No newline at end of file
+}